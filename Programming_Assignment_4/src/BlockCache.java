@@ -0,0 +1,844 @@
+import java.util.*;
+
+/**
+ * A write-back buffer cache of disk blocks.
+ * <p>
+ * The Kernel puts one of these between its file system calls and the Disk.
+ * The cache holds up to <samp>cacheSize</samp> blocks (the number given to
+ * the POWER_ON interrupt). Reads that hit in the cache never touch the disk,
+ * and writes only mark the cached copy dirty. A dirty block is written back
+ * to the disk when it is evicted or when the cache is flushed.
+ * <p>
+ * Which block is evicted is decided by a replacement {@link Policy}.
+ * Three are provided: <samp>LRU</samp>, <samp>CLOCK</samp> and
+ * <samp>2Q</samp>.
+ * <p>
+ * The cache's lock is never held while waiting for the disk. A block that
+ * misses gets its buffer at once, marked as being read, and is read after
+ * the lock is released; other requests for that block wait for the read,
+ * while requests for other blocks go on. A buffer being read joins the
+ * replacement policy, and counts against the capacity, only once its data
+ * has arrived, so that it cannot be evicted in between. A dirty block
+ * being evicted stays in the cache until it has been written back, so
+ * that nobody can read the old contents from the disk meanwhile. A flush
+ * writes copies of the dirty blocks, again without the lock; a block
+ * evicted while its copy is being written stays in the cache until the
+ * write is done.
+ * <p>
+ * A cache with a capacity of zero passes every request straight through to
+ * the disk, without serializing them, so that the disk can schedule
+ * concurrent requests.
+ * <p>
+ * The Kernel can also ask the cache to <em>prefetch</em> blocks that a
+ * {@link ReadAhead} stream expects to be read soon. Each is given a buffer
+ * at once and read from the disk asynchronously; a read or write of the
+ * block waits for the disk read only if it has not finished yet. The
+ * <samp>cache.readAhead</samp> system property limits how many blocks one
+ * stream may have read ahead (16 by default, and never more than half the
+ * cache); 0 turns read-ahead off. There is no read-ahead on a FastDisk,
+ * whose reads take no time.
+ *
+ * @see Kernel
+ * @see Disk
+ */
+public class BlockCache {
+    /** The disk behind this cache. */
+    private final Disk disk;
+
+    /** The maximum number of blocks held in the cache. */
+    private final int capacity;
+
+    /** The replacement policy. */
+    private final Policy policy;
+
+    /** Mapping of block numbers to cached buffers. */
+    private final Map<Integer, Buffer> buffers = new HashMap<>();
+
+    /** A count of requests satisfied from the cache, for statistics. */
+    private long hits;
+
+    /** A count of requests that had to go to the disk, for statistics. */
+    private long misses;
+
+    /** A count of blocks evicted to make room, for statistics. */
+    private long evictions;
+
+    /** A count of dirty blocks written back to the disk, for statistics. */
+    private long writeBacks;
+
+    /** The number of buffers known to the replacement policy. */
+    private int resident;
+
+    /** The largest read-ahead window of a stream; zero if none is allowed. */
+    private final int readAhead;
+
+    /** A count of blocks read ahead, for statistics. */
+    private long prefetches;
+
+    /** A count of blocks read ahead that were then used, for statistics. */
+    private long prefetchHits;
+
+    /** A count of blocks read ahead that were never used, for statistics. */
+    private long prefetchWasted;
+
+    /**
+     * A count of requests that had to wait for a block still being read
+     * ahead, for statistics.
+     */
+    private long prefetchWaits;
+
+    /////////////////////////////////////////// Inner classes
+
+    /** One cached disk block. */
+    static class Buffer {
+        /** The block number this buffer holds. */
+        final int block;
+
+        /** The contents of the block. */
+        final byte[] data = new byte[Disk.BLOCK_SIZE];
+
+        /** True if data has been modified since it was read or written back. */
+        boolean dirty;
+
+        /** Reference bit, used by the CLOCK policy. */
+        boolean referenced;
+
+        /** Slot in the clock, used by the CLOCK policy. */
+        int slot;
+
+        /**
+         * The disk transfer that must finish before this buffer is used: a
+         * read filling data, or the write-back of an evicted buffer.
+         */
+        Disk.Request pending;
+
+        /** True once evicted, while data is being written back. */
+        boolean evicting;
+
+        /** The write of a copy of data by flush(), while it is in progress. */
+        Disk.Request flushing;
+
+        /** True while data is being read for a miss. */
+        boolean loading;
+
+        /** The stream that read this block ahead, until it is first used. */
+        ReadAhead stream;
+
+        /** Creates a buffer for a block. */
+        Buffer(int block) {
+            this.block = block;
+        }
+    } // class BlockCache.Buffer
+
+    /**
+     * A block replacement policy.
+     * The cache tells the policy about every buffer it adds, uses and removes,
+     * and asks it to choose a victim when the cache is full.
+     */
+    abstract static class Policy {
+        /** Records that a buffer was added to the cache. */
+        abstract void insert(Buffer b);
+
+        /** Records that a buffer already in the cache was used again. */
+        abstract void touch(Buffer b);
+
+        /** Records that a buffer was removed from the cache. */
+        abstract void remove(Buffer b);
+
+        /**
+         * Chooses a buffer to evict. The buffer is not removed; the cache will
+         * call remove() once it has been written back.
+         */
+        abstract Buffer victim();
+
+        /** Returns the name of this policy. */
+        abstract String name();
+    } // class BlockCache.Policy
+
+    /** Least-recently-used replacement. */
+    static class LruPolicy extends Policy {
+        /** Buffers in order of use, least recent first. */
+        private final LinkedHashSet<Buffer> order = new LinkedHashSet<>();
+
+        void insert(Buffer b) {
+            order.add(b);
+        }
+
+        void touch(Buffer b) {
+            order.remove(b);
+            order.add(b);
+        }
+
+        void remove(Buffer b) {
+            order.remove(b);
+        }
+
+        Buffer victim() {
+            return order.iterator().next();
+        }
+
+        String name() {
+            return "LRU";
+        }
+    } // class BlockCache.LruPolicy
+
+    /** The CLOCK (second chance) approximation of LRU. */
+    static class ClockPolicy extends Policy {
+        /** The buffers, one per slot; null slots are free. */
+        private final Buffer[] slots;
+
+        /** The clock hand. */
+        private int hand;
+
+        /** Creates a clock with one slot per cache block. */
+        ClockPolicy(int capacity) {
+            slots = new Buffer[capacity];
+        }
+
+        void insert(Buffer b) {
+            for (int i = 0; i < slots.length; i++) {
+                int s = (hand + i) % slots.length;
+                if (slots[s] == null) {
+                    slots[s] = b;
+                    b.slot = s;
+                    b.referenced = true;
+                    return;
+                }
+            }
+            throw new IllegalStateException("clock is full");
+        }
+
+        void touch(Buffer b) {
+            b.referenced = true;
+        }
+
+        void remove(Buffer b) {
+            slots[b.slot] = null;
+        }
+
+        Buffer victim() {
+            for (;;) {
+                Buffer b = slots[hand];
+                hand = (hand + 1) % slots.length;
+                if (b == null) {
+                    continue;
+                }
+                if (!b.referenced) {
+                    return b;
+                }
+                b.referenced = false;
+            }
+        }
+
+        String name() {
+            return "CLOCK";
+        }
+    } // class BlockCache.ClockPolicy
+
+    /**
+     * The simplified 2Q policy of Johnson and Shasha.
+     * New blocks enter a FIFO queue (A1in). Blocks evicted from A1in are
+     * remembered by number only (A1out). A block that is referenced again
+     * while it is remembered in A1out is promoted to the main LRU queue (Am).
+     * This keeps one-time scans from flushing out the blocks that are
+     * reread over and over.
+     */
+    static class TwoQueuePolicy extends Policy {
+        /** Target size of A1in. */
+        private final int kin;
+
+        /** Maximum number of remembered block numbers in A1out. */
+        private final int kout;
+
+        /** Blocks seen once, in FIFO order. */
+        private final LinkedHashSet<Buffer> a1in = new LinkedHashSet<>();
+
+        /** Block numbers recently evicted from A1in, in FIFO order. */
+        private final LinkedHashSet<Integer> a1out = new LinkedHashSet<>();
+
+        /** Blocks seen more than once, least recent first. */
+        private final LinkedHashSet<Buffer> am = new LinkedHashSet<>();
+
+        /** Creates a 2Q policy for a cache of the given capacity. */
+        TwoQueuePolicy(int capacity) {
+            kin = Math.max(1, capacity / 4);
+            kout = Math.max(1, capacity / 2);
+        }
+
+        void insert(Buffer b) {
+            if (a1out.remove(b.block)) {
+                am.add(b);
+            } else {
+                a1in.add(b);
+            }
+        }
+
+        void touch(Buffer b) {
+            if (am.remove(b)) {
+                am.add(b);
+            }
+            // A hit in A1in is ignored: it is most likely correlated
+            // with the first reference.
+        }
+
+        void remove(Buffer b) {
+            if (a1in.remove(b)) {
+                a1out.add(b.block);
+                if (a1out.size() > kout) {
+                    Iterator<Integer> it = a1out.iterator();
+                    it.next();
+                    it.remove();
+                }
+            } else {
+                am.remove(b);
+            }
+        }
+
+        Buffer victim() {
+            if (a1in.size() > kin || am.isEmpty()) {
+                return a1in.iterator().next();
+            }
+            return am.iterator().next();
+        }
+
+        String name() {
+            return "2Q";
+        }
+    } // class BlockCache.TwoQueuePolicy
+
+    /////////////////////////////////////////// Constructors
+
+    /**
+     * Creates a new cache.
+     *
+     * @param disk       the disk to cache.
+     * @param capacity   the number of blocks to cache; zero disables caching.
+     * @param policyName the name of the replacement policy: LRU, CLOCK or 2Q.
+     */
+    public BlockCache(Disk disk, int capacity, String policyName) {
+        this.disk = disk;
+        this.capacity = Math.max(0, capacity);
+        switch (policyName.toUpperCase()) {
+            case "LRU" -> policy = new LruPolicy();
+            case "CLOCK" -> policy = new ClockPolicy(this.capacity);
+            case "2Q" -> policy = new TwoQueuePolicy(this.capacity);
+            default -> throw new IllegalArgumentException(
+                    "Unknown cache policy " + policyName);
+        }
+        readAhead = this.capacity == 0 || disk instanceof FastDisk ? 0
+                : Math.min(Integer.getInteger("cache.readAhead", 16), this.capacity / 2);
+    } // BlockCache
+
+    /////////////////////////////////////////// Methods
+
+    /**
+     * Reads a block through the cache.
+     *
+     * @param block  the block number to read.
+     * @param buffer a place to put the data; only the first BLOCK_SIZE bytes
+     *               are modified.
+     */
+    public void read(int block, byte[] buffer) {
+        read(block, 0, buffer, 0, Disk.BLOCK_SIZE);
+    } // read(int, byte[])
+
+    /**
+     * Reads part of a block through the cache.
+     *
+     * @param block     the block number to read.
+     * @param offset    the offset within the block of the first byte.
+     * @param buffer    a place to put the data.
+     * @param bufOffset the index in buffer of the first byte.
+     * @param length    the number of bytes to read.
+     */
+    public void read(int block, int offset,
+            byte[] buffer, int bufOffset, int length) {
+        if (capacity == 0) {
+            if (offset == 0 && bufOffset == 0 && length == Disk.BLOCK_SIZE) {
+                disk.read(block, buffer);
+            } else {
+                byte[] data = new byte[Disk.BLOCK_SIZE];
+                disk.read(block, data);
+                System.arraycopy(data, offset, buffer, bufOffset, length);
+            }
+            return;
+        }
+        boolean missed = false;
+        for (;;) {
+            Disk.Request pending;
+            Buffer loading = null;
+            List<Buffer> evicted = new ArrayList<>(0);
+            synchronized (this) {
+                Buffer b = buffers.get(block);
+                pending = b == null ? null : inFlight(b);
+                if (pending == null && b != null) {
+                    if (!missed) {
+                        hits++;
+                    }
+                    policy.touch(b);
+                    used(b);
+                    System.arraycopy(b.data, offset, buffer, bufOffset, length);
+                    return;
+                }
+                if (b == null) {
+                    misses++;
+                    missed = true;
+                    loading = allocate(block, evicted, true);
+                    pending = loading.pending = new Disk.Request(block, loading.data, false);
+                } else if (b.stream != null) {
+                    prefetchWaits++;
+                }
+            }
+            if (loading != null) {
+                load(loading, pending, evicted);
+            } else {
+                pending.await();
+            }
+        }
+    } // read(int, int, byte[], int, int)
+
+    /**
+     * Writes a block through the cache. The data reaches the disk when the
+     * block is evicted or the cache is flushed.
+     *
+     * @param block  the block number to write.
+     * @param buffer the data to write; only the first BLOCK_SIZE bytes are
+     *               used.
+     */
+    public void write(int block, byte[] buffer) {
+        write(block, 0, buffer, 0, Disk.BLOCK_SIZE);
+    } // write(int, byte[])
+
+    /**
+     * Writes part of a block through the cache. If the block is not cached
+     * and only part of it is being written, the rest is read from the disk
+     * first.
+     *
+     * @param block     the block number to write.
+     * @param offset    the offset within the block of the first byte.
+     * @param buffer    the data to write.
+     * @param bufOffset the index in buffer of the first byte.
+     * @param length    the number of bytes to write.
+     */
+    public void write(int block, int offset,
+            byte[] buffer, int bufOffset, int length) {
+        boolean whole = offset == 0 && length == Disk.BLOCK_SIZE;
+        if (capacity == 0) {
+            if (whole && bufOffset == 0) {
+                disk.write(block, buffer);
+            } else {
+                byte[] data = new byte[Disk.BLOCK_SIZE];
+                if (!whole) {
+                    disk.read(block, data);
+                }
+                System.arraycopy(buffer, bufOffset, data, offset, length);
+                disk.write(block, data);
+            }
+            return;
+        }
+        boolean missed = false;
+        for (;;) {
+            Disk.Request pending;
+            Buffer loading = null;
+            List<Buffer> evicted = new ArrayList<>(0);
+            synchronized (this) {
+                Buffer b = buffers.get(block);
+                pending = b == null ? null : inFlight(b);
+                if (pending == null) {
+                    if (b != null) {
+                        if (!missed) {
+                            hits++;
+                        }
+                        policy.touch(b);
+                        used(b);
+                    } else {
+                        misses++;
+                        missed = true;
+                        b = allocate(block, evicted, !whole);
+                        if (!whole) {
+                            // Read the rest of the block first.
+                            loading = b;
+                            pending = b.pending = new Disk.Request(block, b.data, false);
+                        }
+                    }
+                    if (loading == null) {
+                        // If a whole block is being replaced, there is no
+                        // need to read the old contents first.
+                        System.arraycopy(buffer, bufOffset, b.data, offset, length);
+                        b.dirty = true;
+                    }
+                } else if (b.stream != null) {
+                    // The disk read must not land on top of the new data.
+                    prefetchWaits++;
+                }
+            }
+            if (loading != null) {
+                load(loading, pending, evicted);
+            } else if (pending == null) {
+                writeBack(evicted);
+                return;
+            } else {
+                pending.await();
+            }
+        }
+    } // write(int, int, byte[], int, int)
+
+    /**
+     * Returns the largest number of blocks one stream may have read ahead.
+     *
+     * @return the limit; zero if read-ahead is off.
+     */
+    public int readAheadLimit() {
+        return readAhead;
+    } // readAheadLimit
+
+    /**
+     * Starts reading blocks into the cache before they are asked for. Blocks
+     * already cached are skipped. This does not wait for the disk, though
+     * it may have to write back a dirty block to make room.
+     *
+     * @param blocks the block numbers to read.
+     * @param stream the stream the blocks are read ahead for, which is told
+     *               whether each one is used.
+     */
+    public void prefetch(int[] blocks, ReadAhead stream) {
+        if (readAhead == 0) {
+            return;
+        }
+        List<Buffer> evicted = new ArrayList<>(0);
+        synchronized (this) {
+            for (int block : blocks) {
+                if (!buffers.containsKey(block)) {
+                    Buffer b = allocate(block, evicted, false);
+                    b.stream = stream;
+                    b.pending = disk.beginRead(block, b.data);
+                    prefetches++;
+                }
+            }
+        }
+        writeBack(evicted);
+    } // prefetch
+
+    /**
+     * Discards a block from the cache without writing it back.
+     * Used when the block no longer belongs to any file.
+     *
+     * @param block the block number to discard.
+     */
+    public synchronized void invalidate(int block) {
+        Buffer b = buffers.get(block);
+        // A buffer being written back stays until the write is done.
+        if (b != null && !b.evicting) {
+            if (b.flushing != null) {
+                discard(b);
+                return;
+            }
+            buffers.remove(block);
+            if (!b.loading) {
+                leave(b);
+            }
+            unused(b);
+        }
+    } // invalidate
+
+    /**
+     * Discards every block in the cache without writing anything back,
+     * except those already being written back.
+     */
+    public synchronized void invalidateAll() {
+        for (Iterator<Buffer> it = buffers.values().iterator(); it.hasNext(); ) {
+            Buffer b = it.next();
+            if (!b.evicting && b.flushing != null) {
+                discard(b);
+            } else if (!b.evicting) {
+                it.remove();
+                if (!b.loading) {
+                    leave(b);
+                }
+                unused(b);
+            }
+        }
+    } // invalidateAll
+
+    /**
+     * Writes every dirty block back to the disk, and waits for any write of
+     * a block that was already in progress. The blocks are copied and
+     * marked clean under the lock and written after it is released, so
+     * that requests for other blocks go on meanwhile. A block whose write
+     * fails is marked dirty again.
+     */
+    public void flush() {
+        List<Buffer> dirty = new ArrayList<>();
+        List<Disk.Request> writes = new ArrayList<>();
+        List<Disk.Request> started = new ArrayList<>();
+        synchronized (this) {
+            for (Buffer b : buffers.values()) {
+                if (b.flushing != null) {
+                    started.add(b.flushing);
+                } else if (b.evicting) {
+                    started.add(b.pending);
+                } else if (b.dirty) {
+                    b.dirty = false;
+                    b.flushing = new Disk.Request(b.block, b.data.clone(), true);
+                    dirty.add(b);
+                    writes.add(b.flushing);
+                }
+            }
+        }
+        RuntimeException failure = null;
+        List<Buffer> evicted = new ArrayList<>(0);
+        for (int i = 0; i < dirty.size(); i++) {
+            Buffer b = dirty.get(i);
+            Disk.Request write = writes.get(i);
+            boolean done = false;
+            try {
+                disk.write(b.block, write.buffer);
+                done = true;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            flushed(b, write, done, evicted);
+        }
+        // Only now, as one of them may wait for a copy written above.
+        writeBack(evicted);
+        for (Disk.Request r : started) {
+            if (r != null) {
+                r.await();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    } // flush
+
+    /**
+     * Returns a one-line summary of the cache statistics.
+     *
+     * @return the statistics.
+     */
+    public synchronized String statistics() {
+        long total = hits + misses;
+        String s = String.format(
+                "Cache (%s, %d blocks): %d hits, %d misses (%.1f%% hit rate),"
+                        + " %d evictions, %d write-backs",
+                policy.name(), capacity, hits, misses,
+                total == 0 ? 0.0 : 100.0 * hits / total,
+                evictions, writeBacks);
+        if (prefetches > 0) {
+            s += String.format(
+                    "\nRead-ahead (window %d): %d blocks, %d used (%.1f%%),"
+                            + " %d wasted, %d waited for",
+                    readAhead, prefetches, prefetchHits,
+                    100.0 * prefetchHits / prefetches, prefetchWasted, prefetchWaits);
+        }
+        return s;
+    } // statistics
+
+    /**
+     * Adds a buffer for a new block. A buffer that is to be read for a miss
+     * is only marked as loading; any other takes its place in the cache
+     * at once.
+     *
+     * @param block   the block number to add.
+     * @param evicted where to add a dirty buffer evicted to make room.
+     * @param loading true if the block is about to be read.
+     * @return a new, clean buffer for the block.
+     */
+    private Buffer allocate(int block, List<Buffer> evicted, boolean loading) {
+        Buffer b = new Buffer(block);
+        buffers.put(block, b);
+        if (loading) {
+            b.loading = true;
+        } else {
+            makeRoom(evicted);
+            enter(b);
+        }
+        return b;
+    } // allocate
+
+    /**
+     * Evicts a block if the cache is full. A dirty victim is left in the
+     * map, waiting to be written back by the caller once it has released
+     * the lock.
+     *
+     * @param evicted where to add a dirty victim.
+     */
+    private void makeRoom(List<Buffer> evicted) {
+        if (resident >= capacity) {
+            Buffer victim = policy.victim();
+            leave(victim);
+            unused(victim);
+            evictions++;
+            if (victim.dirty) {
+                victim.dirty = false;
+                victim.evicting = true;
+                victim.pending = new Disk.Request(victim.block, victim.data, true);
+                evicted.add(victim);
+            } else if (victim.flushing != null) {
+                // Clean, but its data is still on the way to the disk.
+                victim.evicting = true;
+                victim.pending = victim.flushing;
+            } else {
+                buffers.remove(victim.block);
+            }
+        }
+    } // makeRoom
+
+    /**
+     * Drops a buffer whose copy flush() is still writing. It stays in the
+     * map, as though it were being written back, until the write is done.
+     */
+    private void discard(Buffer b) {
+        if (!b.loading) {
+            leave(b);
+        }
+        unused(b);
+        b.dirty = false;
+        b.evicting = true;
+        b.pending = b.flushing;
+        b.flushing = null;
+    } // discard
+
+    /** Gives a buffer to the replacement policy. */
+    private void enter(Buffer b) {
+        policy.insert(b);
+        resident++;
+    } // enter
+
+    /** Takes a buffer from the replacement policy. */
+    private void leave(Buffer b) {
+        policy.remove(b);
+        resident--;
+    } // leave
+
+    /**
+     * Returns the disk read still filling a buffer, if there is one.
+     *
+     * @param b the buffer.
+     * @return the read, or null if the data is in the buffer.
+     */
+    private Disk.Request inFlight(Buffer b) {
+        if (b.pending != null && b.pending.isDone()) {
+            b.pending = null;
+        }
+        return b.pending;
+    } // inFlight
+
+    /** Credits the stream that read a buffer ahead, on its first use. */
+    private void used(Buffer b) {
+        if (b.stream != null) {
+            prefetchHits++;
+            b.stream.hit();
+            b.stream = null;
+        }
+    } // used
+
+    /** Charges the stream that read a buffer ahead, if it was never used. */
+    private void unused(Buffer b) {
+        if (b.stream != null) {
+            prefetchWasted++;
+            b.stream.wasted();
+            b.stream = null;
+        }
+    } // unused
+
+    /**
+     * Reads a block into the buffer just allocated for it without holding
+     * the lock, puts the buffer in its place in the cache, and writes back
+     * any buffer evicted to make room. Anyone waiting for the block is
+     * woken once it has been read.
+     *
+     * @param b       the buffer.
+     * @param read    the request it is marked with.
+     * @param evicted where to add a dirty buffer evicted to make room.
+     */
+    private void load(Buffer b, Disk.Request read, List<Buffer> evicted) {
+        boolean done = false;
+        try {
+            disk.read(b.block, b.data);
+            done = true;
+        } finally {
+            synchronized (this) {
+                b.loading = false;
+                if (buffers.get(b.block) == b) {
+                    if (done) {
+                        makeRoom(evicted);
+                        enter(b);
+                    } else {
+                        buffers.remove(b.block);
+                    }
+                }
+            }
+            read.complete();
+            writeBack(evicted);
+        }
+    } // load
+
+    /**
+     * Settles a buffer once flush() has tried to write its copy. A buffer
+     * evicted or discarded in the meantime leaves the cache if the write
+     * worked; if it failed, the buffer is marked dirty again, and one that
+     * was evicted while clean goes back into the cache.
+     *
+     * @param b       the buffer.
+     * @param write   the write of its copy.
+     * @param done    true if the write worked.
+     * @param evicted where to add a dirty buffer evicted to make room.
+     */
+    private void flushed(Buffer b, Disk.Request write, boolean done,
+                         List<Buffer> evicted) {
+        synchronized (this) {
+            boolean evictedClean = b.evicting && b.pending == write;
+            if (b.flushing != write) {
+                // Discarded meanwhile.
+                buffers.remove(b.block, b);
+            } else if (done) {
+                writeBacks++;
+                if (evictedClean) {
+                    buffers.remove(b.block, b);
+                }
+            } else if (evictedClean) {
+                b.dirty = true;
+                b.evicting = false;
+                b.pending = null;
+                makeRoom(evicted);
+                enter(b);
+            } else if (!b.evicting) {
+                b.dirty = true;
+            }
+            if (b.flushing == write) {
+                b.flushing = null;
+            }
+        }
+        write.complete();
+    } // flushed
+
+    /**
+     * Writes evicted buffers back to the disk, without holding the lock,
+     * and then drops them from the cache. A buffer whose older copy is
+     * still being written by flush() waits for that write first, so that
+     * it cannot land on top of the newer data.
+     *
+     * @param evicted the buffers.
+     */
+    private void writeBack(List<Buffer> evicted) {
+        for (Buffer v : evicted) {
+            Disk.Request older;
+            synchronized (this) {
+                older = v.flushing;
+            }
+            if (older != null) {
+                older.await();
+            }
+            try {
+                disk.write(v.block, v.data);
+            } finally {
+                synchronized (this) {
+                    buffers.remove(v.block, v);
+                    writeBacks++;
+                }
+                v.pending.complete();
+            }
+        }
+    } // writeBack(List)
+} // BlockCache
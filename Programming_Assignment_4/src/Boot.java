@@ -13,7 +13,7 @@ import java.util.*;
  * The program expects four or more command-line arguments:
  * <ul>
  * <li>a numeric parameter to pass to the Kernel's POWER_ON interrupt.
- * The kernel stores this number in its bufferSize field.
+ * The kernel uses it as the number of blocks in its buffer cache.
  * <li>the name of a class that implements the disk,
  * <li>the size of the disk, in blocks,
  * <li>the name of shell program, and
@@ -25,6 +25,27 @@ import java.util.*;
  * <pre>
  *    java Boot 10 Disk 100 Shell
  * </pre>
+ * The replacement policy of the buffer cache can be chosen with
+ * <samp>-Dcache.policy=LRU</samp>, <samp>CLOCK</samp> or <samp>2Q</samp>.
+ * Setting <samp>-Ddisk.flushInterval=</samp><em>ms</em> makes the kernel
+ * save changed blocks to the DISK file every <em>ms</em> milliseconds,
+ * and checkpoint its journal.
+ * <samp>-Ddisk.journalBlocks=</samp><em>n</em> sets the size of the
+ * journal that makes file creation and deletion survive a crash, and
+ * <samp>-Ddisk.directoryBlocks=</samp><em>n</em> the size of the region
+ * holding the directory.
+ * <samp>-Dkernel.dedup=true</samp> makes files with identical blocks share
+ * them.
+ * <samp>-Dcache.readAhead=</samp><em>n</em> lets the cache read up to
+ * <em>n</em> blocks ahead of a process reading a file in order; 0 turns
+ * read-ahead off.
+ * <samp>-Dkernel.processPool=</samp><em>n</em> starts <em>n</em> threads
+ * at boot to run processes on, instead of starting a thread per exec.
+ * <samp>-Dkernel.pipeSize=</samp><em>bytes</em> sets the size of the
+ * buffer of each pipe between the commands of a Shell pipeline.
+ * <samp>-Dconsole.bufferSize=</samp><em>bytes</em> sets the size of the
+ * console buffer of each process, whose output is written a line at a
+ * time by one console thread; 0 makes processes print directly.
  *
  * @see Kernel
  * @see Disk
@@ -75,7 +96,7 @@ public class Boot {
                 pl(diskName + " is not a subclass of Disk");
                 usage();
             }
-            if (!diskName.equals("FastDisk")) {
+            if (!(disk instanceof FastDisk)) {
                 new Thread((Disk) disk, "DISK").start();
             }
         } catch (ClassNotFoundException e) {
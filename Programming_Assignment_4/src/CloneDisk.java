@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A FastDisk that is a writable clone of a read-only image.
+ * <p>
+ * Booting a FastDisk reads its whole DISK file, and every write goes back
+ * to that file, so many systems cannot be started from one golden image.
+ * This disk instead reads blocks from a stack of <em>layers</em>:
+ * <ol>
+ * <li>an <em>overlay</em> holding every block this clone has changed,
+ *     kept in memory and saved to the file <samp>DISK.overlay</samp>;
+ * <li>the chain of <em>snapshots</em> it was cloned from, newest first,
+ *     each a file <samp>snapshots/</samp><em>name</em><samp>.snap</samp>
+ *     holding the blocks changed since its parent;
+ * <li>the <em>base</em> image, a DISK file that is only ever read, block
+ *     by block as needed.
+ * </ol>
+ * A block is read from the first layer that has it, and a block written
+ * for the first time is copied into the overlay. Nothing is copied when a
+ * clone starts, so starting costs the size of the snapshots and overlay,
+ * however big the base is, and any number of clones can share one base.
+ * Saving rewrites the overlay file, which also costs only the number of
+ * blocks changed.
+ * <p>
+ * The files are set by system properties: <samp>disk.base</samp> (default
+ * <samp>DISK</samp>), <samp>disk.overlay</samp> (default
+ * <samp>DISK.overlay</samp>) and <samp>disk.snapshots</samp> (the
+ * directory of snapshots, default <samp>snapshots</samp>). A new overlay
+ * starts from the snapshot named by <samp>disk.snapshot</samp>, or from the
+ * base if there is none; an existing overlay remembers its snapshot. The
+ * {@link Snapshot} program creates, lists, deletes and rolls back to
+ * snapshots while no clone is running.
+ * <p>
+ * Select this disk by name when booting:
+ * <pre>
+ *    java -Ddisk.base=golden/DISK -Ddisk.snapshot=clean Boot 10 CloneDisk 1000 Shell
+ * </pre>
+ * @see Snapshot
+ */
+public class CloneDisk extends FastDisk {
+    /** The read-only base image. */
+    private final File base = new File(System.getProperty("disk.base", "DISK"));
+
+    /** The file holding this clone's changed blocks. */
+    private final File overlayFile = overlayFile();
+
+    /** The base image open for reading, or null if there is none. */
+    private final FileChannel baseChannel;
+
+    /** The blocks of each snapshot in the chain, newest first. */
+    private final List<Map<Integer, byte[]>> chain = new ArrayList<>();
+
+    /** The blocks this clone has changed. */
+    private final Map<Integer, byte[]> overlay = new ConcurrentHashMap<>();
+
+    /** The snapshot this clone started from; empty for the base. */
+    private final String parent;
+
+    /** Held while the overlay file is written. */
+    private final Object saving = new Object();
+
+    /////////////////////////////////////////// Inner classes
+
+    /** The contents of a snapshot or overlay file: the name of the layer
+     * below it and the blocks it holds.
+     */
+    static class Layer {
+        /** Identifies a layer file ("LAYR"). */
+        private static final int MAGIC = 0x4C415952;
+
+        /** The version of the file format. */
+        private static final int VERSION = 1;
+
+        /** The size of the disk, in blocks. */
+        final int size;
+
+        /** The snapshot below this layer; empty for the base image. */
+        final String parent;
+
+        /** The blocks of this layer, by block number. */
+        final Map<Integer, byte[]> blocks;
+
+        /** Creates a layer.
+         * @param size the size of the disk, in blocks.
+         * @param parent the snapshot below it.
+         * @param blocks its blocks.
+         */
+        Layer(int size, String parent, Map<Integer, byte[]> blocks) {
+            this.size = size;
+            this.parent = parent;
+            this.blocks = blocks;
+        } // Layer
+
+        /** Reads a layer file.
+         * @param file the file.
+         * @return the layer.
+         * @throws IOException if the file cannot be read or is not a layer.
+         */
+        static Layer read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException(file + " is not a snapshot");
+                }
+                int size = in.readInt();
+                String parent = in.readUTF();
+                int count = in.readInt();
+                Map<Integer, byte[]> blocks = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    int block = in.readInt();
+                    byte[] data = new byte[BLOCK_SIZE];
+                    in.readFully(data);
+                    blocks.put(block, data);
+                }
+                return new Layer(size, parent, blocks);
+            }
+        } // read
+
+        /** Writes this layer to a new file that then replaces the old one,
+         * so that a crash leaves one or the other.
+         * @param file the file.
+         * @param sync if true, wait until the file is on stable storage.
+         * @throws IOException if the file cannot be written.
+         */
+        void write(File file, boolean sync) throws IOException {
+            File temp = new File(file.getPath() + ".new");
+            try (FileOutputStream fos = new FileOutputStream(temp);
+                    DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(fos))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(size);
+                out.writeUTF(parent);
+                out.writeInt(blocks.size());
+                for (Map.Entry<Integer, byte[]> e : new TreeMap<>(blocks).entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.write(e.getValue());
+                }
+                out.flush();
+                if (sync) {
+                    fos.getFD().sync();
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } // write
+    } // class CloneDisk.Layer
+
+    /////////////////////////////////////////// Constructors
+
+    /** Creates a new CloneDisk from its base, snapshots and overlay.
+     * @param size the total size of this disk, in blocks.
+     */
+    public CloneDisk(int size) {
+        super(size, false);
+        try {
+            if (overlayFile.exists()) {
+                Layer layer = checked(Layer.read(overlayFile), overlayFile);
+                parent = layer.parent;
+                overlay.putAll(layer.blocks);
+            } else {
+                parent = System.getProperty("disk.snapshot", "");
+            }
+            for (String s = parent; !s.isEmpty(); ) {
+                File file = snapshotFile(s);
+                Layer layer = checked(Layer.read(file), file);
+                chain.add(layer.blocks);
+                s = layer.parent;
+                if (chain.size() > 1000) {
+                    throw new DiskException("Snapshot " + parent + " has a cycle");
+                }
+            }
+            if (base.exists()) {
+                if (base.length() != (long) size * BLOCK_SIZE) {
+                    throw new DiskException("Base image " + base + " is the wrong size");
+                }
+                baseChannel = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+            } else {
+                baseChannel = null;
+            }
+        } catch (IOException e) {
+            throw new DiskException("Cannot open clone: " + e);
+        }
+        boolean restored = baseChannel != null || !chain.isEmpty() || !overlay.isEmpty();
+        if (restored) {
+            System.out.println("Cloned " + (baseChannel == null ? "an empty disk" : base)
+                + (parent.isEmpty() ? "" : " at snapshot " + parent) + " with "
+                + overlay.size() + " changed blocks");
+        } else {
+            System.out.println("Creating new disk");
+        }
+        initFreeMap(restored);
+    } // CloneDisk
+
+    /////////////////////////////////////////// Methods
+
+    /** Returns the overlay file named by the system properties.
+     * @return the file.
+     */
+    static File overlayFile() {
+        return new File(System.getProperty("disk.overlay", "DISK.overlay"));
+    } // overlayFile
+
+    /** Returns the file of a snapshot in the directory named by the system
+     * properties.
+     * @param name the name of the snapshot.
+     * @return the file.
+     */
+    static File snapshotFile(String name) {
+        return new File(System.getProperty("disk.snapshots", "snapshots"), name + ".snap");
+    } // snapshotFile
+
+    /** Checks that a layer belongs to a disk of this size.
+     * @param layer the layer.
+     * @param file the file it was read from.
+     * @return the layer.
+     */
+    private Layer checked(Layer layer, File file) {
+        if (layer.size != DISK_SIZE) {
+            throw new DiskException("Layer " + file + " is for a disk of "
+                + layer.size + " blocks");
+        }
+        return layer;
+    } // checked
+
+    /** Copies one block, or part of it, from the first layer that has it.
+     * @param block the block number.
+     * @param within the offset within the block of the first byte.
+     * @param buffer where to put the bytes.
+     * @param offset the index in buffer of the first byte.
+     * @param length the number of bytes.
+     */
+    private void readBlock(int block, int within, byte[] buffer, int offset, int length) {
+        byte[] data = overlay.get(block);
+        for (int i = 0; data == null && i < chain.size(); i++) {
+            data = chain.get(i).get(block);
+        }
+        if (data != null) {
+            System.arraycopy(data, within, buffer, offset, length);
+        } else if (baseChannel != null) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, length);
+            long position = (long) block * BLOCK_SIZE + within;
+            try {
+                while (bytes.hasRemaining()
+                        && baseChannel.read(bytes, position + bytes.position() - offset) >= 0) {
+                }
+            } catch (IOException e) {
+                throw new DiskException("Cannot read base image " + base + ": " + e);
+            }
+        } else {
+            Arrays.fill(buffer, offset, offset + length, (byte) 0);
+        }
+    } // readBlock
+
+    /** Copies bytes out of the layers.
+     * @see Disk#getBytes(long, byte[], int, int)
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int within = (int) (position % BLOCK_SIZE);
+            int n = Math.min(length, BLOCK_SIZE - within);
+            readBlock((int) (position / BLOCK_SIZE), within, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    } // getBytes(long, byte[], int, int)
+
+    /** Copies bytes into the overlay, copying each block up from the layers
+     * below the first time it is changed.
+     * @see Disk#putBytes(long, byte[], int, int)
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        long start = position;
+        int total = length;
+        while (length > 0) {
+            int within = (int) (position % BLOCK_SIZE);
+            int n = Math.min(length, BLOCK_SIZE - within);
+            byte[] data = overlay.computeIfAbsent((int) (position / BLOCK_SIZE), b -> {
+                byte[] copy = new byte[BLOCK_SIZE];
+                readBlock(b, 0, copy, 0, BLOCK_SIZE);
+                return copy;
+            });
+            System.arraycopy(buffer, offset, data, within, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+        markDirty(start, total);
+    } // putBytes(long, byte[], int, int)
+
+    /** Writes the overlay file if any block has changed. */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        if (!changed.isEmpty()) {
+            try {
+                writeOverlay(false);
+                recordSave(changed.cardinality());
+                changed.clear();
+            } finally {
+                // Anything not written stays dirty for the next attempt.
+                markDirty(changed);
+            }
+        }
+    } // save()
+
+    /** Writes the overlay file and waits until it is on stable storage.
+     * @see Disk#force(int, int)
+     */
+    protected void force(int start, int count) throws IOException {
+        writeOverlay(true);
+        recordSave(count);
+    } // force(int, int)
+
+    /** Writes every changed block to the overlay file.
+     * @param sync if true, wait until the file is on stable storage.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeOverlay(boolean sync) throws IOException {
+        synchronized (saving) {
+            Map<Integer, byte[]> blocks = new HashMap<>();
+            overlay.forEach((b, data) -> blocks.put(b, data.clone()));
+            new Layer(DISK_SIZE, parent, blocks).write(overlayFile, sync);
+        }
+    } // writeOverlay
+
+    /** Saves the disk, prints statistics, and reports the size of the
+     * overlay.
+     */
+    public void flush() {
+        super.flush();
+        System.out.printf("CloneDisk: %d blocks in %s over %s and %d snapshots\n",
+            overlay.size(), overlayFile, baseChannel == null ? "no base" : base, chain.size());
+    } // flush()
+} // CloneDisk
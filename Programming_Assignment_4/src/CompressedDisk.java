@@ -0,0 +1,315 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A FastDisk whose image is stored compressed.
+ * <p>
+ * Most of a disk is empty, and most of what is not is short text, so the
+ * plain DISK file is mostly zeros. This disk keeps its image in the file
+ * <samp>DISK.z</samp> instead: the disk is cut into groups of GROUP_BLOCKS
+ * blocks, each group is compressed on its own with {@link Lz}, and an index
+ * at the front of the file gives the offset of each group. A group that is
+ * all zeros takes no space at all.
+ * <p>
+ * The file is small, so it is read whole when the disk is created, but a
+ * group is only decompressed the first time one of its bytes is used.
+ * Saving recompresses the groups that changed and writes a new DISK.z,
+ * which replaces the old one only once it is complete, so a crash leaves
+ * either the old image or the new one. Since every save rewrites the file,
+ * this disk suits small disks, whose compressed image is a few kilobytes.
+ * <p>
+ * If there is no DISK.z but there is a DISK file of the right size, the
+ * DISK file is compressed, and the disk is saved to DISK.z from then on.
+ * <p>
+ * Select this disk by name when booting:
+ * <pre>
+ *    java Boot 10 CompressedDisk 1000 Shell
+ * </pre>
+ * @see Lz
+ * @see LazyDisk
+ */
+public class CompressedDisk extends FastDisk {
+    /** The number of blocks compressed together. */
+    public static final int GROUP_BLOCKS = 64;
+
+    /** The number of bytes in a group. */
+    public static final int GROUP_SIZE = GROUP_BLOCKS * BLOCK_SIZE;
+
+    /** Identifies a compressed image ("DSKZ"). */
+    private static final int MAGIC = 0x44534B5A;
+
+    /** The version of the image format. */
+    private static final int VERSION = 1;
+
+    /** The number of bytes before the index. */
+    private static final int HEADER = 20;
+
+    /** The compressed image. */
+    private final File packedImage = new File(image.getPath() + ".z");
+
+    /** The compressed contents of each group; empty for a group of zeros. */
+    private final byte[][] packed;
+
+    /** The decompressed groups; null for a group not yet decompressed. */
+    private final AtomicReferenceArray<byte[]> groups;
+
+    /** Held while a group is being decompressed, so each is done only once. */
+    private final Object unpacking = new Object();
+
+    /** Held while groups are recompressed and the image written. */
+    private final Object packing = new Object();
+
+    /** The number of groups decompressed. */
+    private final AtomicInteger unpacked = new AtomicInteger();
+
+    /** The size of the last image written or read, in bytes. */
+    private long imageBytes;
+
+    /** Creates a new CompressedDisk.
+     * @param size the total size of this disk, in blocks.
+     */
+    public CompressedDisk(int size) {
+        super(size, false);
+        int count = (int) (((long) size + GROUP_BLOCKS - 1) / GROUP_BLOCKS);
+        packed = new byte[count][];
+        groups = new AtomicReferenceArray<>(count);
+        boolean restored = true;
+        try {
+            if (packedImage.exists()) {
+                readImage();
+                System.out.println("Restored " + imageBytes + " bytes from file "
+                    + packedImage + ", decompressing on demand");
+            } else if (image.exists()) {
+                checkImageSize();
+                compressImage();
+                System.out.println("Compressed file DISK into " + imageBytes + " bytes");
+            } else {
+                System.out.println("Creating new disk");
+                restored = false;
+                for (int g = 0; g < count; g++) {
+                    packed[g] = new byte[0];
+                }
+            }
+        } catch (IOException e) {
+            throw new DiskException("Cannot read file " + packedImage + ": " + e);
+        }
+        initFreeMap(restored);
+    } // CompressedDisk
+
+    /** Reads DISK.z into packed.
+     * @throws IOException if the file cannot be read.
+     */
+    private void readImage() throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(packedImage)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new DiskException("File " + packedImage + " is not a compressed disk");
+            }
+            if (in.readInt() != DISK_SIZE || in.readInt() != GROUP_BLOCKS
+                    || in.readInt() != packed.length) {
+                throw new DiskException("File " + packedImage + " is the wrong size");
+            }
+            long[] offsets = new long[packed.length + 1];
+            for (int g = 0; g <= packed.length; g++) {
+                offsets[g] = in.readLong();
+            }
+            for (int g = 0; g < packed.length; g++) {
+                packed[g] = new byte[(int) (offsets[g + 1] - offsets[g])];
+                in.readFully(packed[g]);
+            }
+            imageBytes = HEADER + 8L * offsets.length + offsets[packed.length];
+        }
+    } // readImage
+
+    /** Reads the plain DISK file and compresses it into packed.
+     * @throws IOException if the file cannot be read.
+     */
+    private void compressImage() throws IOException {
+        byte[] group = new byte[GROUP_SIZE];
+        long total = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(image))) {
+            for (int g = 0; g < packed.length; g++) {
+                int length = groupLength(g);
+                in.readNBytes(group, 0, length);
+                packed[g] = pack(group, length);
+                total += packed[g].length;
+            }
+        }
+        imageBytes = HEADER + 8L * (packed.length + 1) + total;
+    } // compressImage
+
+    /** Returns the number of bytes in a group; the last may be short.
+     * @param g the group number.
+     * @return the length.
+     */
+    private int groupLength(int g) {
+        return (int) Math.min(GROUP_SIZE, (long) DISK_SIZE * BLOCK_SIZE - (long) g * GROUP_SIZE);
+    } // groupLength
+
+    /** Compresses a group.
+     * @param group the contents of the group.
+     * @param length the number of bytes in the group.
+     * @return the compressed bytes; empty if the group is all zeros.
+     */
+    private static byte[] pack(byte[] group, int length) {
+        int i = 0;
+        while (i < length && group[i] == 0) {
+            i++;
+        }
+        if (i == length) {
+            return new byte[0];
+        }
+        byte[] out = new byte[Lz.maxCompressedLength(length)];
+        int n = Lz.compress(group, 0, length, out, 0);
+        byte[] result = new byte[n];
+        System.arraycopy(out, 0, result, 0, n);
+        return result;
+    } // pack
+
+    /** Returns a group, decompressing it if need be.
+     * @param g the group number.
+     * @return the decompressed group.
+     */
+    private byte[] group(int g) {
+        byte[] group = groups.get(g);
+        if (group != null) {
+            return group;
+        }
+        synchronized (unpacking) {
+            group = groups.get(g);
+            if (group == null) {
+                group = new byte[groupLength(g)];
+                byte[] bytes = packed[g];
+                if (bytes.length > 0) {
+                    try {
+                        Lz.decompress(bytes, 0, bytes.length, group, 0, group.length);
+                    } catch (IllegalArgumentException e) {
+                        throw new DiskException("Group " + g + " of " + packedImage
+                            + ": " + e.getMessage());
+                    }
+                }
+                groups.set(g, group);
+                unpacked.incrementAndGet();
+            }
+            return group;
+        }
+    } // group
+
+    /** Copies bytes out of the groups, decompressing them as needed.
+     * @see Disk#getBytes(long, byte[], int, int)
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int within = (int) (position % GROUP_SIZE);
+            int n = Math.min(length, GROUP_SIZE - within);
+            System.arraycopy(group((int) (position / GROUP_SIZE)), within, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    } // getBytes(long, byte[], int, int)
+
+    /** Copies bytes into the groups, decompressing them as needed, and
+     * remembers the blocks they touch.
+     * @see Disk#putBytes(long, byte[], int, int)
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        long start = position;
+        int total = length;
+        while (length > 0) {
+            int within = (int) (position % GROUP_SIZE);
+            int n = Math.min(length, GROUP_SIZE - within);
+            System.arraycopy(buffer, offset, group((int) (position / GROUP_SIZE)), within, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+        markDirty(start, total);
+    } // putBytes(long, byte[], int, int)
+
+    /** Recompresses the groups that changed and writes a new DISK.z. */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        try {
+            writeImage(changed, false);
+            changed.clear();
+        } finally {
+            // Anything not written stays dirty for the next attempt.
+            markDirty(changed);
+        }
+    } // save()
+
+    /** Recompresses the groups holding a run of blocks, writes a new DISK.z
+     * and waits until it is on stable storage.
+     * @see Disk#force(int, int)
+     */
+    protected void force(int start, int count) throws IOException {
+        BitSet blocks = new BitSet();
+        blocks.set(start, start + count);
+        writeImage(blocks, true);
+    } // force(int, int)
+
+    /** Recompresses the groups holding some blocks, and writes the whole
+     * image to a new file that then replaces DISK.z.
+     * @param blocks the blocks that changed.
+     * @param sync if true, wait until the new file is on stable storage.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeImage(BitSet blocks, boolean sync) throws IOException {
+        synchronized (packing) {
+            for (int b = blocks.nextSetBit(0); b >= 0;
+                    b = blocks.nextSetBit((b / GROUP_BLOCKS + 1) * GROUP_BLOCKS)) {
+                int g = b / GROUP_BLOCKS;
+                packed[g] = pack(group(g), groupLength(g));
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER + 8 * (packed.length + 1));
+            header.putInt(MAGIC).putInt(VERSION).putInt(DISK_SIZE)
+                .putInt(GROUP_BLOCKS).putInt(packed.length);
+            long offset = 0;
+            for (byte[] bytes : packed) {
+                header.putLong(offset);
+                offset += bytes.length;
+            }
+            header.putLong(offset).flip();
+            File temp = new File(packedImage.getPath() + ".new");
+            try (FileChannel channel = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                for (byte[] bytes : packed) {
+                    ByteBuffer b = ByteBuffer.wrap(bytes);
+                    while (b.hasRemaining()) {
+                        channel.write(b);
+                    }
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            }
+            Files.move(temp.toPath(), packedImage.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            imageBytes = header.limit() + offset;
+            recordSave(blocks.cardinality());
+        }
+    } // writeImage
+
+    /** Saves the disk, prints statistics, and reports how well the image
+     * compressed.
+     */
+    public void flush() {
+        super.flush();
+        long raw = (long) DISK_SIZE * BLOCK_SIZE;
+        System.out.printf("CompressedDisk: image %d bytes (%.2f%% of %d),"
+            + " %d of %d groups decompressed\n",
+            imageBytes, 100.0 * imageBytes / raw, raw, unpacked.get(), packed.length);
+    } // flush()
+} // CompressedDisk
@@ -0,0 +1,364 @@
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The console, shared by every process and buffered for each.
+ * <p>
+ * Printing straight to System.out makes every process take the lock of
+ * one PrintStream, and flush it, for every piece of output. Instead, each
+ * process writes into a {@link Buffer} of its own, which takes no lock
+ * that any other process wants. When a buffer holds a complete line it
+ * hands everything up to the last newline to a queue, and a single
+ * <em>console writer</em> thread writes the queue to the real standard
+ * output, in the order the pieces were handed in, flushing only when the
+ * queue runs dry. The queue takes no lock either; the writer parks when
+ * it is empty, and the process that next hands it a piece unparks it.
+ * A line is handed over whole, so lines from different processes never
+ * interleave; only a line longer than the buffer is split.
+ * <p>
+ * While the console is open System.out is replaced by a stream that
+ * writes wherever the process printing sends its output: its buffer, or,
+ * if its standard output has been redirected, there instead. So a
+ * process's direct prints stay in order with its system calls, and follow
+ * them into a pipe. Threads that are not processes share one buffer of
+ * their own. Flushing System.out, reading
+ * the console and shutting down all <em>drain</em> the console: the
+ * caller's partial line is handed over, and the caller waits until
+ * everything handed over so far has been written.
+ * <p>
+ * The size of each buffer is set by the <samp>console.bufferSize</samp>
+ * system property, in bytes (8192 by default); the Kernel does not use a
+ * Console at all if it is zero.
+ *
+ * @see Kernel#SYSCALL_OUTPUT
+ * @see Kernel#OUTPUT_BYTES
+ */
+public class Console {
+    /** The default size of a buffer, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** Tells the writer to stop. */
+    private static final byte[] STOP = new byte[0];
+
+    /** The number of bytes a buffer holds before it is handed over anyway. */
+    private final int bufferSize;
+
+    /** The System.out this console replaced. */
+    private final PrintStream original;
+
+    /** The real standard output, written only by the writer thread. */
+    private final OutputStream device =
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+
+    /** Pieces of output handed over and not yet written. */
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+
+    /** True while the writer is parked, or about to park. */
+    private volatile boolean idle;
+
+    /** Finds where the process running on the current thread prints. */
+    private final Supplier<OutputStream> current;
+
+    /** The buffer of threads that are not processes. */
+    private final Buffer shared = new Buffer();
+
+    /** The thread that writes the queue to the device. */
+    private final Thread writer = new Thread(this::run, "CONSOLE");
+
+    /** Runs at exit, to write what is left if the system exits early. */
+    private final Thread hook = new Thread(this::drain, "CONSOLE-EXIT");
+
+    /** The number of pieces handed over. */
+    private final AtomicLong handed = new AtomicLong();
+
+    /** The number of pieces written; changed only by the writer. */
+    private volatile long written;
+
+    /** The number of pieces written and flushed to the device. */
+    private long flushed;
+
+    /** The number of pieces a thread draining the console waits for. */
+    private volatile long wanted;
+
+    /** Held while draining, and by the writer to report a flush. */
+    private final Object flushing = new Object();
+
+    /** The number of writes to buffers, for statistics. */
+    private final LongAdder writes = new LongAdder();
+
+    /** The number of bytes written to buffers, for statistics. */
+    private final LongAdder bytes = new LongAdder();
+
+    /** The number of times the device was flushed, for statistics. */
+    private volatile long flushes;
+
+    /**
+     * Set once writing to the device has failed, for example because
+     * standard output is a pipe whose reader has gone; the writer then
+     * discards the rest of the output.
+     */
+    private volatile boolean failed;
+
+    /////////////////////////////////////////// Inner classes
+
+    /**
+     * The console output of one process, not yet handed to the writer.
+     * Only the process itself normally writes to its buffer, so its lock
+     * is not contended.
+     */
+    public class Buffer extends OutputStream {
+        /** The bytes held. */
+        private byte[] bytes = new byte[128];
+
+        /** The number of bytes held. */
+        private int count;
+
+        /**
+         * Writes bytes, handing over every complete line.
+         *
+         * @param data   the bytes.
+         * @param offset the index in data of the first byte.
+         * @param length the number of bytes.
+         */
+        public synchronized void write(byte[] data, int offset, int length) {
+            writes.increment();
+            Console.this.bytes.add(length);
+            int end = offset + length;
+            int line = end;
+            while (line > offset && data[line - 1] != '\n') {
+                line--;
+            }
+            if (line > offset) {
+                // Hand over the held bytes and the complete lines together.
+                byte[] piece = new byte[count + line - offset];
+                System.arraycopy(bytes, 0, piece, 0, count);
+                System.arraycopy(data, offset, piece, count, line - offset);
+                count = 0;
+                hand(piece);
+                offset = line;
+            }
+            if (count + end - offset > bytes.length) {
+                byte[] bigger = new byte[Math.max(2 * bytes.length, count + end - offset)];
+                System.arraycopy(bytes, 0, bigger, 0, count);
+                bytes = bigger;
+            }
+            System.arraycopy(data, offset, bytes, count, end - offset);
+            count += end - offset;
+            if (count >= bufferSize) {
+                flush();
+            }
+        } // Buffer.write
+
+        /** @see OutputStream#write(int) */
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        } // Buffer.write(int)
+
+        /** Hands over any partial line. */
+        public synchronized void flush() {
+            if (count > 0) {
+                byte[] piece = new byte[count];
+                System.arraycopy(bytes, 0, piece, 0, count);
+                count = 0;
+                hand(piece);
+            }
+        } // Buffer.flush
+    } // class Console.Buffer
+
+    /** The stream System.out writes to: wherever the caller prints. */
+    private class Router extends OutputStream {
+        /** @see OutputStream#write(int) */
+        public void write(int b) throws IOException {
+            caller().write(b);
+        } // Router.write(int)
+
+        /** @see OutputStream#write(byte[], int, int) */
+        public void write(byte[] data, int offset, int length) throws IOException {
+            caller().write(data, offset, length);
+        } // Router.write(byte[], int, int)
+
+        /** Drains the console, so that whatever was printed is visible. */
+        public void flush() {
+            drain();
+        } // Router.flush
+    } // class Console.Router
+
+    /////////////////////////////////////////// Constructors
+
+    /**
+     * Opens the console: starts the writer and replaces System.out.
+     *
+     * @param bufferSize the size of each buffer, in bytes.
+     * @param current    finds where the process running on the current
+     *                   thread prints: its buffer, or the stream its output
+     *                   is redirected to. Returns null for other threads.
+     */
+    public Console(int bufferSize, Supplier<OutputStream> current) {
+        this.bufferSize = bufferSize;
+        this.current = current;
+        original = System.out;
+        original.flush();
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(hook);
+        System.setOut(new PrintStream(new Router(), false));
+    } // Console
+
+    /////////////////////////////////////////// Methods
+
+    /**
+     * Returns a new buffer, for a process.
+     *
+     * @return the buffer.
+     */
+    public Buffer buffer() {
+        return new Buffer();
+    } // buffer()
+
+    /**
+     * Returns where the caller prints: the buffer or redirected output of
+     * its process, or the shared buffer.
+     *
+     * @return the stream.
+     */
+    private OutputStream caller() {
+        OutputStream out = current.get();
+        return out == null ? shared : out;
+    } // caller
+
+    /**
+     * Gives a piece of output to the writer.
+     *
+     * @param piece the bytes.
+     */
+    private void hand(byte[] piece) {
+        // Counted first, so that a drain that sees the count waits for it.
+        handed.incrementAndGet();
+        queue.add(piece);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    } // hand
+
+    /**
+     * Hands over the caller's partial line, and waits until everything
+     * handed over so far is on the device.
+     */
+    public void drain() {
+        try {
+            caller().flush();
+        } catch (IOException e) {
+            // Nothing was held for a redirected stream.
+        }
+        long target = handed.get();
+        synchronized (flushing) {
+            if (target > wanted) {
+                wanted = target;
+            }
+            while (flushed < target && writer.isAlive() && !failed) {
+                try {
+                    flushing.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    } // drain
+
+    /** Writes the queue to the device until told to stop. */
+    private void run() {
+        for (;;) {
+            byte[] piece = queue.poll();
+            if (piece == null) {
+                // Say so before looking again, so that a piece handed over
+                // meanwhile either is seen or unparks this thread.
+                idle = true;
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+            if (piece != STOP) {
+                try {
+                    if (!failed) {
+                        device.write(piece);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    // Counted even if lost, so that nobody waits for it.
+                    written++;
+                }
+            }
+            if (piece == STOP || failed || queue.isEmpty()
+                    || written >= wanted && wanted > flushed) {
+                try {
+                    if (!failed) {
+                        device.flush();
+                        flushes++;
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    synchronized (flushing) {
+                        flushed = written;
+                        flushing.notifyAll();
+                    }
+                }
+            }
+            if (piece == STOP) {
+                return;
+            }
+        }
+    } // run
+
+    /**
+     * Gives up on the device after it has failed, reporting why once.
+     *
+     * @param e the failure.
+     */
+    private void fail(IOException e) {
+        if (!failed) {
+            failed = true;
+            original.println("Console: " + e + "; discarding further output");
+        }
+    } // fail
+
+    /**
+     * Drains the console, stops the writer and puts back the original
+     * System.out.
+     */
+    public void close() {
+        drain();
+        System.setOut(original);
+        queue.add(STOP);
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // Already shutting down.
+        }
+    } // close
+
+    /**
+     * Returns a summary of the use of the console.
+     *
+     * @return the statistics.
+     */
+    public String statistics() {
+        return String.format("Console: %d writes, %d bytes in %d pieces;"
+                + " %d device flushes; buffers of %d bytes",
+                writes.sum(), bytes.sum(), handed.get(), flushes, bufferSize);
+    } // statistics
+} // Console
@@ -1,16 +1,17 @@
 /* $Id: Count.java,v 1.4 2002/11/23 13:49:42 solomon Exp $ */
 
 /** A very tiny example MiniKernel program.
- * Count down from 10 to 1.
+ * Count down from 10 to 1, or from the number given as an argument.
  * @author Douglas Thain 
  * @see Kernel
  */
 public class Count {
     /** The main program.
-     * @param args ignored.
+     * @param args the number to count down from, if any.
      */
     public static void main(String args[]) {
-        for (int i = 10; i > 0; i--) {
+        int from = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        for (int i = from; i > 0; i--) {
             Library.output("Counting: " + i + "\n");
         }
         Library.output("*** Blast off ***!\n");
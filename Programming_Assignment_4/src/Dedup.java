@@ -0,0 +1,290 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Content-addressed sharing of data blocks between files.
+ * <p>
+ * When the <samp>kernel.dedup</samp> system property is true, every whole
+ * block the Kernel writes to a file is hashed. If a block with the same
+ * contents has already been written, and a byte-for-byte comparison agrees,
+ * the file's block is remapped to the existing block instead of being
+ * written, and the block it had is released. A block mapped by more than
+ * one file has a reference count. Writing to a shared block, in whole or in
+ * part, first gives the file a copy of its own (<em>copy on write</em>),
+ * and deleting a file releases each of its blocks, freeing only those no
+ * other file still maps.
+ * <p>
+ * The content index covers the blocks written since the system started;
+ * blocks already on the disk are not hashed at boot. The reference counts
+ * are rebuilt at boot from the extents of every file, which reads no data
+ * blocks. A Dedup is also made for a disk with shared blocks when the
+ * property is off, so that copy on write and reference counting still
+ * protect them, though no new blocks are shared.
+ * <p>
+ * A remapped block is journaled as a REMAP record. The head block of a
+ * file still identifies it after its first block has been remapped, even
+ * though the head block itself may be freed and given to another file's
+ * data; the Kernel never makes such a block the head of a new file.
+ * <p>
+ * Every write goes through one lock, so that a block cannot become shared
+ * between deciding to write it in place and writing it.
+ *
+ * @see Kernel
+ * @see Journal#logRemap(int, int, int)
+ */
+public class Dedup {
+    /** The approximate memory used by one entry of a HashMap, in bytes. */
+    private static final int ENTRY_BYTES = 64;
+
+    /** The disk. */
+    private final Disk disk;
+
+    /** The cache that blocks are read and written through. */
+    private final BlockCache cache;
+
+    /** The journal that remapped blocks are logged in. */
+    private final Journal journal;
+
+    /** True if new blocks are shared; false to only protect shared ones. */
+    private final boolean sharing;
+
+    /** The block holding each content hash in the index. */
+    private final Map<Long, Integer> byHash = new HashMap<>();
+
+    /** The content hash of each block in the index. */
+    private final Map<Integer, Long> hashes = new HashMap<>();
+
+    /** The reference count of each block mapped more than once. */
+    private final Map<Integer, Integer> refs = new HashMap<>();
+
+    /** A count of whole blocks written, for statistics. */
+    private long writes;
+
+    /** A count of blocks shared instead of written, for statistics. */
+    private long shared;
+
+    /** A count of shared blocks copied before a write, for statistics. */
+    private long copies;
+
+    /**
+     * Creates the deduplication state for a mounted disk, counting the
+     * references to every block.
+     *
+     * @param disk    the disk.
+     * @param cache   the cache in front of it.
+     * @param journal its journal.
+     * @param sharing true to share new blocks.
+     */
+    public Dedup(Disk disk, BlockCache cache, Journal journal, boolean sharing) {
+        this.disk = disk;
+        this.cache = cache;
+        this.journal = journal;
+        this.sharing = sharing;
+        if (disk.sharedBlocks() > 0) {
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (Inode inode : disk.inodes()) {
+                for (int i = 0; i < inode.extents(); i++) {
+                    int start = inode.extentStart(i);
+                    for (int b = start; b < start + inode.extentLength(i); b++) {
+                        counts.merge(b, 1, Integer::sum);
+                    }
+                }
+            }
+            counts.forEach((b, n) -> {
+                if (n > 1) {
+                    refs.put(b, n);
+                }
+            });
+        }
+    } // Dedup
+
+    /**
+     * Writes part of one block of a file, sharing or copying blocks as
+     * needed.
+     *
+     * @param inode   the file.
+     * @param logical the index of the block within the file.
+     * @param within  the offset within the block of the first byte.
+     * @param buffer  the data to write.
+     * @param start   the index in buffer of the first byte.
+     * @param length  the number of bytes to write.
+     * @return false if a copy was needed and the disk is full.
+     */
+    public synchronized boolean write(Inode inode, int logical, int within,
+            byte[] buffer, int start, int length) {
+        int block = inode.blockAt(logical);
+        if (length < Disk.BLOCK_SIZE) {
+            block = writable(inode, logical, block, true);
+            if (block == -1) {
+                return false;
+            }
+            unindex(block);
+            cache.write(block, within, buffer, start, length);
+            return true;
+        }
+        writes++;
+        long hash = hash(buffer, start);
+        Integer match = sharing ? byHash.get(hash) : null;
+        if (match != null && same(match, buffer, start)) {
+            if (match != block) {
+                if (journal.logRemap(inode.head(), logical, match) < 0) {
+                    return false;
+                }
+                refs.put(match, references(match) + 1);
+                release(block);
+                inode.remap(logical, match);
+                shared++;
+            }
+            return true;
+        }
+        block = writable(inode, logical, block, false);
+        if (block == -1) {
+            return false;
+        }
+        unindex(block);
+        cache.write(block, 0, buffer, start, length);
+        if (sharing && !byHash.containsKey(hash)) {
+            byHash.put(hash, block);
+            hashes.put(block, hash);
+        }
+        return true;
+    } // write
+
+    /**
+     * Releases every block of a deleted file.
+     *
+     * @param inode the file.
+     */
+    public synchronized void delete(Inode inode) {
+        for (int i = 0; i < inode.extents(); i++) {
+            int start = inode.extentStart(i);
+            for (int b = start; b < start + inode.extentLength(i); b++) {
+                release(b);
+            }
+        }
+    } // delete
+
+    /** Forgets every block, after the disk is formatted. */
+    public synchronized void clear() {
+        byHash.clear();
+        hashes.clear();
+        refs.clear();
+    } // clear
+
+    /**
+     * Returns a summary of how much deduplication saved, and the memory used
+     * by its tables.
+     *
+     * @return the statistics.
+     */
+    public synchronized String statistics() {
+        long logical = 0;
+        for (Inode inode : disk.inodes()) {
+            logical += inode.blocks();
+        }
+        long extra = 0;
+        for (int n : refs.values()) {
+            extra += n - 1;
+        }
+        long physical = logical - extra;
+        return String.format(
+                "Dedup: %d block writes, %d shared, %d copied on write;"
+                        + " %d blocks stored in %d (ratio %.2f);"
+                        + " %d hashes and %d counts, about %d KB",
+                writes, shared, copies, logical, physical,
+                physical == 0 ? 1.0 : (double) logical / physical,
+                byHash.size(), refs.size(),
+                (2L * byHash.size() + refs.size()) * ENTRY_BYTES / 1024);
+    } // statistics
+
+    /**
+     * Makes a block of a file safe to write in place: if it is shared, the
+     * file is given a copy of its own.
+     *
+     * @param inode   the file.
+     * @param logical the index of the block within the file.
+     * @param block   the disk block it maps to now.
+     * @param copy    true if the old contents are needed.
+     * @return the block to write, or -1 if the disk is full.
+     */
+    private int writable(Inode inode, int logical, int block, boolean copy) {
+        int n = references(block);
+        if (n == 1) {
+            return block;
+        }
+        int fresh = disk.allocateBlock();
+        if (fresh == -1) {
+            return -1;
+        }
+        if (journal.logRemap(inode.head(), logical, fresh) < 0) {
+            disk.freeRun(fresh, 1);
+            return -1;
+        }
+        if (copy) {
+            byte[] data = new byte[Disk.BLOCK_SIZE];
+            cache.read(block, data);
+            cache.write(fresh, data);
+        }
+        setReferences(block, n - 1);
+        inode.remap(logical, fresh);
+        copies++;
+        return fresh;
+    } // writable
+
+    /**
+     * Drops one reference to a block, and frees it if that was the last.
+     *
+     * @param block the block.
+     */
+    private void release(int block) {
+        int n = references(block);
+        if (n > 1) {
+            setReferences(block, n - 1);
+            return;
+        }
+        unindex(block);
+        cache.invalidate(block);
+        disk.freeRun(block, 1);
+    } // release
+
+    /** Returns the number of files mapping a block in use. */
+    private int references(int block) {
+        return refs.getOrDefault(block, 1);
+    } // references
+
+    /** Sets the number of files mapping a block. */
+    private void setReferences(int block, int n) {
+        if (n > 1) {
+            refs.put(block, n);
+        } else {
+            refs.remove(block);
+        }
+    } // setReferences
+
+    /** Removes a block from the content index, before it changes. */
+    private void unindex(int block) {
+        Long hash = hashes.remove(block);
+        if (hash != null) {
+            byHash.remove(hash);
+        }
+    } // unindex
+
+    /** Tells whether a block holds the same bytes as part of a buffer. */
+    private boolean same(int block, byte[] buffer, int start) {
+        byte[] data = new byte[Disk.BLOCK_SIZE];
+        cache.read(block, data);
+        return Arrays.equals(data, 0, Disk.BLOCK_SIZE,
+                buffer, start, start + Disk.BLOCK_SIZE);
+    } // same
+
+    /** Returns a 64-bit hash of a block of bytes. */
+    private static long hash(byte[] buffer, int start) {
+        ByteBuffer words = ByteBuffer.wrap(buffer, start, Disk.BLOCK_SIZE);
+        long h = 0;
+        while (words.hasRemaining()) {
+            h = Long.rotateLeft(h ^ words.getLong() * 0x9E3779B97F4A7C15L, 29)
+                    * 0xBF58476D1CE4E5B9L;
+        }
+        return h ^ h >>> 32;
+    } // hash
+} // Dedup
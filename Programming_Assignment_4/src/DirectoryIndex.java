@@ -0,0 +1,189 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An in-memory index from file names to block numbers.
+ * <p>
+ * The index is an open-addressing hash table with linear probing.
+ * Each slot holds an immutable entry pairing a name with its block number,
+ * and deleted slots are marked with a tombstone so that probe sequences
+ * stay intact. The table doubles whenever live entries plus tombstones fill
+ * half of it.
+ * <p>
+ * Lookups take no lock. The slots are an AtomicReferenceArray, so a reader
+ * always sees either a whole entry or none, and a resize builds a new table
+ * and publishes it in one volatile write. Changes to the index are
+ * serialized by the index's own monitor.
+ *
+ * @see Disk
+ */
+public class DirectoryIndex {
+    /** One name and the block it maps to. */
+    private static final class Entry {
+        /** The file name. */
+        final String name;
+
+        /** The block number of the file. */
+        final int block;
+
+        /** Creates a new entry. */
+        Entry(String name, int block) {
+            this.name = name;
+            this.block = block;
+        } // Entry
+    } // class DirectoryIndex.Entry
+
+    /** Marker for a slot whose entry has been removed. */
+    private static final Entry TOMBSTONE = new Entry("<deleted>", -1);
+
+    /** The smallest table the index will use. */
+    private static final int MIN_CAPACITY = 16;
+
+    /** The entries, indexed by slot; null slots are empty. */
+    private volatile AtomicReferenceArray<Entry> table;
+
+    /** The number of live entries. */
+    private volatile int size;
+
+    /** The number of tombstones. */
+    private int deleted;
+
+    /**
+     * Creates a new, empty index.
+     *
+     * @param expected the number of files the index should hold without
+     *                 growing.
+     */
+    public DirectoryIndex(int expected) {
+        table = new AtomicReferenceArray<>(capacityFor(expected));
+    } // DirectoryIndex
+
+    /**
+     * Returns the block number for a file name.
+     * This method does not lock and may be called while the index is being
+     * changed; it sees the index either before or after each change.
+     *
+     * @param name the file name.
+     * @return the block number, or -1 if there is no such file.
+     */
+    public int get(String name) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash(name) & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return -1;
+            }
+            if (e != TOMBSTONE && e.name.equals(name)) {
+                return e.block;
+            }
+        }
+    } // get
+
+    /**
+     * Adds a file name to the index.
+     *
+     * @param name  the file name.
+     * @param block the block number of the file.
+     * @return false if the name was already in the index, in which case the
+     *         index is unchanged.
+     */
+    public synchronized boolean put(String name, int block) {
+        if (get(name) != -1) {
+            return false;
+        }
+        if (2 * (size + deleted + 1) > table.length()) {
+            resize(size + 1);
+        }
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        int i = hash(name) & mask;
+        while (t.get(i) != null && t.get(i) != TOMBSTONE) {
+            i = (i + 1) & mask;
+        }
+        if (t.get(i) == TOMBSTONE) {
+            deleted--;
+        }
+        t.set(i, new Entry(name, block));
+        size++;
+        return true;
+    } // put
+
+    /**
+     * Removes a file name from the index.
+     *
+     * @param name the file name.
+     * @return the block number the name mapped to, or -1 if it was not in
+     *         the index.
+     */
+    public synchronized int remove(String name) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash(name) & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return -1;
+            }
+            if (e != TOMBSTONE && e.name.equals(name)) {
+                t.set(i, TOMBSTONE);
+                size--;
+                deleted++;
+                return e.block;
+            }
+        }
+    } // remove
+
+    /** Removes every entry from the index. */
+    public synchronized void clear() {
+        table = new AtomicReferenceArray<>(MIN_CAPACITY);
+        size = 0;
+        deleted = 0;
+    } // clear
+
+    /**
+     * Returns the number of files in the index.
+     *
+     * @return the number of files.
+     */
+    public int size() {
+        return size;
+    } // size
+
+    /**
+     * Rehashes the live entries into a table big enough for the given
+     * number of entries, dropping all tombstones. The new table is filled
+     * before it replaces the old one, so readers never see it half built.
+     */
+    private void resize(int expected) {
+        AtomicReferenceArray<Entry> old = table;
+        AtomicReferenceArray<Entry> t =
+            new AtomicReferenceArray<>(2 * capacityFor(expected));
+        int mask = t.length() - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Entry e = old.get(j);
+            if (e != null && e != TOMBSTONE) {
+                int i = hash(e.name) & mask;
+                while (t.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                t.set(i, e);
+            }
+        }
+        table = t;
+        deleted = 0;
+    } // resize
+
+    /** Returns the smallest power of two at least twice expected. */
+    private static int capacityFor(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expected) {
+            capacity <<= 1;
+        }
+        return capacity;
+    } // capacityFor
+
+    /** Spreads the bits of a String hash code over the whole table. */
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    } // hash
+} // DirectoryIndex
@@ -1,10 +1,11 @@
 /* $Id: Disk.java,v 1.13 2004/03/31 17:36:35 solomon Exp solomon $ */
 
 import java.io.*;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.Arrays;
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * A software simulation of a Disk.
@@ -17,17 +18,17 @@ import java.util.BitSet;
  * You can't modify any more or any less data at a time.
  * <p>
  * To read or write from the disk, call beginRead() or beginWrite().
- * Each of these functions will start the action and return immediately.
- * When the action has been completed, the Disk calls Kernel.interrupt()
- * to let you know the Disk is ready for more.
+ * Each of these functions queues a request and returns immediately.
+ * When a request has been completed, the Disk calls Kernel.interrupt()
+ * with the request, so the kernel can wake up whoever is waiting for it.
+ * The read() and write() methods do both steps for you.
  * <p>
  * It may take a while for the disk to seek from one block to another.
  * Seek time is proportional to the difference in block numbers of the
- * blocks.
- * <p>
- * <b>Warning:</b> Don't call beginRead() or beginWrite() while the
- * disk is busy! If you don't treat
- * the Disk gently, the system will crash! (Just like a real machine!)
+ * blocks. When several requests are queued, the order in which they are
+ * served is decided by a scheduling policy, chosen with the
+ * <samp>disk.scheduler</samp> system property: FCFS (the default), SSTF,
+ * SCAN or CLOOK.
  * <p>
  * This disk saves its contents in the Unix file DISK between runs.
  * Since the file can be large, you should get in the habit of removing it
@@ -37,8 +38,50 @@ import java.util.BitSet;
  */
 
 public class Disk implements Runnable {
-    public byte[] freeMap;
-    public String[] fileTable;
+    /**
+     * The free-space bitmap, one bit per block (set if the block is in use),
+     * 64 blocks to a word. Bits past the end of the disk are always set.
+     * The bitmap is stored on the disk itself, least significant bit first,
+     * starting at byte 0 of block MAP_START.
+     */
+    private final long[] freeMap;
+
+    /**
+     * A summary of freeMap: one bit per word of freeMap, set if every block
+     * in that word is in use. Lets the allocator skip full regions of the
+     * disk 4096 blocks at a time.
+     */
+    private final long[] fullWords;
+
+    /** The block at which the next allocation starts looking (next fit). */
+    private int cursor;
+
+    /** The number of free blocks. */
+    private int freeCount;
+
+    /**
+     * The lock that guards freeMap, fullWords, cursor and freeCount.
+     * It is separate from the disk's own monitor, which guards the request
+     * queue, so allocation never waits behind the disk scheduler.
+     */
+    private final Object allocator = new Object();
+
+    /**
+     * The name of each file, by head block. Kept in a sorted map rather than
+     * an array with a slot per block, so that it grows with the number of
+     * files and not with the size of the disk.
+     */
+    private final ConcurrentSkipListMap<Integer, String> fileTable =
+            new ConcurrentSkipListMap<>();
+
+    /** The inode of each file, by head block. */
+    private final Map<Integer, Inode> inodes = new ConcurrentHashMap<>();
+
+    /**
+     * An index from file names to blocks, kept in sync with fileTable.
+     * Lookups do not lock; changes to the directory lock the index.
+     */
+    private final DirectoryIndex index;
 
     /** The maximum length of a file name in bytes. */
     public static final int FILE_NAME_OFFSET = 100;
@@ -49,40 +92,108 @@ public class Disk implements Runnable {
     /** Total size of this disk, in blocks. */
     public final int DISK_SIZE;
 
+    /** The size of the free-space bitmap, in bytes. */
+    public final int MAP_BYTES;
+
+    /**
+     * The block holding the superblock, which describes the layout of the
+     * disk and where the current directory is.
+     * 
+     * @see Journal
+     */
+    public static final int SUPERBLOCK = 0;
+
+    /** The first block of the free-space bitmap, just after the superblock. */
+    public static final int MAP_START = 1;
+
+    /**
+     * The number of blocks that hold the free-space bitmap. These are never
+     * allocated to files.
+     */
+    public final int MAP_BLOCKS;
+
+    /**
+     * The first block of the metadata journal, just after the bitmap.
+     * Like the rest of the layout, it is replaced by the one recorded in
+     * the superblock when an existing disk is mounted.
+     * 
+     * @see Journal
+     * @see #useLayout(int, int, int)
+     */
+    public int JOURNAL_START;
+
+    /**
+     * The number of blocks in the journal. For a new disk it is taken from
+     * the <samp>disk.journalBlocks</samp> system property, and by default is
+     * a sixty-fourth of the disk, between 8 and 1024 blocks. Zero if the
+     * disk is too small for a journal.
+     */
+    public int JOURNAL_BLOCKS;
+
+    /** The first block of the directory region, just after the journal. */
+    public int DIRECTORY_START;
+
+    /**
+     * The number of blocks in the directory region, which holds two copies
+     * of the directory; an even number. For a new disk it is taken from the
+     * <samp>disk.directoryBlocks</samp> system property, and by default is a
+     * sixteenth of the disk, between 4 and 8192 blocks.
+     */
+    public int DIRECTORY_BLOCKS;
+
+    /**
+     * The first block that may be allocated to files. The superblock,
+     * bitmap, journal and directory come before it.
+     */
+    public int DATA_START;
+
+    /** True if the disk was restored from an existing image. */
+    private boolean restored;
+
+    /** The journal of this disk, set up by loadDisk(). */
+    private Journal journal;
+
+    /** The number of extra references to blocks found at mount. */
+    private long sharedBlocks;
+
     /////////////////////////////////////////// Transient internal state
 
     /** Current location of the read/write head */
     protected int currentBlock = 0;
 
-    /** The data stored on the disk */
+    /** The Unix file that holds the contents of the disk between runs. */
+    protected final File image = new File("DISK");
+
+    /**
+     * The data stored on the disk, or null if a subclass keeps the data
+     * somewhere else.
+     */
     protected byte data[];
 
     /** An indication of whether an I/O operation is currently in progress. */
     protected boolean busy;
 
-    /**
-     * An indication whether the current I/O operation is a write operation.
-     * Only meaningful if busy == true.
-     */
-    private boolean isWriting;
-
     /**
      * The block number to be read/written by the current operation.
      * Only meaningful if busy == true.
      */
     protected int targetBlock;
 
-    /**
-     * Memory buffer to/from which current I/O operation is transferring.
-     * Only meaningful if busy == true.
-     */
-    private byte buffer[];
+    /** Requests submitted by beginRead or beginWrite and not yet started. */
+    private final List<Request> queue = new ArrayList<>();
+
+    /** The scheduling policy: one of FCFS, SSTF, SCAN or CLOOK. */
+    private final String scheduler =
+            System.getProperty("disk.scheduler", "FCFS").toUpperCase();
+
+    /** The direction the head is sweeping, for SCAN. */
+    private boolean ascending = true;
 
     /**
-     * A flag set by beginRead or beginWrite to indicate that a request
-     * has been submitted.
+     * Distance the head has traveled to the edge of the disk during a SCAN
+     * sweep, not yet accounted for by delay().
      */
-    private boolean requestQueued = false;
+    private int sweepDistance;
 
     /** A count of read operations performed, for statistics. */
     protected int readCount;
@@ -90,8 +201,86 @@ public class Disk implements Runnable {
     /** A count of write operations performed, for statistics. */
     protected int writeCount;
 
+    /** Measurements of seeks, queueing and block heat. */
+    protected final DiskTelemetry telemetry;
+
+    /** The Kernel's buffer cache for this disk, if any, for statistics. */
+    private BlockCache cache;
+
+    /**
+     * The blocks changed since they were last saved to the DISK file, one
+     * bit per block. Guarded by itself.
+     */
+    private final long[] dirty;
+
+    /** Serializes saves to the DISK file. */
+    private final Object saveLock = new Object();
+
+    /** A count of bytes stored on the disk, for statistics. */
+    private long bytesStored;
+
+    /** A count of blocks saved to the DISK file, for statistics. */
+    private long blocksSaved;
+
+    /** A count of write calls made to the DISK file, for statistics. */
+    private long savesIssued;
+
+    /** A count of bytes written to the DISK file, for statistics. */
+    private long bytesSaved;
+
     /////////////////////////////////////////// Inner classes
 
+    /**
+     * One read or write request. A request is created by beginRead or
+     * beginWrite, and is marked complete by the kernel's disk interrupt
+     * handler.
+     */
+    public static class Request {
+        /** The block to read or write. */
+        public final int blockNumber;
+
+        /** The memory buffer to or from which the data is transferred. */
+        public final byte[] buffer;
+
+        /** True for a write, false for a read. */
+        public final boolean isWriting;
+
+        /** Set once the disk has finished with this request. */
+        private boolean done;
+
+        /** The System.nanoTime() when the request was queued. */
+        final long queued = System.nanoTime();
+
+        /** Creates a new request. */
+        Request(int blockNumber, byte[] buffer, boolean isWriting) {
+            this.blockNumber = blockNumber;
+            this.buffer = buffer;
+            this.isWriting = isWriting;
+        }
+
+        /** Marks this request complete and wakes up anyone waiting for it. */
+        public synchronized void complete() {
+            done = true;
+            notifyAll();
+        }
+
+        /** Returns true once this request is complete. */
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /** Waits until this request is complete. */
+        public synchronized void await() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    } // class Disk.Request
+
     /**
      * The exception thrown when an illegal operation is attempted on the
      * disk.
@@ -116,38 +305,79 @@ public class Disk implements Runnable {
      * @param size the total size of this disk, in blocks.
      */
     public Disk(int size) {
-        File diskName = new File("DISK");
-        if (diskName.exists()) {
-            if (diskName.length() != size * BLOCK_SIZE) {
-                throw new DiskException(
-                        "File DISK exists but is the wrong size");
-            }
-        }
-        this.DISK_SIZE = size;
-        if (size < 1) {
-            throw new DiskException("A disk must have at least one block!");
-        }
-        int mapSize = new BigDecimal(DISK_SIZE / 8.0).setScale(0, RoundingMode.UP).intValue();
-        freeMap = new byte[mapSize];
-        fileTable = new String[size];
-        // NOTE: the "new" operator always clears the result object to nulls
-        data = new byte[DISK_SIZE * BLOCK_SIZE];
+        this(size, true);
+        checkImageSize();
         try {
-            if (diskName.exists()) {
-                try (FileInputStream is = new FileInputStream("DISK")) {
+            restored = image.exists();
+            if (restored) {
+                try (FileInputStream is = new FileInputStream(image)) {
                     is.read(data);
                     System.out.println("Restored " + data.length + " bytes from file DISK");
                 }
+                readFreeMap();
             } else {
                 System.out.println("Creating new disk");
+                resetFreeMap();
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
+
+    /**
+     * Creates a new Disk without loading its contents.
+     * A subclass that passes <samp>inMemory == false</samp> provides its own
+     * storage by overriding getBytes(), putBytes() and save(). Either way
+     * the subclass must call initFreeMap() once the storage is ready, and
+     * checkImageSize() first if it keeps the disk in the DISK file.
+     * 
+     * @param size     the total size of this disk, in blocks.
+     * @param inMemory if true, allocate an empty in-memory copy of the disk.
+     */
+    protected Disk(int size, boolean inMemory) {
+        this.DISK_SIZE = size;
+        if (size < 1) {
+            throw new DiskException("A disk must have at least one block!");
+        }
+        MAP_BYTES = (DISK_SIZE + 7) / 8;
+        MAP_BLOCKS = (MAP_BYTES + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        // Metadata may use at most half of what the bitmap leaves.
+        int spare = Math.max(0, (size - MAP_START - MAP_BLOCKS) / 2);
+        JOURNAL_START = MAP_START + MAP_BLOCKS;
+        JOURNAL_BLOCKS = Math.min(spare / 2, Integer.getInteger("disk.journalBlocks",
+                Math.max(8, Math.min(1024, size / 64))));
+        DIRECTORY_START = JOURNAL_START + JOURNAL_BLOCKS;
+        DIRECTORY_BLOCKS = Math.min(spare - JOURNAL_BLOCKS, Integer.getInteger(
+                "disk.directoryBlocks", Math.max(4, Math.min(8192, size / 16)))) & ~1;
+        DATA_START = DIRECTORY_START + DIRECTORY_BLOCKS;
+        freeMap = new long[(DISK_SIZE + 63) / 64];
+        fullWords = new long[(freeMap.length + 63) / 64];
+        index = new DirectoryIndex(0);
+        dirty = new long[freeMap.length];
+        telemetry = new DiskTelemetry(size);
+        if (inMemory) {
+            if (size > Integer.MAX_VALUE / BLOCK_SIZE) {
+                throw new DiskException("A disk of " + size
+                        + " blocks does not fit in memory; use LargeDisk");
+            }
+            // NOTE: the "new" operator always clears the result object to nulls
+            data = new byte[DISK_SIZE * BLOCK_SIZE];
+        }
+    }
+
     /////////////////////////////////////////// Methods
 
+    /**
+     * Checks that the DISK file, if there is one, holds exactly this disk.
+     * Called by constructors that use the file.
+     */
+    protected void checkImageSize() {
+        if (image.exists() && image.length() != (long) DISK_SIZE * BLOCK_SIZE) {
+            throw new DiskException("File DISK exists but is the wrong size");
+        }
+    }
+
     /**
      * Saves the contents of this Disk.
      * The contents of this disk will be forced out to a file named
@@ -158,29 +388,283 @@ public class Disk implements Runnable {
     public void flush() {
         try {
             System.out.println("Saving contents to DISK file...");
-            try (FileOutputStream os = new FileOutputStream("DISK")) {
-                os.write(data);
-            }
+            sync();
             System.out.println(readCount + " read operations and "
                     + writeCount + " write operations performed");
+            System.out.println("Head moved " + telemetry.getSeekDistance()
+                    + " blocks (" + scheduling() + " scheduling)");
+            System.out.println(saveStatistics());
+            System.out.println(telemetry.summary());
+            if (cache != null) {
+                System.out.println(cache.statistics());
+            }
+            String prefix = System.getProperty("disk.telemetry");
+            if (prefix != null) {
+                telemetry.writeCsv(prefix);
+                System.out.println("Telemetry written to " + prefix + "-blocks.csv and "
+                        + prefix + "-seeks.csv");
+            }
         } catch (IOException e) {
             System.exit(1);
         }
     }
 
+    /**
+     * Saves the blocks changed since the last save to the DISK file, without
+     * printing anything. Safe to call while the disk is in use.
+     * 
+     * @throws IOException if the file cannot be written.
+     */
+    public void sync() throws IOException {
+        synchronized (saveLock) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the changed blocks of this disk to the DISK file.
+     * Each run of adjacent changed blocks is written with a single
+     * positional write.
+     * 
+     * @throws IOException if the file cannot be written.
+     */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            long length = (long) DISK_SIZE * BLOCK_SIZE;
+            if (file.length() != length) {
+                file.setLength(length);
+            }
+            FileChannel channel = file.getChannel();
+            for (int start = changed.nextSetBit(0); start >= 0;
+                    start = changed.nextSetBit(start)) {
+                int end = changed.nextClearBit(start);
+                ByteBuffer bytes = ByteBuffer.wrap(data,
+                        start * BLOCK_SIZE, (end - start) * BLOCK_SIZE);
+                long position = (long) start * BLOCK_SIZE;
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+                recordSave(end - start);
+                changed.clear(start, end);
+                start = end;
+            }
+        } finally {
+            // Anything not written stays dirty for the next attempt.
+            markDirty(changed);
+        }
+    }
+
+    /**
+     * Marks a range of bytes as changed, so that the blocks holding them are
+     * saved by the next call to save().
+     * 
+     * @param position the byte offset on the disk of the first byte.
+     * @param length   the number of bytes.
+     */
+    protected void markDirty(long position, int length) {
+        int first = (int) (position / BLOCK_SIZE);
+        int end = (int) ((position + length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        synchronized (dirty) {
+            bytesStored += length;
+            for (int b = first; b < end; b++) {
+                dirty[b >>> 6] |= 1L << b;
+            }
+        }
+    }
+
+    /**
+     * Returns the set of blocks changed since the last call, and clears it.
+     * 
+     * @return the changed blocks.
+     */
+    protected BitSet takeDirty() {
+        synchronized (dirty) {
+            BitSet changed = BitSet.valueOf(dirty);
+            Arrays.fill(dirty, 0L);
+            return changed;
+        }
+    }
+
+    /**
+     * Puts back blocks that a save could not write.
+     * 
+     * @param blocks the blocks.
+     */
+    protected void markDirty(BitSet blocks) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        long[] words = blocks.toLongArray();
+        synchronized (dirty) {
+            for (int w = 0; w < words.length; w++) {
+                dirty[w] |= words[w];
+            }
+        }
+    }
+
+    /**
+     * Records one write of a run of blocks to the DISK file, for statistics.
+     * 
+     * @param blocks the number of blocks written.
+     */
+    protected void recordSave(int blocks) {
+        synchronized (dirty) {
+            blocksSaved += blocks;
+            savesIssued++;
+            bytesSaved += (long) blocks * BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of how much data has been saved to the DISK
+     * file compared with how much was written to the disk.
+     * 
+     * @return the statistics.
+     */
+    public String saveStatistics() {
+        synchronized (dirty) {
+            return String.format(
+                    "%d blocks saved in %d writes (%d bytes) for %d bytes"
+                            + " stored; write amplification %.2f",
+                    blocksSaved, savesIssued, bytesSaved, bytesStored,
+                    bytesStored == 0 ? 0.0 : (double) bytesSaved / bytesStored);
+        }
+    }
+
+    /**
+     * Writes a run of blocks to the DISK file now, and waits until they are
+     * on stable storage. Used by the Journal to make a commit durable
+     * without saving anything else.
+     * 
+     * @param start the first block.
+     * @param count the number of blocks.
+     * @throws IOException if the file cannot be written.
+     */
+    protected void force(int start, int count) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(image, "rw")) {
+            long length = (long) DISK_SIZE * BLOCK_SIZE;
+            if (file.length() != length) {
+                file.setLength(length);
+            }
+            FileChannel channel = file.getChannel();
+            ByteBuffer bytes = ByteBuffer.wrap(data, start * BLOCK_SIZE, count * BLOCK_SIZE);
+            long position = (long) start * BLOCK_SIZE;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            channel.force(false);
+            recordSave(count);
+        }
+    }
+
+    /**
+     * Copies bytes out of the disk's storage.
+     * This and putBytes() are the only ways the disk's contents are accessed.
+     * 
+     * @param position the byte offset on the disk of the first byte.
+     * @param buffer   where to put the bytes.
+     * @param offset   the index in buffer of the first byte.
+     * @param length   the number of bytes to copy.
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        System.arraycopy(data, (int) position, buffer, offset, length);
+    }
+
+    /**
+     * Copies bytes into the disk's storage.
+     * Implementations must call markDirty() for the bytes they change, and
+     * only once they have changed them, so that a save that takes the mark
+     * also finds the new bytes.
+     * 
+     * @param position the byte offset on the disk of the first byte.
+     * @param buffer   the bytes to store.
+     * @param offset   the index in buffer of the first byte.
+     * @param length   the number of bytes to copy.
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        System.arraycopy(buffer, offset, data, (int) position, length);
+        markDirty(position, length);
+    }
+
+    /**
+     * Returns the measurements of how this disk has been used. They can be
+     * read at any time.
+     * 
+     * @return the telemetry.
+     */
+    public DiskTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Tells whether this disk was restored from an existing image, rather
+     * than created empty.
+     * 
+     * @return true if the disk was restored.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Replaces the layout of the journal and directory, which was worked
+     * out from the system properties, by the one recorded in the superblock
+     * of the disk being mounted. Called by the journal before the bitmap is
+     * rebuilt.
+     * 
+     * @param journalStart    the first block of the journal.
+     * @param journalBlocks   the number of blocks in the journal.
+     * @param directoryBlocks the number of blocks in the directory region.
+     */
+    void useLayout(int journalStart, int journalBlocks, int directoryBlocks) {
+        JOURNAL_START = journalStart;
+        JOURNAL_BLOCKS = journalBlocks;
+        DIRECTORY_START = journalStart + journalBlocks;
+        DIRECTORY_BLOCKS = directoryBlocks;
+        DATA_START = DIRECTORY_START + DIRECTORY_BLOCKS;
+    }
+
+    /**
+     * Returns the name of the policy that orders requests, for statistics.
+     * 
+     * @return the name of the scheduler.
+     */
+    protected String scheduling() {
+        return scheduler;
+    }
+
+    /**
+     * Records the buffer cache in front of this disk, so that flush() can
+     * report its statistics along with the disk's own.
+     * 
+     * @param cache the cache.
+     */
+
+    public void setCache(BlockCache cache) {
+        this.cache = cache;
+    }
+
     /**
      * Sleeps for a while to simulate the delay in seeking and transferring
      * data.
      * 
      * @param targetBlock the block number to which we have to seek.
+     * @return the distance the head moved, in blocks.
      */
-    protected void delay(int targetBlock) {
-        int sleepTime = 10 + Math.abs(targetBlock - currentBlock) / 5;
+    protected int delay(int targetBlock) {
+        int distance;
+        synchronized (this) {
+            distance = Math.abs(targetBlock - currentBlock) + sweepDistance;
+            sweepDistance = 0;
+        }
+        int sleepTime = 10 + DiskTelemetry.seekMillis(distance);
         try {
             Thread.sleep(sleepTime);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        return distance;
     } // delay
 
     /**
@@ -191,8 +675,9 @@ public class Disk implements Runnable {
      *                    allocated by the caller and have length of at least
      *                    BLOCK_SIZE. If it is larger, only the first BLOCK_SIZE
      *                    bytes of the array will be modified.
+     * @return the queued request.
      */
-    public synchronized void beginRead(int blockNumber, byte buffer[]) {
+    public synchronized Request beginRead(int blockNumber, byte buffer[]) {
         if (blockNumber < 0
                 || blockNumber >= DISK_SIZE
                 || buffer == null
@@ -202,17 +687,11 @@ public class Disk implements Runnable {
                     + " buffer " + Arrays.toString(buffer));
         }
 
-        if (busy) {
-            throw new DiskException("Disk read attempted "
-                    + " while the disk was still busy.");
-        }
-
-        isWriting = false;
-        this.buffer = buffer;
-        targetBlock = blockNumber;
-        requestQueued = true;
+        Request r = new Request(blockNumber, buffer, false);
+        queue.add(r);
 
         notify();
+        return r;
     } // beginRead
 
     /**
@@ -224,8 +703,9 @@ public class Disk implements Runnable {
      *                    least
      *                    BLOCK_SIZE. If it is larger, only the first BLOCK_SIZE
      *                    bytes of the array will be sent to the disk.
+     * @return the queued request.
      */
-    public synchronized void beginWrite(int blockNumber, byte buffer[]) {
+    public synchronized Request beginWrite(int blockNumber, byte buffer[]) {
         if (blockNumber < 0
                 || blockNumber >= DISK_SIZE
                 || buffer == null
@@ -235,34 +715,134 @@ public class Disk implements Runnable {
                     + " buffer " + Arrays.toString(buffer));
         }
 
-        if (busy) {
-            throw new DiskException("Disk write attempted "
-                    + " while the disk was still busy.");
-        }
-
-        isWriting = true;
-        this.buffer = buffer;
-        targetBlock = blockNumber;
-        requestQueued = true;
+        Request r = new Request(blockNumber, buffer, true);
+        queue.add(r);
 
         notify();
+        return r;
     } // beginWrite
 
-    /** Waits for a call to beginRead or beginWrite. */
-    protected synchronized void waitForRequest() {
-        while (!requestQueued) {
+    /**
+     * Performs a read operation, waiting until it is complete.
+     * 
+     * @param blockNumber The block number to read from.
+     * @param buffer      a data area to hold the data read.
+     * @see #beginRead(int, byte[])
+     */
+    public void read(int blockNumber, byte buffer[]) {
+        beginRead(blockNumber, buffer).await();
+    } // read
+
+    /**
+     * Performs a write operation, waiting until it is complete.
+     * 
+     * @param blockNumber The block number to write to.
+     * @param buffer      a data area holding the data to be written.
+     * @see #beginWrite(int, byte[])
+     */
+    public void write(int blockNumber, byte buffer[]) {
+        beginWrite(blockNumber, buffer).await();
+    } // write
+
+    /**
+     * Waits for a call to beginRead or beginWrite, and chooses the next
+     * request to serve.
+     * 
+     * @return the request.
+     */
+    protected synchronized Request waitForRequest() {
+        while (queue.isEmpty()) {
             try {
                 wait();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
-        requestQueued = false;
+        Request r = queue.remove(nextRequest());
         busy = true;
+        targetBlock = r.blockNumber;
+        return r;
     } // waitForRequest
 
-    /** Indicates to the CPU that the current operation has completed. */
-    protected void finishOperation() {
+    /**
+     * Chooses which queued request to serve next, according to the
+     * scheduling policy.
+     * 
+     * @return the index of the request in the queue.
+     */
+    private int nextRequest() {
+        switch (scheduler) {
+            case "SSTF" -> {
+                return closest(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            }
+            case "SCAN" -> {
+                // Sweep to the end of the disk before turning around.
+                int i = ascending ? closest(currentBlock, Integer.MAX_VALUE)
+                        : closest(Integer.MIN_VALUE, currentBlock);
+                if (i == -1) {
+                    // The trip to the edge is paid for by the next delay().
+                    int edge = ascending ? DISK_SIZE - 1 : 0;
+                    sweepDistance += Math.abs(edge - currentBlock);
+                    currentBlock = edge;
+                    ascending = !ascending;
+                    i = closest(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                }
+                return i;
+            }
+            case "CLOOK" -> {
+                // Sweep upward only, jumping back to the lowest request.
+                int i = closest(currentBlock, Integer.MAX_VALUE);
+                return i != -1 ? i : lowest();
+            }
+            default -> {
+                return 0;
+            }
+        }
+    } // nextRequest
+
+    /**
+     * Finds the queued request closest to the head within a range of
+     * blocks. Ties go to the request that was queued first.
+     * 
+     * @param low  the lowest block to consider.
+     * @param high the highest block to consider.
+     * @return the index of the request in the queue, or -1 if none is in
+     *         range.
+     */
+    private int closest(int low, int high) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < queue.size(); i++) {
+            int b = queue.get(i).blockNumber;
+            if (b >= low && b <= high && Math.abs(b - currentBlock) < bestDistance) {
+                best = i;
+                bestDistance = Math.abs(b - currentBlock);
+            }
+        }
+        return best;
+    } // closest
+
+    /**
+     * Finds the queued request for the lowest-numbered block.
+     * 
+     * @return the index of the request in the queue.
+     */
+    private int lowest() {
+        int best = 0;
+        for (int i = 1; i < queue.size(); i++) {
+            if (queue.get(i).blockNumber < queue.get(best).blockNumber) {
+                best = i;
+            }
+        }
+        return best;
+    } // lowest
+
+    /**
+     * Indicates to the CPU that the current operation has completed.
+     * 
+     * @param r the request that has been completed.
+     */
+    protected void finishOperation(Request r) {
         synchronized (this) {
             busy = false;
             currentBlock = targetBlock;
@@ -273,131 +853,530 @@ public class Disk implements Runnable {
         // which would deadlock if the interrupt handler were invoked with
         // the disk mutex locked.
         Kernel.interrupt(Kernel.INTERRUPT_DISK,
-                0, 0, null, null, null);
+                r.blockNumber, 0, r, null, null);
     } // finishOperation
 
     /**
      * This method simulates the internal microprocessor of the disk
-     * controler. It repeatedly waits for a start signal, does an I/O
+     * controler. It repeatedly waits for a request, does an I/O
      * operation, and sends an interrupt to the CPU.
      * This method should <em>not</em> be called directly.
      */
     public void run() {
         for (;;) {
-            waitForRequest();
+            Request r = waitForRequest();
+            long start = System.nanoTime();
 
             // Pause to do the operation
-            delay(targetBlock);
+            int distance = delay(targetBlock);
 
             // Move the data.
-            if (isWriting) {
-                System.arraycopy(
-                        buffer, 0,
-                        data, targetBlock * BLOCK_SIZE,
-                        BLOCK_SIZE);
+            if (r.isWriting) {
+                putBytes((long) targetBlock * BLOCK_SIZE, r.buffer, 0, BLOCK_SIZE);
                 writeCount++;
             } else {
-                System.arraycopy(
-                        data, targetBlock * BLOCK_SIZE,
-                        buffer, 0,
-                        BLOCK_SIZE);
+                getBytes((long) targetBlock * BLOCK_SIZE, r.buffer, 0, BLOCK_SIZE);
                 readCount++;
             }
+            telemetry.record(targetBlock, r.isWriting, distance,
+                    start - r.queued, System.nanoTime() - start);
 
             // Signal completion
-            finishOperation();
+            finishOperation(r);
         }
     }
 
     /**
      * Creates a new disk when the "DISK" file cannot be found.
      */
-    public void createNewDisk(){
-        int bitsSwitched = 0;
-        for (int i = 0; i < freeMap.length; i++) {
-            byte myByte = freeMap[i];
-            BitSet bits = Utilities.fromByte(myByte);
-            for (int j = 0; j < 8; j++) {
-                bits.set(j, true);
-                if (++bitsSwitched >= freeMap.length) {
-                    break;
-                }
-            }
-            freeMap[i] = Utilities.toByteArray(bits)[bits.length() / 8];
-            if (bitsSwitched >= freeMap.length) {
-                break;
-            }   
-        }
-        System.arraycopy(freeMap, 0, data, 0, freeMap.length);
+    public void createNewDisk() {
+        resetFreeMap();
     }
 
     /**
-     * Loads the disk when the "DISK" file exists.
+     * Mounts the file system: reads the superblock, the directory and the
+     * journal, and rebuilds the directory and the free-space bitmap from
+     * them. Blocks not used by the metadata or by a file are free. Only the
+     * blocks of the metadata that are in use are read, so mounting takes
+     * the same time however big the disk is. A new disk is given an empty
+     * file system.
      */
     public void loadDisk() {
-        System.arraycopy(data, 0, freeMap, 0, freeMap.length);
-        for (int i = 0; i < DISK_SIZE; i++) {
-            if (((freeMap[i / 8] >> (i % 8)) & 1) == 1) {
-                int byteIndex = i * BLOCK_SIZE;
-                byte[] fileName = new byte[FILE_NAME_OFFSET];
-                for (int j = 0; j < fileName.length; j++) {
-                    fileName[j] = data[byteIndex];
-                    byteIndex++;
+        long start = System.nanoTime();
+        journal = new Journal(this);
+        Map<String, Inode> files = journal.replay();
+        resetFreeMap();
+        synchronized (index) {
+            index.clear();
+            fileTable.clear();
+            inodes.clear();
+            for (Map.Entry<String, Inode> e : files.entrySet()) {
+                Inode inode = e.getValue();
+                inodes.put(inode.head(), inode);
+                fileTable.put(inode.head(), e.getKey());
+                index.put(e.getKey(), inode.head());
+            }
+        }
+        synchronized (allocator) {
+            // A block mapped by more than one file is only counted once.
+            long mapped = 0;
+            int free = freeCount;
+            for (Inode inode : files.values()) {
+                for (int i = 0; i < inode.extents(); i++) {
+                    setRange(inode.extentStart(i), inode.extentLength(i), true);
+                    mapped += inode.extentLength(i);
                 }
-                fileTable[i] = new String(fileName).trim();
             }
+            sharedBlocks = mapped - (free - freeCount);
         }
+        System.out.printf("Mounted %d files from %d blocks in %.1f ms\n", files.size(),
+                journal.blocksRead(), (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Returns the number of references to blocks, beyond the first, found
+     * when the disk was mounted. It is not zero only if the Kernel has
+     * deduplicated blocks.
+     * 
+     * @return the number of extra references.
+     */
+    public long sharedBlocks() {
+        return sharedBlocks;
+    }
+
+    /**
+     * Returns the journal of this disk.
+     * 
+     * @return the journal, or null before loadDisk() is called.
+     */
+    public Journal getJournal() {
+        return journal;
     }
 
     /**
      * Returns the block number for the passed file name.
      * 
      * @param fileName
-     * @return int
+     * @return the block number, or -1 if there is no such file.
      */
     public int getFileBlock(String fileName) {
-        int index = -1;
-        for (int i = 0; i < fileTable.length; i++) {
-            String systemFile = fileTable[i];
-            if (fileName.equals(systemFile)) {
-                index = i;
+        return index.get(fileName);
+    }
+
+    /**
+     * Returns the inode of a file.
+     * 
+     * @param fileName the name of the file.
+     * @return the inode, or null if there is no such file.
+     */
+    public Inode getInode(String fileName) {
+        int block = index.get(fileName);
+        return block == -1 ? null : inodes.get(block);
+    }
+
+    /**
+     * Returns the inodes of all files.
+     * 
+     * @return the inodes, in no particular order.
+     */
+    public Collection<Inode> inodes() {
+        return inodes.values();
+    }
+
+    /**
+     * Tells whether a block number identifies a file.
+     * 
+     * @param block the block number.
+     * @return true if the block is the head block of a file.
+     */
+    public boolean isHead(int block) {
+        return fileTable.containsKey(block);
+    }
+
+    /**
+     * Returns the names of all files.
+     * 
+     * @return the names, in order of head block.
+     */
+    public List<String> fileNames() {
+        return new ArrayList<>(fileTable.values());
+    }
+
+    /**
+     * Records a new, empty file in the file table and the directory index.
+     * 
+     * @param fileName the name of the file.
+     * @param block    the head block allocated to the file.
+     * @return false if a file with that name already exists.
+     */
+    public boolean addFile(String fileName, int block) {
+        synchronized (index) {
+            // The inode is in place before the name becomes visible to
+            // lookups, which do not lock.
+            inodes.put(block, new Inode(block));
+            if (!index.put(fileName, block)) {
+                inodes.remove(block);
+                return false;
             }
-            if (index != -1) {
-                break;
+            fileTable.put(block, fileName);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a file from the file table and the directory index.
+     * The file's blocks are not freed.
+     * 
+     * @param block the head block of the file.
+     */
+    public void removeFile(int block) {
+        synchronized (index) {
+            String name = fileTable.remove(block);
+            if (name != null) {
+                index.remove(name);
+                inodes.remove(block);
+            }
+        }
+    }
+
+    /**
+     * Removes every file from the file table and the directory index, and
+     * marks each one deleted so that descriptors still open on it stop
+     * working rather than write into blocks that new files will be given.
+     */
+    public void clearFiles() {
+        synchronized (index) {
+            for (Inode inode : inodes.values()) {
+                inode.deleted = true;
             }
+            index.clear();
+            fileTable.clear();
+            inodes.clear();
         }
-        return index;
     }
 
     /**
-     * Returns the next available block number on the fisk.
+     * Returns the next available block number on the disk, without
+     * allocating it.
      * 
-     * @return int
+     * @return the block number, or -1 if the disk is full.
      */
     public int getNextBlockIndex() {
-        int index = -1;
-        for (int i = 0; i < DISK_SIZE; i++) {
-            if (((freeMap[i / 8] >> (i % 8)) & 1) == 0) {
-                index = i;
+        synchronized (allocator) {
+            int block = findFree(cursor);
+            return block != -1 ? block : findFree(0);
+        }
+    }
+
+    /**
+     * Allocates one block, starting the search where the last allocation
+     * left off.
+     * 
+     * @return the block number, or -1 if the disk is full.
+     */
+    public int allocateBlock() {
+        synchronized (allocator) {
+            int block = getNextBlockIndex();
+            if (block != -1) {
+                setRange(block, 1, true);
+                cursor = block + 1 < DISK_SIZE ? block + 1 : 0;
             }
-            if (index != -1) {
-                break;
+            return block;
+        }
+    }
+
+    /**
+     * Allocates one block to be the head block of a new file. A block freed
+     * by deduplication can still be the head block, and so the identity, of
+     * a live file; such blocks are passed over.
+     * 
+     * @return the block number, or -1 if no free block can be a head.
+     */
+    public int allocateHead() {
+        synchronized (allocator) {
+            for (int pass = 0; pass < 2; pass++) {
+                int end = pass == 0 ? DISK_SIZE : cursor;
+                int block = findFree(pass == 0 ? cursor : 0);
+                for (; block != -1 && block < end; block = findFree(block + 1)) {
+                    if (!isHead(block)) {
+                        setRange(block, 1, true);
+                        cursor = block + 1 < DISK_SIZE ? block + 1 : 0;
+                        return block;
+                    }
+                }
             }
+            return -1;
+        }
+    }
+
+    /**
+     * Allocates a run of contiguous blocks, starting the search where the
+     * last allocation left off.
+     * 
+     * @param count the number of blocks wanted.
+     * @return the first block of the run, or -1 if there is no run that long.
+     */
+    public int allocateRun(int count) {
+        synchronized (allocator) {
+            if (count < 1 || count > freeCount) {
+                return -1;
+            }
+            for (int from = cursor, pass = 0; pass < 2; from = 0, pass++) {
+                while (from < DISK_SIZE) {
+                    int start = findFree(from);
+                    if (start == -1) {
+                        break;
+                    }
+                    int end = findUsed(start, Math.min(DISK_SIZE, start + count));
+                    if (end - start == count) {
+                        setRange(start, count, true);
+                        cursor = end < DISK_SIZE ? end : 0;
+                        return start;
+                    }
+                    from = end;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Allocates as many blocks as are free starting at a given block, up to
+     * a limit. Used to grow a file in place.
+     * 
+     * @param start the first block wanted.
+     * @param count the most blocks wanted.
+     * @return the number of blocks allocated, starting at start.
+     */
+    public int allocateAt(int start, int count) {
+        synchronized (allocator) {
+            if (start < 0 || start >= DISK_SIZE) {
+                return 0;
+            }
+            int n = findUsed(start, Math.min(DISK_SIZE, start + count)) - start;
+            setRange(start, n, true);
+            return n;
+        }
+    }
+
+    /**
+     * Frees a run of contiguous blocks.
+     * 
+     * @param start the first block of the run.
+     * @param count the number of blocks.
+     */
+    public void freeRun(int start, int count) {
+        synchronized (allocator) {
+            setRange(start, count, false);
         }
-        return index;
     }
-    
+
     /**
      * Updates the freeMap with the newly allocated block index.
      * 
      * @param blockIndex
      */
     public void setFreeMap(int blockIndex, boolean used) {
-        byte usedByte = freeMap[blockIndex / 8];
-        BitSet bits = Utilities.fromByte(usedByte);
-        int usedIndex = blockIndex % 8;
-        bits.set(usedIndex, used);
-        freeMap[blockIndex / 8] = Utilities.toByteArray(bits)[0];
-        System.arraycopy(freeMap, 0, data, 0, freeMap.length);
+        synchronized (allocator) {
+            setRange(blockIndex, 1, used);
+        }
+    }
+
+    /**
+     * Tells whether a block is in use.
+     * 
+     * @param block the block number.
+     * @return true if the block is allocated.
+     */
+    public boolean isUsed(int block) {
+        synchronized (allocator) {
+            return (freeMap[block >>> 6] & (1L << block)) != 0;
+        }
+    }
+
+    /**
+     * Returns the number of free blocks.
+     * 
+     * @return the number of free blocks.
+     */
+    public int freeBlocks() {
+        synchronized (allocator) {
+            return freeCount;
+        }
+    }
+
+    /**
+     * Marks every block free except the superblock, the bitmap, the journal
+     * and the directory, and writes the whole bitmap to the disk.
+     */
+    public void resetFreeMap() {
+        synchronized (allocator) {
+            Arrays.fill(freeMap, 0L);
+            Arrays.fill(fullWords, 0L);
+            freeCount = DISK_SIZE;
+            cursor = 0;
+            setPadding();
+            setRange(0, DATA_START, true);
+            storeMapWords(0, freeMap.length - 1);
+        }
+    }
+
+    /**
+     * Sets up the free-space bitmap of a disk whose storage is provided by a
+     * subclass.
+     * 
+     * @param restored true if the storage holds an existing disk image, in
+     *                 which case the bitmap is read from it; otherwise a fresh
+     *                 bitmap is written.
+     */
+    protected void initFreeMap(boolean restored) {
+        this.restored = restored;
+        if (restored) {
+            readFreeMap();
+        } else {
+            resetFreeMap();
+        }
+    }
+
+    /** Reads the bitmap from the disk and rebuilds the in-memory summary. */
+    private void readFreeMap() {
+        synchronized (allocator) {
+            Arrays.fill(freeMap, 0L);
+            byte[] bytes = new byte[MAP_BYTES];
+            getBytes(MAP_START * BLOCK_SIZE, bytes, 0, MAP_BYTES);
+            for (int i = 0; i < MAP_BYTES; i++) {
+                freeMap[i >>> 3] |= (bytes[i] & 0xffL) << (8 * (i & 7));
+            }
+            setPadding();
+            freeCount = 0;
+            for (int w = 0; w < freeMap.length; w++) {
+                freeCount += Long.bitCount(~freeMap[w]);
+                updateSummary(w);
+            }
+            cursor = 0;
+        }
+    }
+
+    /** Marks the bits past the end of the disk as used. */
+    private void setPadding() {
+        if ((DISK_SIZE & 63) != 0) {
+            freeMap[freeMap.length - 1] |= -1L << DISK_SIZE;
+        }
+        for (int w = freeMap.length; w < fullWords.length * 64; w++) {
+            fullWords[w >>> 6] |= 1L << w;
+        }
+    }
+
+    /**
+     * Sets or clears the bits for a run of blocks, a word at a time, and
+     * writes back just the bitmap words that changed.
+     */
+    private void setRange(int start, int count, boolean used) {
+        if (start < 0 || count < 0 || start + count > DISK_SIZE) {
+            throw new DiskException("Illegal block range " + start
+                    + " + " + count);
+        }
+        if (count == 0) {
+            return;
+        }
+        int end = start + count;
+        int first = start >>> 6;
+        int last = (end - 1) >>> 6;
+        for (int w = first; w <= last; w++) {
+            long mask = -1L;
+            if (w == first) {
+                mask &= -1L << start;
+            }
+            if (w == last && (end & 63) != 0) {
+                mask &= -1L >>> (64 - (end & 63));
+            }
+            long old = freeMap[w];
+            freeMap[w] = used ? old | mask : old & ~mask;
+            freeCount -= Long.bitCount(freeMap[w]) - Long.bitCount(old);
+            updateSummary(w);
+        }
+        storeMapWords(first, last);
+    }
+
+    /** Recomputes the summary bit for one word of the bitmap. */
+    private void updateSummary(int w) {
+        if (freeMap[w] == -1L) {
+            fullWords[w >>> 6] |= 1L << w;
+        } else {
+            fullWords[w >>> 6] &= ~(1L << w);
+        }
+    }
+
+    /**
+     * Finds the first free block at or after a given block.
+     * 
+     * @param from where to start looking.
+     * @return a free block number, or -1 if there is none before the end of
+     *         the disk.
+     */
+    private int findFree(int from) {
+        if (from >= DISK_SIZE) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long free = ~freeMap[w] & (-1L << from);
+        if (free != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(free);
+        }
+        // Use the summary to find the next word with a free bit.
+        int next = w + 1;
+        if (next >= freeMap.length) {
+            return -1;
+        }
+        int s = next >>> 6;
+        long notFull = ~fullWords[s] & (-1L << next);
+        while (notFull == 0) {
+            if (++s >= fullWords.length) {
+                return -1;
+            }
+            notFull = ~fullWords[s];
+        }
+        w = (s << 6) + Long.numberOfTrailingZeros(notFull);
+        return (w << 6) + Long.numberOfTrailingZeros(~freeMap[w]);
+    }
+
+    /**
+     * Finds the first used block in a range.
+     * 
+     * @param from  the first block to look at.
+     * @param limit one past the last block to look at.
+     * @return the first used block, or limit if all are free.
+     */
+    private int findUsed(int from, int limit) {
+        int w = from >>> 6;
+        long used = freeMap[w] & (-1L << from);
+        while (used == 0) {
+            if (++w << 6 >= limit) {
+                return limit;
+            }
+            used = freeMap[w];
+        }
+        return Math.min(limit, (w << 6) + Long.numberOfTrailingZeros(used));
+    }
+
+    /**
+     * Copies words of the bitmap into its on-disk location.
+     * 
+     * @param first the first word to copy.
+     * @param last  the last word to copy.
+     */
+    private void storeMapWords(int first, int last) {
+        int start = first << 3;
+        int length = Math.min(MAP_BYTES, (last + 1) << 3) - start;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int w = first + (i >>> 3);
+            long v = freeMap[w];
+            if (w == freeMap.length - 1 && (DISK_SIZE & 63) != 0) {
+                v &= ~(-1L << DISK_SIZE);
+            }
+            bytes[i] = (byte) (v >>> (8 * (i & 7)));
+        }
+        putBytes(MAP_START * BLOCK_SIZE + start, bytes, 0, length);
     }
 } // Disk
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measurements of how a Disk is used.
+ * <p>
+ * For every block read or written the disk reports how far the head moved,
+ * how long the request waited in the queue before the disk started on it,
+ * and how long the disk took to serve it. From these the telemetry keeps:
+ * <ul>
+ * <li>a histogram of seek distances, with one bucket per power of two;
+ * <li>the total seek distance and the total simulated seek time, using the
+ * same cost model as Disk.delay() (one millisecond per five blocks), so a
+ * FastDisk, which does not sleep, reports what the same accesses would
+ * have cost on the slow disk;
+ * <li>total and longest queue waits, and total service time;
+ * <li>a heat map counting reads and writes of each block. On disks of more
+ * than MAX_REGIONS blocks each counter covers a region of adjacent blocks
+ * instead, so that the map stays small.
+ * </ul>
+ * All counters are atomic, so the disk may record accesses from many
+ * threads at once and the numbers can be read at any time, through the
+ * getters here or over JMX.
+ * <p>
+ * If the <samp>disk.telemetry</samp> system property names a file prefix,
+ * Disk.flush() writes the heat map to
+ * <em>prefix</em><samp>-blocks.csv</samp> and the seek histogram to
+ * <em>prefix</em><samp>-seeks.csv</samp>.
+ *
+ * @see Disk
+ * @see DiskTelemetryMBean
+ */
+public class DiskTelemetry implements DiskTelemetryMBean {
+    /** The largest number of heat map counters of each kind. */
+    public static final int MAX_REGIONS = 1 << 16;
+
+    /** The number of blocks on the disk. */
+    private final int size;
+
+    /** log2 of the number of blocks counted by each heat map counter. */
+    private final int regionShift;
+
+    /** Reads of each region. */
+    private final AtomicIntegerArray reads;
+
+    /** Writes of each region. */
+    private final AtomicIntegerArray writes;
+
+    /**
+     * Seek distances: bucket 0 counts seeks of zero blocks, and bucket k
+     * counts seeks of 2<sup>k-1</sup> to 2<sup>k</sup>-1 blocks.
+     */
+    private final AtomicLongArray seekHistogram = new AtomicLongArray(33);
+
+    /** Blocks read and written. */
+    private final AtomicLong accesses = new AtomicLong();
+
+    /** Blocks read. */
+    private final AtomicLong readTotal = new AtomicLong();
+
+    /** Total seek distance, in blocks. */
+    private final AtomicLong distance = new AtomicLong();
+
+    /** Total simulated seek time, in milliseconds. */
+    private final AtomicLong seekMillis = new AtomicLong();
+
+    /** Total time spent waiting in the request queue, in nanoseconds. */
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /** The longest wait in the request queue, in nanoseconds. */
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /** Total time spent serving requests, in nanoseconds. */
+    private final AtomicLong serviceNanos = new AtomicLong();
+
+    /** The last block accessed, for disks that do not track their head. */
+    private final AtomicInteger head = new AtomicInteger();
+
+    /**
+     * Creates telemetry for a disk.
+     *
+     * @param size the number of blocks on the disk.
+     */
+    public DiskTelemetry(int size) {
+        this.size = size;
+        int shift = 0;
+        while (((size - 1) >> shift) >= MAX_REGIONS) {
+            shift++;
+        }
+        regionShift = shift;
+        int regions = ((size - 1) >> shift) + 1;
+        reads = new AtomicIntegerArray(regions);
+        writes = new AtomicIntegerArray(regions);
+    } // DiskTelemetry
+
+    /**
+     * Moves the recorded head position to a block, for disks that have no
+     * head of their own.
+     *
+     * @param block the block being accessed.
+     * @return the distance from the previous block accessed.
+     */
+    public int moveHead(int block) {
+        return Math.abs(block - head.getAndSet(block));
+    } // moveHead
+
+    /**
+     * Records one block read or written.
+     *
+     * @param block    the block.
+     * @param writing  true for a write.
+     * @param seek     the distance the head moved to reach the block.
+     * @param wait     the time the request waited in the queue, in
+     *                 nanoseconds.
+     * @param service  the time taken to serve the request, in nanoseconds.
+     */
+    public void record(int block, boolean writing, int seek, long wait, long service) {
+        accesses.incrementAndGet();
+        if (writing) {
+            writes.incrementAndGet(block >> regionShift);
+        } else {
+            readTotal.incrementAndGet();
+            reads.incrementAndGet(block >> regionShift);
+        }
+        seekHistogram.incrementAndGet(32 - Integer.numberOfLeadingZeros(seek));
+        distance.addAndGet(seek);
+        seekMillis.addAndGet(seekMillis(seek));
+        waitNanos.addAndGet(wait);
+        long max;
+        while (wait > (max = maxWaitNanos.get())
+                && !maxWaitNanos.compareAndSet(max, wait)) {
+        }
+        serviceNanos.addAndGet(service);
+    } // record
+
+    /**
+     * Returns the simulated time to seek a distance, using the cost model of
+     * Disk.delay().
+     *
+     * @param blocks the seek distance, in blocks.
+     * @return the time in milliseconds.
+     */
+    public static int seekMillis(int blocks) {
+        return blocks / 5;
+    } // seekMillis
+
+    /**
+     * Returns a one-line summary of the telemetry.
+     *
+     * @return the summary.
+     */
+    public String summary() {
+        long n = Math.max(1, accesses.get());
+        return String.format(
+            "Telemetry: %d accesses, mean seek %.1f blocks, simulated seek time %d ms,"
+                + " queue wait mean %.1f us max %.1f us, service mean %.1f us",
+            accesses.get(), (double) distance.get() / n, getSimulatedSeekMillis(),
+            waitNanos.get() / 1e3 / n, maxWaitNanos.get() / 1e3,
+            serviceNanos.get() / 1e3 / n);
+    } // summary
+
+    /**
+     * Writes the heat map and the seek histogram as CSV files.
+     * Regions that were never accessed are left out of the heat map.
+     *
+     * @param prefix the start of the file names.
+     * @throws IOException if a file cannot be written.
+     */
+    public void writeCsv(String prefix) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(
+                new FileWriter(prefix + "-blocks.csv")))) {
+            out.println("first_block,last_block,reads,writes");
+            for (int i = 0; i < reads.length(); i++) {
+                int r = reads.get(i);
+                int w = writes.get(i);
+                if (r != 0 || w != 0) {
+                    int last = Math.min(((i + 1) << regionShift) - 1, size - 1);
+                    out.println((i << regionShift) + "," + last + "," + r + "," + w);
+                }
+            }
+        }
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(
+                new FileWriter(prefix + "-seeks.csv")))) {
+            out.println("min_distance,max_distance,count");
+            for (int k = 0; k < seekHistogram.length(); k++) {
+                long lo = k == 0 ? 0 : 1L << (k - 1);
+                long hi = k == 0 ? 0 : (1L << k) - 1;
+                out.println(lo + "," + hi + "," + seekHistogram.get(k));
+            }
+        }
+    } // writeCsv
+
+    //////////////// DiskTelemetryMBean
+
+    public long getReads() {
+        return readTotal.get();
+    } // getReads
+
+    public long getWrites() {
+        return accesses.get() - readTotal.get();
+    } // getWrites
+
+    public long getSeekDistance() {
+        return distance.get();
+    } // getSeekDistance
+
+    public long getSimulatedSeekMillis() {
+        return seekMillis.get();
+    } // getSimulatedSeekMillis
+
+    public long[] getSeekHistogram() {
+        long[] h = new long[seekHistogram.length()];
+        for (int k = 0; k < h.length; k++) {
+            h[k] = seekHistogram.get(k);
+        }
+        return h;
+    } // getSeekHistogram
+
+    public double getMeanQueueWaitMicros() {
+        return waitNanos.get() / 1e3 / Math.max(1, accesses.get());
+    } // getMeanQueueWaitMicros
+
+    public double getMaxQueueWaitMicros() {
+        return maxWaitNanos.get() / 1e3;
+    } // getMaxQueueWaitMicros
+
+    public int getHeat(int block) {
+        int i = block >> regionShift;
+        return i >= 0 && i < reads.length() ? reads.get(i) + writes.get(i) : 0;
+    } // getHeat
+
+    public String getSummary() {
+        return summary();
+    } // getSummary
+} // DiskTelemetry
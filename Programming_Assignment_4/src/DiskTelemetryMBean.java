@@ -0,0 +1,77 @@
+/**
+ * The management interface of DiskTelemetry.
+ * <p>
+ * The Kernel registers the telemetry of its disk with the platform MBean
+ * server as <samp>MiniKernel:type=DiskTelemetry</samp>.
+ *
+ * @see DiskTelemetry
+ */
+public interface DiskTelemetryMBean {
+    /**
+     * Returns the number of blocks read.
+     *
+     * @return the number of reads.
+     */
+    long getReads();
+
+    /**
+     * Returns the number of blocks written.
+     *
+     * @return the number of writes.
+     */
+    long getWrites();
+
+    /**
+     * Returns the total distance the head has moved.
+     *
+     * @return the distance, in blocks.
+     */
+    long getSeekDistance();
+
+    /**
+     * Returns the total time the seeks would take on the simulated disk.
+     *
+     * @return the time, in milliseconds.
+     */
+    long getSimulatedSeekMillis();
+
+    /**
+     * Returns the seek distance histogram. Element 0 counts seeks of zero
+     * blocks, and element k counts seeks of 2<sup>k-1</sup> to
+     * 2<sup>k</sup>-1 blocks.
+     *
+     * @return a copy of the histogram.
+     */
+    long[] getSeekHistogram();
+
+    /**
+     * Returns the mean time a request waited before the disk started on it.
+     *
+     * @return the time, in microseconds.
+     */
+    double getMeanQueueWaitMicros();
+
+    /**
+     * Returns the longest time a request waited before the disk started on
+     * it.
+     *
+     * @return the time, in microseconds.
+     */
+    double getMaxQueueWaitMicros();
+
+    /**
+     * Returns the number of reads and writes of a block, or of the region
+     * of the heat map that holds it.
+     *
+     * @param block the block number.
+     * @return the number of accesses.
+     */
+    int getHeat(int block);
+
+    /**
+     * Returns a one-line summary of the telemetry.
+     *
+     * @return the summary.
+     */
+    String getSummary();
+} // DiskTelemetryMBean
@@ -0,0 +1,75 @@
+import java.util.Arrays;
+
+/** A MiniKernel program that measures how fast processes can be started
+ * and joined.
+ * <p>
+ * It starts many short-lived copies of itself with Library.exec, in waves
+ * of a fixed size, and joins each wave before starting the next. Each copy
+ * returns at once, so the time measured is the kernel's cost of creating,
+ * running and reaping a process. At the end it prints the number of execs
+ * per second and the latency of the join calls.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java Boot 10 FastDisk 100 ExecBench [count [wave]]
+ * </pre>
+ * The defaults are 20000 processes in waves of 1000.
+ * @see Kernel
+ */
+public class ExecBench {
+    /** The main program.
+     * @param args the number of processes and the size of each wave, or
+     * "-child" when run as one of the processes being measured.
+     */
+    public static void main(String args[]) {
+        if (args.length > 0 && args[0].equals("-child")) {
+            return;
+        }
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int wave = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        String[] childArgs = { "-child" };
+
+        long[] joinNanos = new long[count];
+        int[] pids = new int[wave];
+        int failed = 0;
+        long execNanos = 0;
+        long start = System.nanoTime();
+        for (int done = 0; done < count; ) {
+            int n = Math.min(wave, count - done);
+            long t = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                pids[i] = Library.exec("ExecBench", childArgs);
+            }
+            execNanos += System.nanoTime() - t;
+            for (int i = 0; i < n; i++) {
+                t = System.nanoTime();
+                if (pids[i] < 0 || Library.join(pids[i]) != 0) {
+                    failed++;
+                }
+                joinNanos[done + i] = System.nanoTime() - t;
+            }
+            done += n;
+        }
+        long total = System.nanoTime() - start;
+
+        Arrays.sort(joinNanos);
+        Library.output(String.format(
+            "ExecBench: %d processes in waves of %d, %d failed\n"
+            + "  %.0f execs/sec overall, %.0f exec calls/sec\n"
+            + "  join latency: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us\n",
+            count, wave, failed,
+            count * 1e9 / total, count * 1e9 / Math.max(1, execNanos),
+            Arrays.stream(joinNanos).average().orElse(0) / 1e3,
+            percentile(joinNanos, 50) / 1e3, percentile(joinNanos, 99) / 1e3,
+            joinNanos[count - 1] / 1e3));
+    } // main
+
+    /** Returns a percentile of a sorted array.
+     * @param sorted the values, in ascending order.
+     * @param p the percentile, from 0 to 100.
+     * @return the value.
+     */
+    private static double percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    } // percentile
+} // ExecBench
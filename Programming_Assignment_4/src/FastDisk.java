@@ -28,6 +28,17 @@ public class FastDisk extends Disk {
         }
     } // FastDisk
 
+    /** Creates a new FastDisk without loading its contents.
+     * This constructor does not enforce the size limit; subclasses that use
+     * it keep the disk contents somewhere other than a single byte array.
+     * @param size the total size of this disk, in blocks.
+     * @param inMemory if true, allocate an empty in-memory copy of the disk.
+     * @see Disk#Disk(int, boolean)
+     */
+    protected FastDisk(int size, boolean inMemory) {
+        super(size, inMemory);
+    } // FastDisk
+
     /** Performs a read operation.
      * When this method returns, the operation is complete.
      * @param blockNumber The block number to read from.
@@ -35,11 +46,11 @@ public class FastDisk extends Disk {
      * @see Disk#beginRead(int, byte[])
      */
     public void read(int blockNumber, byte buffer[]) {
-        System.arraycopy(
-            data, blockNumber * BLOCK_SIZE,
-            buffer, 0,
-            BLOCK_SIZE);
+        long start = System.nanoTime();
+        getBytes((long) blockNumber * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
         readCount++;
+        telemetry.record(blockNumber, false, telemetry.moveHead(blockNumber),
+            0, System.nanoTime() - start);
     } // read(int, byte[])
 
     /** Performs a write operation.
@@ -49,11 +60,11 @@ public class FastDisk extends Disk {
      * @see Disk#beginWrite(int, byte[])
      */
     public void write(int blockNumber, byte buffer[]) {
-        System.arraycopy(
-            buffer, 0,
-            data, blockNumber * BLOCK_SIZE,
-            BLOCK_SIZE);
+        long start = System.nanoTime();
+        putBytes((long) blockNumber * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
         writeCount++;
+        telemetry.record(blockNumber, true, telemetry.moveHead(blockNumber),
+            0, System.nanoTime() - start);
     } // write(int, byte[])
 
     /** Starts a new read operation.
@@ -65,7 +76,7 @@ public class FastDisk extends Disk {
      * @deprecated Do not use this method.  Use read instead.
      */
     @Deprecated
-    public synchronized void beginRead(int blockNumber, byte buffer[]) {
+    public synchronized Request beginRead(int blockNumber, byte buffer[]) {
         throw new UnsupportedOperationException(
                         "Don't use beginRead.  Use read");
     } // beginRead(int, byte[])
@@ -79,8 +90,18 @@ public class FastDisk extends Disk {
      * @deprecated Do not use this method.  Use read instead.
      */
     @Deprecated
-    public synchronized void beginWrite(int blockNumber, byte buffer[]) {
+    public synchronized Request beginWrite(int blockNumber, byte buffer[]) {
         throw new UnsupportedOperationException(
                         "Don't use beginWrite.  Use write");
     } // beginWrite byte[])
+
+    /**
+     * Returns the name of the policy that orders requests. A FastDisk
+     * serves each request as it is made, whatever scheduler is configured.
+     * 
+     * @return "FCFS".
+     */
+    protected String scheduling() {
+        return "FCFS";
+    } // scheduling
 } // FastDisk
@@ -36,6 +36,9 @@ public class FileTester {
             "sync"
     };
 
+    /** The most bytes one read or write command may transfer. */
+    private static final int MAX_TRANSFER = 1 << 20;
+
     /**
      * Main program.
      * 
@@ -110,6 +113,7 @@ public class FileTester {
                 }
 
                 // Parse the command line
+                String[] words = words(line);
                 StringTokenizer st = new StringTokenizer(line);
                 cmd = st.nextToken();
 
@@ -124,6 +128,16 @@ public class FileTester {
                     result = Library.format();
                 } else if (cmd.equalsIgnoreCase("create")) {
                     result = Library.create(st.nextToken());
+                } else if (cmd.equalsIgnoreCase("read")
+                        && words.length == 4) {
+                    String fname = st.nextToken();
+                    int offset = count(st.nextToken(), Integer.MAX_VALUE);
+                    byte[] dataReturned = new byte[count(st.nextToken(), MAX_TRANSFER)];
+                    int n = Library.read(fname, offset, dataReturned);
+                    result = n < 0 ? n : 0;
+                    if (n > 0) {
+                        pl(new String(dataReturned, 0, n));
+                    }
                 } else if (cmd.equalsIgnoreCase("read")) {
                     String fname = st.nextToken();
                     byte[] dataReturned = new byte[512];
@@ -131,6 +145,24 @@ public class FileTester {
                     String myData = Utilities.unpackString(dataReturned, 0);
                     myData = myData.trim();
                     System.out.println(myData);
+                } else if (cmd.equalsIgnoreCase("write")
+                        && words.length >= 5
+                        && isNumber(words[2])
+                        && isNumber(words[3])) {
+                    String fname = st.nextToken();
+                    int offset = count(st.nextToken(), Integer.MAX_VALUE);
+                    int bytes = count(st.nextToken(), MAX_TRANSFER);
+                    String pattern = st.nextToken();
+                    while (st.hasMoreTokens()) {
+                        pattern += " " + st.nextToken();
+                    }
+                    byte[] buffer = new byte[bytes];
+                    byte[] p = pattern.getBytes();
+                    for (int i = 0; i < bytes; i++) {
+                        buffer[i] = p[i % p.length];
+                    }
+                    int n = Library.write(fname, offset, buffer);
+                    result = n < 0 ? n : 0;
                 } else if (cmd.equalsIgnoreCase("write")) {
                     String fname = st.nextToken();
                     String data = st.nextToken();
@@ -157,7 +189,8 @@ public class FileTester {
                     default -> pl("*** Result " + result + " from system call");
                 }
             } catch (NumberFormatException e) {
-                pl("Invalid argument: " + e);
+                pl("Invalid argument: " + e.getMessage());
+                help(cmd);
             } catch (NoSuchElementException e) {
                 // Handler for nextToken()
                 pl("Incorrect number of arguments");
@@ -169,6 +202,53 @@ public class FileTester {
         } // for (;;)
     } // main(String[])
 
+    /**
+     * Splits a command line into words, the same way the commands are
+     * parsed.
+     * 
+     * @param line the command line.
+     * @return the words, the command first.
+     */
+    private static String[] words(String line) {
+        StringTokenizer st = new StringTokenizer(line);
+        String[] words = new String[st.countTokens()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = st.nextToken();
+        }
+        return words;
+    } // words(String)
+
+    /**
+     * Parses an offset or a byte count.
+     * 
+     * @param s   the token.
+     * @param max the largest value allowed.
+     * @return the value.
+     * @throws NumberFormatException if s is not a number from 0 to max.
+     */
+    private static int count(String s, int max) {
+        int n = Integer.parseInt(s);
+        if (n < 0 || n > max) {
+            throw new NumberFormatException(s + " is not between 0 and " + max);
+        }
+        return n;
+    } // count(String, int)
+
+    /**
+     * Tells whether a token is a decimal integer.
+     * 
+     * @param s the token.
+     * @return true if s can be parsed by Integer.parseInt.
+     */
+    private static boolean isNumber(String s) {
+        try {
+            Integer.parseInt(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    } // isNumber(String)
+
     /** Prints a list of available commands. */
     private static void help() {
         pl("Commands are:");
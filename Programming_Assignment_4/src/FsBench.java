@@ -0,0 +1,288 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/** A smoke timer for the file system calls and the code under them.
+ * <p>
+ * FsBench is not a benchmark harness. It runs each operation in the same
+ * JVM for a fixed time and prints the mean time per operation, with no
+ * warmup phase, no forks and no error estimate, so its numbers only show
+ * whether something has become grossly slower; they are not fit for
+ * comparing small changes.
+ * <p>
+ * For each disk size FsBench powers on the Kernel with an in-memory
+ * FastDisk that is never saved, so the DISK file is left alone, and runs
+ * itself as the initial program. For each combination of file count and
+ * fill ratio it formats the disk, creates the files, fills the disk to the
+ * given fraction of its blocks with one large file, and then times:
+ * <ul>
+ * <li><samp>kernel.createDelete</samp> -- Library.create then
+ * Library.delete of a new file;
+ * <li><samp>kernel.read</samp>, <samp>kernel.write</samp> -- Library.read
+ * and Library.write of a random existing file;
+ * <li><samp>kernel.list</samp> -- Library.list;
+ * <li><samp>disk.getFileBlock</samp> -- lookups of existing names, and
+ * <samp>disk.getFileBlockMiss</samp> of missing ones;
+ * <li><samp>disk.getNextBlockIndex</samp>;
+ * <li><samp>disk.setFreeMap</samp> -- marking a free block used and free
+ * again, alternately.
+ * </ul>
+ * and, once per disk size, the Utilities codecs
+ * (<samp>utilities.packInt</samp>, <samp>utilities.packString</samp>,
+ * <samp>utilities.packBits</samp> of one bit per block). Output printed by
+ * the calls under test is discarded while they are timed.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java FsBench [-sizes 1024,8192,32767] [-files 100,1000] [-fill 0.5,0.9]
+ *                 [-cache 64] [-time 200] [-only regex]
+ * </pre>
+ * Times are in milliseconds. Combinations with more files than the fill
+ * ratio leaves room for are skipped.
+ * @see Kernel
+ * @see Disk
+ * @see Utilities
+ */
+public class FsBench {
+    /** The disk sizes to try, in blocks. */
+    private static int[] sizes = { 1024, 8192, 32767 };
+
+    /** The numbers of files to try. */
+    private static int[] fileCounts = { 100, 1000 };
+
+    /** The fractions of the disk to fill. */
+    private static double[] fills = { 0.5, 0.9 };
+
+    /** The size of the Kernel's buffer cache, in blocks. */
+    private static int cacheSize = 64;
+
+    /** How long each operation is timed for, in milliseconds. */
+    private static long millis = 200;
+
+    /** Only benchmarks whose names match this are run. */
+    private static Pattern only = Pattern.compile(".*");
+
+    /** The disk the Kernel is running on. */
+    private static Disk disk;
+
+    /** The console, saved while output is discarded. */
+    private static final PrintStream console = System.out;
+
+    /** A stream that discards everything written to it. */
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    /** Consumes the results of the operations so that the JIT cannot
+     * discard the work. */
+    private static long sink;
+
+    /** One timed operation. */
+    private interface Op {
+        /**
+         * Performs the operation once.
+         * @param i the number of the operation, counting from zero.
+         * @return any value computed, to be consumed.
+         */
+        long run(int i);
+    } // interface FsBench.Op
+
+    /** The main program.
+     * @param args the options described above, or "-run" when running as
+     * the Kernel's initial program.
+     */
+    public static void main(String args[]) {
+        if (args.length == 1 && args[0].equals("-run")) {
+            timeKernel();
+            return;
+        }
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-sizes" -> sizes = Arrays.stream(value.split(","))
+                    .mapToInt(Integer::parseInt).toArray();
+                case "-files" -> fileCounts = Arrays.stream(value.split(","))
+                    .mapToInt(Integer::parseInt).toArray();
+                case "-fill" -> fills = Arrays.stream(value.split(","))
+                    .mapToDouble(Double::parseDouble).toArray();
+                case "-cache" -> cacheSize = Integer.parseInt(value);
+                case "-time" -> millis = Long.parseLong(value);
+                case "-only" -> only = Pattern.compile(value);
+                default -> {
+                    System.err.println("FsBench: unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        for (int size : sizes) {
+            disk = new FastDisk(size, true) {
+                protected void save() {
+                    // Benchmark disks are never written to the DISK file.
+                }
+
+                protected void force(int start, int count) {
+                }
+            };
+            disk.initFreeMap(false);
+            Kernel.interrupt(Kernel.INTERRUPT_POWER_ON,
+                cacheSize, 0, disk, "FsBench -run", null);
+            timeUtilities(size);
+        }
+    } // main
+
+    /** Times the operations that go through the Kernel and the disk, on
+     * the disk the Kernel was powered on with.
+     */
+    private static void timeKernel() {
+        int size = disk.DISK_SIZE;
+        for (int files : fileCounts) {
+            for (double fill : fills) {
+                if (disk.DATA_START + files + 2 > size * fill) {
+                    continue;
+                }
+                String params = String.format(
+                    "diskSize=%d files=%d fill=%s", size, files, fill);
+                String[] names = setUp(files, fill);
+                int[] pick = shuffle(files);
+                int mask = pick.length - 1;
+                byte[] buffer = new byte[Disk.BLOCK_SIZE];
+
+                bench("kernel.createDelete", params, i ->
+                    Library.create("bench-tmp") + Library.delete("bench-tmp"));
+                bench("kernel.read", params, i ->
+                    Library.read(names[pick[i & mask]], buffer));
+                bench("kernel.write", params, i ->
+                    Library.write(names[pick[i & mask]], buffer));
+                bench("kernel.list", params, i -> Library.list());
+                bench("disk.getFileBlock", params, i ->
+                    disk.getFileBlock(names[pick[i & mask]]));
+                String[] missing = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    missing[i] = "missing-" + i;
+                }
+                bench("disk.getFileBlockMiss", params, i ->
+                    disk.getFileBlock(missing[pick[i & mask]]));
+                bench("disk.getNextBlockIndex", params, i -> disk.getNextBlockIndex());
+                int[] free = freeBlocks(pick.length);
+                bench("disk.setFreeMap", params, i -> {
+                    disk.setFreeMap(free[(i >> 1) & mask], (i & 1) == 0);
+                    return i;
+                });
+            }
+        }
+    } // timeKernel
+
+    /** Times the Utilities codecs.
+     * @param size the disk size, which sets the number of bits packed.
+     */
+    private static void timeUtilities(int size) {
+        String params = "diskSize=" + size;
+        byte[] buf = new byte[size / 8 + 1];
+        bench("utilities.packInt", params, i -> {
+            Utilities.pack(i, buf, 0);
+            return Utilities.unpackInt(buf, 0);
+        });
+        byte[] name = new byte[Disk.FILE_NAME_OFFSET];
+        bench("utilities.packString", params, i -> {
+            Utilities.pack("file-name-" + (i & 1023), name, 0);
+            return Utilities.unpackString(name, 0).length();
+        });
+        boolean[] bits = new boolean[size];
+        for (int i = 0; i < size; i += 3) {
+            bits[i] = true;
+        }
+        bench("utilities.packBits", params, i -> {
+            Utilities.pack(bits, buf, 0);
+            return Utilities.unpackArrayBool(buf, 0, size).length;
+        });
+    } // timeUtilities
+
+    /** Formats the disk and fills it for one parameter combination.
+     * @param files the number of one-block files to create.
+     * @param fill the fraction of the disk's blocks to use.
+     * @return the names of the files.
+     */
+    private static String[] setUp(int files, double fill) {
+        System.setOut(discard);
+        try {
+            Library.format();
+            String[] names = new String[files];
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            for (int i = 0; i < files; i++) {
+                names[i] = "bench-" + i;
+                Library.create(names[i]);
+                Library.write(names[i], block);
+            }
+            int used = disk.DISK_SIZE - disk.freeBlocks();
+            int target = (int) (disk.DISK_SIZE * fill);
+            if (target > used) {
+                Library.create("bench-filler");
+                Library.write("bench-filler", 0, new byte[(target - used) * Disk.BLOCK_SIZE]);
+            }
+            return names;
+        } finally {
+            System.setOut(console);
+        }
+    } // setUp
+
+    /** Returns a random permutation of file numbers, repeated to fill an
+     * array whose length is a power of two.
+     * @param files the number of files.
+     * @return the file numbers.
+     */
+    private static int[] shuffle(int files) {
+        int n = Integer.highestOneBit(Math.max(1, files - 1)) << 1;
+        int[] pick = new int[n];
+        Random random = new Random(files);
+        for (int i = 0; i < n; i++) {
+            pick[i] = random.nextInt(files);
+        }
+        return pick;
+    } // shuffle
+
+    /** Finds some free blocks, spread over the disk.
+     * @param count the number wanted, a power of two.
+     * @return the blocks, repeated if there are fewer than count free.
+     */
+    private static int[] freeBlocks(int count) {
+        List<Integer> list = new ArrayList<>();
+        for (int b = 0; b < disk.DISK_SIZE; b++) {
+            if (!disk.isUsed(b)) {
+                list.add(b);
+            }
+        }
+        Collections.shuffle(list, new Random(count));
+        int[] free = new int[count];
+        for (int i = 0; i < count; i++) {
+            free[i] = list.get(i % list.size());
+        }
+        return free;
+    } // freeBlocks
+
+    /** Times one operation and prints the mean time per operation.
+     * @param name the name of the operation.
+     * @param params the parameters it is timed with.
+     * @param op the operation to time.
+     */
+    private static void bench(String name, String params, Op op) {
+        if (!only.matcher(name).find()) {
+            return;
+        }
+        long limit = millis * 1000000;
+        long elapsed;
+        int count = 0;
+        System.setOut(discard);
+        try {
+            long start = System.nanoTime();
+            do {
+                for (int k = 0; k < 16; k++) {
+                    sink += op.run(count++);
+                }
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < limit);
+        } finally {
+            System.setOut(console);
+        }
+        console.printf("%-26s %-36s %12.1f ns/op\n",
+            name, params, (double) elapsed / count);
+    } // bench
+} // FsBench
@@ -0,0 +1,153 @@
+import java.util.Arrays;
+
+/** A MiniKernel program that exercises the file system from many processes
+ * at once.
+ * <p>
+ * It launches a number of worker processes in parallel. Each worker
+ * repeatedly creates a file of its own, writes it through a file
+ * descriptor, reads it back by name and by descriptor, checks the
+ * contents, and deletes it. Between rounds every worker also reads a file
+ * shared by all of them, which the parent wrote before starting. At the
+ * end the parent prints the number of errors and the elapsed time.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java Boot 10 FastDisk 1024 FsStress [workers [rounds]]
+ * </pre>
+ * The defaults are 16 workers and 50 rounds. The program does not format
+ * the disk; its files are named <samp>stress-*</samp>.
+ * @see Kernel
+ */
+public class FsStress {
+    /** The name of the file every worker reads. */
+    private static final String SHARED = "stress-shared";
+
+    /** The length of each worker's file, in bytes; it spans several blocks. */
+    private static final int FILE_LENGTH = 3 * Disk.BLOCK_SIZE + 100;
+
+    /** The main program.
+     * @param args the number of workers and rounds, or "-worker", the
+     * worker number and the number of rounds when run as a worker.
+     */
+    public static void main(String args[]) {
+        if (args.length == 3 && args[0].equals("-worker")) {
+            worker(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        byte[] shared = pattern(-1, FILE_LENGTH);
+        run(new Kernel.BatchEntry[] {
+            new Kernel.BatchEntry(Kernel.DELETE_FILE, SHARED, null, 0),
+            new Kernel.BatchEntry(Kernel.CREATE_FILE, SHARED, null, 0),
+            new Kernel.BatchEntry(Kernel.WRITE_AT, SHARED, shared, 0),
+        });
+
+        long start = System.nanoTime();
+        int[] pids = new int[workers];
+        for (int i = 0; i < workers; i++) {
+            pids[i] = Library.exec("FsStress", new String[] {
+                "-worker", Integer.toString(i), Integer.toString(rounds) });
+        }
+        int failed = 0;
+        for (int pid : pids) {
+            if (pid < 0 || Library.join(pid) != 0) {
+                failed++;
+            }
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        run(new Kernel.BatchEntry[] {
+            new Kernel.BatchEntry(Kernel.DELETE_FILE, SHARED, null, 0) });
+        Library.output(String.format(
+            "FsStress: %d workers x %d rounds, %d failed, %d ms\n",
+            workers, rounds, failed, ms));
+    } // main
+
+    /** The body of one worker process.
+     * A worker that finds errors ends by throwing an exception, so that
+     * joining it returns ERROR_IN_CHILD.
+     * @param id the worker number.
+     * @param rounds the number of create/write/read/delete rounds.
+     */
+    private static void worker(int id, int rounds) {
+        String name = "stress-" + id;
+        byte[] shared = pattern(-1, FILE_LENGTH);
+        byte[] in = new byte[FILE_LENGTH];
+        int errors = 0;
+        for (int r = 0; r < rounds; r++) {
+            byte[] data = pattern(id * rounds + r, FILE_LENGTH);
+            if (run(new Kernel.BatchEntry[] {
+                    new Kernel.BatchEntry(Kernel.CREATE_FILE, name, null, 0) }) != 0) {
+                errors++;
+                continue;
+            }
+
+            int fd = Library.open(name);
+            int half = FILE_LENGTH / 2;
+            if (fd < 0
+                    || Library.write(fd, Arrays.copyOfRange(data, 0, half)) != half
+                    || Library.write(fd, Arrays.copyOfRange(data, half, FILE_LENGTH))
+                        != FILE_LENGTH - half) {
+                errors++;
+            }
+            Library.close(fd);
+
+            int[] results = new int[1];
+            Arrays.fill(in, (byte) 0);
+            run(new Kernel.BatchEntry[] {
+                new Kernel.BatchEntry(Kernel.READ_AT, name, in, 0) }, results);
+            if (results[0] != FILE_LENGTH || !Arrays.equals(in, data)) {
+                errors++;
+            }
+
+            Arrays.fill(in, (byte) 0);
+            fd = Library.open(SHARED);
+            if (fd < 0 || Library.read(fd, in) != FILE_LENGTH
+                    || !Arrays.equals(in, shared)) {
+                errors++;
+            }
+            Library.close(fd);
+
+            if (run(new Kernel.BatchEntry[] {
+                    new Kernel.BatchEntry(Kernel.DELETE_FILE, name, null, 0) }) != 0) {
+                errors++;
+            }
+        }
+        if (errors > 0) {
+            throw new IllegalStateException(
+                "FsStress: worker " + id + " found " + errors + " errors");
+        }
+    } // worker
+
+    /** Performs file system calls without printing anything.
+     * @param entries the calls.
+     * @return the number of calls that failed.
+     */
+    private static int run(Kernel.BatchEntry[] entries) {
+        return run(entries, new int[entries.length]);
+    } // run(BatchEntry[])
+
+    /** Performs file system calls without printing anything.
+     * @param entries the calls.
+     * @param results where to put the result of each call.
+     * @return the number of calls that failed.
+     */
+    private static int run(Kernel.BatchEntry[] entries, int[] results) {
+        return Library.batch(entries, results, false);
+    } // run(BatchEntry[], int[])
+
+    /** Makes recognizable file contents.
+     * @param seed distinguishes one file from another.
+     * @param length the number of bytes.
+     * @return the contents.
+     */
+    private static byte[] pattern(int seed, int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (seed * 31 + i * 7 + (i >> 9));
+        }
+        return b;
+    } // pattern
+} // FsStress
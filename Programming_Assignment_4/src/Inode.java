@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * The description of one file: its length and the blocks that hold it.
+ * <p>
+ * The blocks are kept as a list of <em>extents</em>, runs of contiguous
+ * blocks given by a start block and a length. Logical block <em>i</em> of
+ * the file is found by walking the extents in order. A file that was
+ * allocated in one piece has a single extent, so reading it sequentially
+ * touches consecutive disk blocks.
+ * <p>
+ * The block allocated when the file is created is its <em>head block</em>,
+ * the block number that the directory maps its name to. It starts out as
+ * the first block of the first extent, but when the Kernel deduplicates
+ * blocks, logical block 0 may be remapped elsewhere; the head block number
+ * still identifies the file.
+ *
+ * @see Disk
+ * @see Kernel
+ */
+public class Inode {
+    /** The length of the file in bytes. */
+    public int size;
+
+    /**
+     * Set when the file is deleted, so that descriptors still open on it
+     * stop working.
+     */
+    public boolean deleted;
+
+    /** The first block of each extent. */
+    private int[] starts = new int[2];
+
+    /** The block number that identifies the file. */
+    private final int head;
+
+    /** The number of blocks in each extent. */
+    private int[] lengths = new int[2];
+
+    /** The number of extents in use. */
+    private int extents;
+
+    /** The total number of blocks in all extents. */
+    private int blocks;
+
+    /**
+     * Creates an inode for an empty file with one allocated block.
+     *
+     * @param head the head block of the file.
+     */
+    public Inode(int head) {
+        this(head, head, 1);
+    } // Inode(int)
+
+    /**
+     * Creates an inode whose first extent need not start at its head block.
+     *
+     * @param head  the head block of the file.
+     * @param start the first block of the first extent.
+     * @param count the number of blocks in the first extent.
+     */
+    public Inode(int head, int start, int count) {
+        this.head = head;
+        append(start, count);
+    } // Inode(int, int, int)
+
+    /**
+     * Returns the head block of the file.
+     *
+     * @return the block number that identifies the file.
+     */
+    public int head() {
+        return head;
+    } // head
+
+    /**
+     * Returns the number of blocks allocated to the file.
+     *
+     * @return the number of blocks.
+     */
+    public int blocks() {
+        return blocks;
+    } // blocks
+
+    /**
+     * Returns the number of extents in the file.
+     *
+     * @return the number of extents.
+     */
+    public int extents() {
+        return extents;
+    } // extents
+
+    /**
+     * Returns the first block of an extent.
+     *
+     * @param i the extent number.
+     * @return the first block.
+     */
+    public int extentStart(int i) {
+        return starts[i];
+    } // extentStart
+
+    /**
+     * Returns the length of an extent.
+     *
+     * @param i the extent number.
+     * @return the number of blocks.
+     */
+    public int extentLength(int i) {
+        return lengths[i];
+    } // extentLength
+
+    /**
+     * Returns the block just past the end of the last extent, where the file
+     * would like to grow.
+     *
+     * @return a block number.
+     */
+    public int nextBlock() {
+        return starts[extents - 1] + lengths[extents - 1];
+    } // nextBlock
+
+    /**
+     * Maps a logical block of the file to a disk block.
+     *
+     * @param logical the index of the block within the file.
+     * @return the disk block, or -1 if the file is not that long.
+     */
+    public int blockAt(int logical) {
+        if (logical < 0) {
+            return -1;
+        }
+        for (int i = 0; i < extents; i++) {
+            if (logical < lengths[i]) {
+                return starts[i] + logical;
+            }
+            logical -= lengths[i];
+        }
+        return -1;
+    } // blockAt
+
+    /**
+     * Adds blocks to the end of the file. If they directly follow the last
+     * extent, that extent is lengthened instead of adding a new one.
+     *
+     * @param start the first block to add.
+     * @param count the number of blocks to add.
+     */
+    public void append(int start, int count) {
+        if (extents > 0 && nextBlock() == start) {
+            lengths[extents - 1] += count;
+        } else {
+            if (extents == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * extents);
+                lengths = Arrays.copyOf(lengths, 2 * extents);
+            }
+            starts[extents] = start;
+            lengths[extents] = count;
+            extents++;
+        }
+        blocks += count;
+    } // append
+
+    /**
+     * Maps one logical block of the file to a different disk block, splitting
+     * the extent that held it.
+     *
+     * @param logical the index of the block within the file.
+     * @param block   the disk block that now holds it.
+     */
+    public void remap(int logical, int block) {
+        int i = 0;
+        while (logical >= lengths[i]) {
+            logical -= lengths[i];
+            i++;
+        }
+        int[] oldStarts = Arrays.copyOfRange(starts, i, extents);
+        int[] oldLengths = Arrays.copyOfRange(lengths, i, extents);
+        for (int j = i; j < extents; j++) {
+            blocks -= lengths[j];
+        }
+        extents = i;
+        if (logical > 0) {
+            append(oldStarts[0], logical);
+        }
+        append(block, 1);
+        if (logical + 1 < oldLengths[0]) {
+            append(oldStarts[0] + logical + 1, oldLengths[0] - logical - 1);
+        }
+        for (int j = 1; j < oldStarts.length; j++) {
+            append(oldStarts[j], oldLengths[j]);
+        }
+    } // remap
+} // Inode
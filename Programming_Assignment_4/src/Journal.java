@@ -0,0 +1,872 @@
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * The file system metadata of a disk: the superblock, the directory and a
+ * write-ahead log of changes to the directory. Together they let the names,
+ * extents and sizes of files survive a crash, and let the file system be
+ * mounted by reading only a few blocks, however big the disk is.
+ * <p>
+ * Block 0 of the disk is the <em>superblock</em>. It records the layout of
+ * the disk, which copy of the directory is current, how long it is, and the
+ * epoch of the journal frames that follow it. The directory region holds
+ * two copies of the directory, each a packed list of entries giving a
+ * file's name, size and extents. The journal region holds frames of redo
+ * records for the changes made since the current copy was written.
+ * <p>
+ * The Kernel logs a small record for every change it makes to the
+ * directory: a file created or deleted, a run of blocks added to a file, a
+ * new file size, a block of a file moved to another disk block by
+ * deduplication, or the disk formatted. Records describe files by their
+ * head block, which is unique among live files.
+ * <p>
+ * Records are not written one at a time. Records logged since the last
+ * write wait in memory; a process that needs its change to be durable calls
+ * commit(), and if no write is in progress it becomes the <em>leader</em>
+ * and writes everything waiting, from every process, as one
+ * <em>frame</em> appended to the journal, then forces it to the DISK file.
+ * Processes that call commit() while the leader is writing wait for the
+ * next frame, which then carries all of their records at once. So however
+ * many processes are creating and deleting files, each group of them costs
+ * one sequential write and one force. If the write fails, commit() tells
+ * every process whose records it carried, and the next write is a
+ * checkpoint, which writes the whole directory again.
+ * <p>
+ * Each frame holds a magic number, an epoch, the length of its records and
+ * their CRC-32, and is followed by four zero bytes, so that reading stops
+ * there. When the journal is full, or checkpoint() is called (which the
+ * Kernel does from its flusher thread and at shutdown), a
+ * <em>checkpoint</em> writes the whole directory into the other copy,
+ * forces it, and then rewrites the superblock to point at it with the next
+ * epoch. The journal then starts again from its first block; frames left
+ * from the old epoch are ignored. So that a checkpoint is always possible,
+ * the journal keeps count of the bytes the directory would take, and
+ * refuses to log a change that would make it bigger than one copy.
+ * <p>
+ * To mount, replay() reads the superblock, the current copy of the
+ * directory, and the frames of the current epoch in order, stopping at the
+ * first that is torn or missing. The Disk then rebuilds its directory and
+ * free-space bitmap from the result. Only metadata is journaled: the
+ * contents of data blocks reach the DISK file as before, through
+ * Disk.sync() and Disk.flush().
+ *
+ * @see Disk#loadDisk()
+ * @see Kernel
+ */
+public class Journal {
+    /** The first bytes of the superblock. */
+    public static final int SUPER_MAGIC = 0x4D4B4653; // "MKFS"
+
+    /** The version of the layout described by the superblock. */
+    public static final int VERSION = 1;
+
+    /** The first bytes of every frame. */
+    public static final int MAGIC = 0x4A524E4C; // "JRNL"
+
+    /** The size of a frame header: magic, epoch, length and CRC. */
+    private static final int HEADER = 20;
+
+    /** The zero bytes written after each frame. */
+    private static final int TRAILER = 4;
+
+    /** The number of bytes of the superblock covered by its CRC. */
+    private static final int SUPER_LENGTH = 48;
+
+    /** Record type: every file was removed. */
+    private static final int FORMAT = 1;
+
+    /** Record type: a file was created with one block. */
+    private static final int CREATE = 2;
+
+    /** Record type: a file was deleted and its blocks freed. */
+    private static final int DELETE = 3;
+
+    /** Record type: a run of blocks was added to the end of a file. */
+    private static final int EXTEND = 4;
+
+    /** Record type: the size of a file changed. */
+    private static final int SIZE = 5;
+
+    /** Record type: a directory entry, with a file's size and extents. */
+    private static final int ENTRY = 6;
+
+    /** Record type: one logical block of a file moved to another block. */
+    private static final int REMAP = 7;
+
+    /**
+     * Record type: a directory entry for a file whose first extent does not
+     * start at its head block, which is given first.
+     */
+    private static final int ENTRY_AT = 8;
+
+    /** The disk holding the journal. */
+    private final Disk disk;
+
+    /** True if the disk has room for a journal and a directory. */
+    private boolean enabled;
+
+    /** The number of bytes in the journal region. */
+    private int journalBytes;
+
+    /** The number of bytes in each copy of the directory. */
+    private int copyBytes;
+
+    /** The files as the journal describes them, by head block. */
+    private final Map<Integer, Inode> files = new HashMap<>();
+
+    /** The names of the files, by head block. */
+    private final Map<Integer, String> names = new HashMap<>();
+
+    /** Records logged but not yet written. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    /** Writes records into pending. */
+    private final DataOutputStream out = new DataOutputStream(pending);
+
+    /** The number of records in pending. */
+    private int pendingRecords;
+
+    /** The sequence number of the last record logged. */
+    private long logged;
+
+    /** The sequence number of the last record written and forced. */
+    private long durable;
+
+    /** True while a leader is writing. */
+    private boolean writing;
+
+    /** True if the next write should be a checkpoint. */
+    private boolean checkpointWanted;
+
+    /** The number of records logged since the last checkpoint. */
+    private int sinceCheckpoint;
+
+    /** The sequence number of the last record in a write that failed. */
+    private long failed;
+
+    /** The number of bytes the directory takes when written out. */
+    private int directoryBytes;
+
+    /** The current copy of the directory, 0 or 1. */
+    private int copy;
+
+    /** The number of bytes of frames in the journal. */
+    private int tail;
+
+    /** The epoch of the frames in the journal. */
+    private long epoch;
+
+    /** Blocks read by the last replay, for statistics. */
+    private int blocksRead;
+
+    /** The last block read by replay, so blocks are counted once. */
+    private int lastRead;
+
+    /** Frames written, for statistics. */
+    private long frames;
+
+    /** Records written, for statistics. */
+    private long recordsWritten;
+
+    /** Bytes written, for statistics. */
+    private long bytesWritten;
+
+    /** Checkpoints written, for statistics. */
+    private long checkpoints;
+
+    /** A run of bytes to store on the disk and force. */
+    private static class Write {
+        /** The byte offset on the disk. */
+        final int position;
+
+        /** The bytes. */
+        final byte[] bytes;
+
+        /** Creates a write. */
+        Write(int position, byte[] bytes) {
+            this.position = position;
+            this.bytes = bytes;
+        } // Write
+    } // class Journal.Write
+
+    /**
+     * Creates the journal of a disk. Call replay() before logging anything.
+     *
+     * @param disk the disk.
+     */
+    public Journal(Disk disk) {
+        this.disk = disk;
+        journalBytes = disk.JOURNAL_BLOCKS * Disk.BLOCK_SIZE;
+        copyBytes = disk.DIRECTORY_BLOCKS / 2 * Disk.BLOCK_SIZE;
+        enabled = journalBytes > 0 && copyBytes > 0;
+    } // Journal
+
+    /**
+     * Mounts the file system: reads the superblock, the directory and the
+     * journal, and returns the files they describe. The layout recorded in
+     * the superblock is used, whatever the system properties say. A new
+     * disk, which has no superblock, gets an empty file system; an existing
+     * one without a valid superblock is refused. Afterwards new frames are
+     * appended after the last valid one.
+     *
+     * @return the inodes of the files, by name. The inodes are copies that
+     *         the caller may keep.
+     * @throws Disk.DiskException if an existing disk has no valid superblock
+     *         or its directory is corrupt.
+     */
+    public synchronized Map<String, Inode> replay() {
+        files.clear();
+        names.clear();
+        directoryBytes = 0;
+        tail = 0;
+        blocksRead = 0;
+        lastRead = -1;
+        byte[] sb = read(0, SUPER_LENGTH + 4);
+        boolean valid = validSuperblock(sb);
+        if (!valid && enabled && disk.isRestored()) {
+            // Writing an empty file system here would lose every file.
+            throw new Disk.DiskException("File DISK has no valid superblock;"
+                + " it was made by an older version or is damaged."
+                + " Move it aside to start a new disk.");
+        }
+        if (valid) {
+            useLayout(readInt(sb, 12), readInt(sb, 16), readInt(sb, 20));
+        }
+        if (enabled) {
+            if (!valid) {
+                // A new disk.
+                epoch = System.currentTimeMillis();
+                copy = 1;
+                try {
+                    perform(checkpointWrites());
+                } catch (IOException e) {
+                    System.out.println("Journal: cannot write superblock: " + e);
+                }
+            } else {
+                copy = readInt(sb, 32);
+                epoch = (long) readInt(sb, 24) << 32 | (readInt(sb, 28) & 0xffffffffL);
+                int length = readInt(sb, 36);
+                byte[] dir = read(directory(copy), length);
+                if (crc(dir, 0, length) != readInt(sb, 40)) {
+                    throw new Disk.DiskException("The directory on DISK is corrupt");
+                }
+                apply(dir, 0, length);
+                while (tail + HEADER <= journalBytes) {
+                    byte[] header = read(journalStart() + tail, HEADER);
+                    length = readInt(header, 12);
+                    if (readInt(header, 0) != MAGIC || frameEpoch(header) != epoch
+                            || length < 0 || length > journalBytes - tail - HEADER) {
+                        break;
+                    }
+                    byte[] records = read(journalStart() + tail + HEADER, length);
+                    if (crc(records, 0, length) != readInt(header, 16)) {
+                        break;
+                    }
+                    apply(records, 0, length);
+                    tail += HEADER + length;
+                }
+            }
+        }
+        Map<String, Inode> result = new HashMap<>();
+        for (Map.Entry<Integer, Inode> e : files.entrySet()) {
+            result.put(names.get(e.getKey()), copy(e.getValue()));
+        }
+        return result;
+    } // replay
+
+    /**
+     * Returns the number of blocks the last replay read.
+     *
+     * @return the number of blocks.
+     */
+    public synchronized int blocksRead() {
+        return blocksRead;
+    } // blocksRead
+
+    /**
+     * Logs the creation of a file.
+     *
+     * @param name the name of the file.
+     * @param head its head block.
+     * @return the sequence number of the record, to pass to commit(), or -1
+     *         if the directory has no room for the file.
+     */
+    public synchronized long logCreate(String name, int head) {
+        if (!enabled) {
+            return 0;
+        }
+        if (directoryBytes + entryBytes(name, 1, true) > copyBytes) {
+            return -1;
+        }
+        try {
+            out.writeByte(CREATE);
+            out.writeInt(head);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        create(head, name);
+        return logged();
+    } // logCreate
+
+    /**
+     * Logs the deletion of a file. Log it before freeing the file's blocks,
+     * so that a record giving them to another file always comes later.
+     *
+     * @param head the head block of the file.
+     * @return the sequence number of the record.
+     */
+    public synchronized long logDelete(int head) {
+        return log(DELETE, head, 0, 0);
+    } // logDelete
+
+    /**
+     * Logs the removal of every file.
+     *
+     * @return the sequence number of the record.
+     */
+    public synchronized long logFormat() {
+        return log(FORMAT, 0, 0, 0);
+    } // logFormat
+
+    /**
+     * Logs a run of blocks added to the end of a file.
+     *
+     * @param head  the head block of the file.
+     * @param start the first block added.
+     * @param count the number of blocks added.
+     * @return the sequence number of the record, or -1 if the directory
+     *         has no room for another extent.
+     */
+    public synchronized long logExtend(int head, int start, int count) {
+        if (directoryBytes + 8 > copyBytes) {
+            return -1;
+        }
+        return log(EXTEND, head, start, count);
+    } // logExtend
+
+    /**
+     * Logs a new size for a file.
+     *
+     * @param head the head block of the file.
+     * @param size the size in bytes.
+     * @return the sequence number of the record.
+     */
+    public synchronized long logSize(int head, int size) {
+        return log(SIZE, head, size, 0);
+    } // logSize
+
+    /**
+     * Logs a logical block of a file mapped to a different disk block.
+     *
+     * @param head    the head block of the file.
+     * @param logical the index of the block within the file.
+     * @param block   the disk block that now holds it.
+     * @return the sequence number of the record, or -1 if the directory
+     *         has no room for the extents the move could add.
+     */
+    public synchronized long logRemap(int head, int logical, int block) {
+        // Splitting an extent adds two more, and the head may move.
+        if (directoryBytes + 2 * 8 + 4 > copyBytes) {
+            return -1;
+        }
+        return log(REMAP, head, logical, block);
+    } // logRemap
+
+    /**
+     * Waits until a record, and every record logged before it, is on the
+     * disk. If no other process is writing, the caller writes all waiting
+     * records as one frame, or as a checkpoint.
+     *
+     * @param seq the sequence number returned when the record was logged.
+     * @return true if the record is on the disk; false if the write that
+     *         carried it failed, or the caller was interrupted.
+     */
+    public boolean commit(long seq) {
+        for (;;) {
+            List<Write> writes;
+            long upTo;
+            int oldCopy;
+            long oldEpoch;
+            int oldTail;
+            synchronized (this) {
+                while (writing && durable < seq) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (durable >= seq) {
+                    return true;
+                }
+                if (failed >= seq) {
+                    return false;
+                }
+                writing = true;
+                upTo = logged;
+                oldCopy = copy;
+                oldEpoch = epoch;
+                oldTail = tail;
+                writes = nextWrites();
+            }
+            boolean done = false;
+            try {
+                if (writes == null) {
+                    System.out.println("Journal: the directory no longer fits in "
+                        + disk.DIRECTORY_BLOCKS / 2 + " blocks");
+                } else {
+                    perform(writes);
+                    done = true;
+                }
+            } catch (IOException e) {
+                System.out.println("Journal: cannot write: " + e);
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    if (done) {
+                        durable = upTo;
+                    } else {
+                        // Nothing is known to be on the disk, so go back to
+                        // the layout the superblock had, and write everything
+                        // again as a checkpoint next time.
+                        failed = upTo;
+                        copy = oldCopy;
+                        epoch = oldEpoch;
+                        tail = oldTail;
+                        checkpointWanted = true;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    } // commit
+
+    /**
+     * Waits until every record logged so far is on the disk.
+     *
+     * @return true if they are on the disk.
+     */
+    public boolean flush() {
+        long seq;
+        synchronized (this) {
+            seq = logged;
+        }
+        return commit(seq);
+    } // flush
+
+    /**
+     * Writes the whole directory and a new superblock, if anything has been
+     * logged since the last checkpoint, so that the journal starts again
+     * empty.
+     *
+     * @return false if the checkpoint could not be written.
+     */
+    public boolean checkpoint() {
+        long seq;
+        synchronized (this) {
+            if (!enabled || sinceCheckpoint == 0 && tail == 0) {
+                return true;
+            }
+            checkpointWanted = true;
+            seq = ++logged;
+        }
+        return commit(seq);
+    } // checkpoint
+
+    /**
+     * Returns a one-line summary of the journal's activity.
+     *
+     * @return the statistics.
+     */
+    public synchronized String statistics() {
+        return String.format(
+            "Journal: %d records in %d frames (%.1f per frame), %d bytes, %d checkpoints",
+            recordsWritten, frames, frames == 0 ? 0.0 : (double) recordsWritten / frames,
+            bytesWritten, checkpoints);
+    } // statistics
+
+    //////////////// Private methods; the caller holds the lock on this
+
+    /** Writes a record with up to three int fields and applies it. */
+    private long log(int type, int head, int x, int y) {
+        if (!enabled) {
+            return 0;
+        }
+        try {
+            out.writeByte(type);
+            if (type != FORMAT) {
+                out.writeInt(head);
+            }
+            if (type == EXTEND || type == SIZE || type == REMAP) {
+                out.writeInt(x);
+            }
+            if (type == EXTEND || type == REMAP) {
+                out.writeInt(y);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        apply(type, head, x, y);
+        return logged();
+    } // log
+
+    /** Counts a record just added to pending. */
+    private long logged() {
+        pendingRecords++;
+        sinceCheckpoint++;
+        return ++logged;
+    } // logged
+
+    /**
+     * Takes the records waiting in pending and plans the next write: a
+     * frame of them, or a checkpoint if one is wanted or the journal is full.
+     *
+     * @return the writes, in the order they must reach the disk, or null if
+     *         a checkpoint is due and the directory does not fit.
+     */
+    private List<Write> nextWrites() {
+        byte[] records = pending.toByteArray();
+        int count = pendingRecords;
+        pending.reset();
+        pendingRecords = 0;
+        boolean full = tail + HEADER + records.length + TRAILER > journalBytes;
+        if (!checkpointWanted && !full) {
+            if (records.length == 0) {
+                return List.of();
+            }
+            int position = journalStart() + tail;
+            tail += HEADER + records.length;
+            return List.of(new Write(position, frame(records, count)));
+        }
+        checkpointWanted = false;
+        return checkpointWrites();
+    } // nextWrites
+
+    /**
+     * Plans a checkpoint: the directory, written into the copy not in use,
+     * followed by a superblock pointing at it with a new epoch. Records
+     * waiting in pending are already in the directory and are dropped.
+     *
+     * @return the writes, or null if the directory does not fit.
+     */
+    private List<Write> checkpointWrites() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        directory(new DataOutputStream(bytes));
+        byte[] dir = bytes.toByteArray();
+        if (dir.length > copyBytes) {
+            return null;
+        }
+        sinceCheckpoint = 0;
+        checkpoints++;
+        bytesWritten += dir.length + Disk.BLOCK_SIZE;
+        copy ^= 1;
+        epoch++;
+        tail = 0;
+        return List.of(new Write(directory(copy), dir),
+            new Write(0, superblock(dir)));
+    } // checkpointWrites
+
+    /** Wraps records in a frame header and trailer, and counts them. */
+    private byte[] frame(byte[] records, int count) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+            HEADER + records.length + TRAILER);
+        DataOutputStream frame = new DataOutputStream(bytes);
+        try {
+            frame.writeInt(MAGIC);
+            frame.writeLong(epoch);
+            frame.writeInt(records.length);
+            frame.writeInt(crc(records, 0, records.length));
+            frame.write(records);
+            frame.writeInt(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        frames++;
+        recordsWritten += count;
+        bytesWritten += HEADER + records.length;
+        return bytes.toByteArray();
+    } // frame
+
+    /**
+     * Makes the superblock for the current epoch and copy of the directory.
+     *
+     * @param dir the directory.
+     * @return the superblock, one block long.
+     */
+    private byte[] superblock(byte[] dir) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Disk.BLOCK_SIZE);
+        DataOutputStream sb = new DataOutputStream(bytes);
+        try {
+            sb.writeInt(SUPER_MAGIC);
+            sb.writeInt(VERSION);
+            sb.writeInt(disk.DISK_SIZE);
+            sb.writeInt(disk.JOURNAL_START);
+            sb.writeInt(disk.JOURNAL_BLOCKS);
+            sb.writeInt(disk.DIRECTORY_BLOCKS);
+            sb.writeLong(epoch);
+            sb.writeInt(copy);
+            sb.writeInt(dir.length);
+            sb.writeInt(crc(dir, 0, dir.length));
+            sb.writeInt(files.size());
+            sb.writeInt(crc(bytes.toByteArray(), 0, SUPER_LENGTH));
+            sb.write(new byte[Disk.BLOCK_SIZE - bytes.size()]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    } // superblock
+
+    /**
+     * Tells whether a superblock is intact, belongs to a disk of this size,
+     * and describes a layout that fits on it.
+     */
+    private boolean validSuperblock(byte[] sb) {
+        int journalStart = readInt(sb, 12);
+        int journalBlocks = readInt(sb, 16);
+        int directoryBlocks = readInt(sb, 20);
+        int length = readInt(sb, 36);
+        return readInt(sb, 0) == SUPER_MAGIC && readInt(sb, 4) == VERSION
+            && crc(sb, 0, SUPER_LENGTH) == readInt(sb, SUPER_LENGTH)
+            && readInt(sb, 8) == disk.DISK_SIZE
+            && journalStart >= Disk.MAP_START + disk.MAP_BLOCKS
+            && journalBlocks > 0 && directoryBlocks > 0 && directoryBlocks % 2 == 0
+            && (long) journalStart + journalBlocks + directoryBlocks <= disk.DISK_SIZE
+            && length >= 0 && length <= directoryBlocks / 2 * Disk.BLOCK_SIZE;
+    } // validSuperblock
+
+    /**
+     * Switches to the layout recorded in the superblock, telling the user if
+     * it is not the one the system properties ask for.
+     */
+    private void useLayout(int journalStart, int journalBlocks, int directoryBlocks) {
+        if (journalBlocks != disk.JOURNAL_BLOCKS || directoryBlocks != disk.DIRECTORY_BLOCKS) {
+            System.out.println("Journal: DISK has a journal of " + journalBlocks
+                + " blocks and a directory of " + directoryBlocks + " blocks; using those");
+        }
+        disk.useLayout(journalStart, journalBlocks, directoryBlocks);
+        journalBytes = journalBlocks * Disk.BLOCK_SIZE;
+        copyBytes = directoryBlocks / 2 * Disk.BLOCK_SIZE;
+        enabled = true;
+    } // useLayout
+
+    /** Writes one ENTRY record for each file. */
+    private void directory(DataOutputStream s) {
+        try {
+            for (Map.Entry<Integer, Inode> e : files.entrySet()) {
+                Inode inode = e.getValue();
+                if (inode.extentStart(0) == inode.head()) {
+                    s.writeByte(ENTRY);
+                } else {
+                    s.writeByte(ENTRY_AT);
+                    s.writeInt(inode.head());
+                }
+                s.writeUTF(names.get(e.getKey()));
+                s.writeInt(inode.size);
+                s.writeInt(inode.extents());
+                for (int i = 0; i < inode.extents(); i++) {
+                    s.writeInt(inode.extentStart(i));
+                    s.writeInt(inode.extentLength(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    } // directory
+
+    /** Applies the records in part of an array. */
+    private void apply(byte[] bytes, int offset, int length) {
+        try {
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes, offset, length));
+            while (in.available() > 0) {
+                int type = in.readByte();
+                switch (type) {
+                    case FORMAT -> apply(FORMAT, 0, 0, 0);
+                    case CREATE -> {
+                        int head = in.readInt();
+                        create(head, in.readUTF());
+                    }
+                    case DELETE -> apply(DELETE, in.readInt(), 0, 0);
+                    case EXTEND -> apply(EXTEND, in.readInt(), in.readInt(), in.readInt());
+                    case SIZE -> apply(SIZE, in.readInt(), in.readInt(), 0);
+                    case REMAP -> apply(REMAP, in.readInt(), in.readInt(), in.readInt());
+                    case ENTRY, ENTRY_AT -> {
+                        int head = type == ENTRY_AT ? in.readInt() : -1;
+                        String name = in.readUTF();
+                        int size = in.readInt();
+                        int extents = in.readInt();
+                        Inode inode = null;
+                        for (int i = 0; i < extents; i++) {
+                            int start = in.readInt();
+                            int count = in.readInt();
+                            if (inode == null) {
+                                inode = new Inode(head == -1 ? start : head, start, count);
+                            } else {
+                                inode.append(start, count);
+                            }
+                        }
+                        if (inode != null) {
+                            inode.size = size;
+                            create(inode, name);
+                        }
+                    }
+                    default -> throw new IOException("bad record type " + type);
+                }
+            }
+        } catch (IOException e) {
+            // The CRC matched, so this is a bug rather than a torn write.
+            System.out.println("Journal: cannot replay: " + e);
+        }
+    } // apply(byte[], int, int)
+
+    /** Applies a record to the journal's copy of the directory. */
+    private void apply(int type, int head, int x, int y) {
+        Inode inode = files.get(head);
+        if (inode != null) {
+            directoryBytes -= entryBytes(inode);
+        }
+        switch (type) {
+            case FORMAT -> {
+                files.clear();
+                names.clear();
+                directoryBytes = 0;
+                inode = null;
+            }
+            case DELETE -> {
+                files.remove(head);
+                names.remove(head);
+                inode = null;
+            }
+            case EXTEND -> {
+                if (inode != null) {
+                    inode.append(x, y);
+                }
+            }
+            case SIZE -> {
+                if (inode != null) {
+                    inode.size = x;
+                }
+            }
+            case REMAP -> {
+                if (inode != null && x < inode.blocks()) {
+                    inode.remap(x, y);
+                }
+            }
+        }
+        if (inode != null) {
+            directoryBytes += entryBytes(inode);
+        }
+    } // apply(int, int, int, int)
+
+    /** Applies a CREATE record, and returns the new inode. */
+    private Inode create(int head, String name) {
+        return create(new Inode(head), name);
+    } // create(int, String)
+
+    /** Adds an inode to the journal's copy of the directory, and returns it. */
+    private Inode create(Inode inode, String name) {
+        Inode old = files.put(inode.head(), inode);
+        if (old != null) {
+            directoryBytes -= entryBytes(old);
+        }
+        names.put(inode.head(), name);
+        directoryBytes += entryBytes(inode);
+        return inode;
+    } // create(Inode, String)
+
+    /** Returns the number of bytes a file's entry takes in the directory. */
+    private int entryBytes(Inode inode) {
+        return entryBytes(names.get(inode.head()), inode.extents(),
+            inode.extentStart(0) == inode.head());
+    } // entryBytes(Inode)
+
+    /**
+     * Returns the number of bytes an entry takes in the directory, as
+     * written by directory().
+     *
+     * @param name    the name of the file.
+     * @param extents the number of extents.
+     * @param atHead  true if the first extent starts at the head block.
+     * @return the number of bytes.
+     */
+    private static int entryBytes(String name, int extents, boolean atHead) {
+        int utf = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            utf += c >= 1 && c <= 0x7f ? 1 : c <= 0x7ff ? 2 : 3;
+        }
+        return (atHead ? 1 : 5) + 2 + utf + 4 + 4 + 8 * extents;
+    } // entryBytes(String, int, boolean)
+
+    /**
+     * Stores runs of bytes on the disk in order, forcing each to the DISK
+     * file before the next is stored. Called without the lock, by the one
+     * process that is writing.
+     */
+    private void perform(List<Write> writes) throws IOException {
+        for (Write w : writes) {
+            disk.putBytes(w.position, w.bytes, 0, w.bytes.length);
+            int first = w.position / Disk.BLOCK_SIZE;
+            int end = (w.position + w.bytes.length + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+            disk.force(first, end - first);
+        }
+    } // perform
+
+    /**
+     * Reads bytes from the disk, counting the blocks they span. Replay reads
+     * in increasing order, so a block already counted is never after
+     * lastRead.
+     */
+    private byte[] read(int position, int length) {
+        byte[] bytes = new byte[length];
+        disk.getBytes(position, bytes, 0, length);
+        int first = Math.max(position / Disk.BLOCK_SIZE, lastRead + 1);
+        int end = (position + length + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE;
+        if (end > first) {
+            blocksRead += end - first;
+            lastRead = end - 1;
+        }
+        return bytes;
+    } // read
+
+    /** Returns an inode with the same extents and size as another. */
+    private static Inode copy(Inode inode) {
+        Inode copy = new Inode(inode.head(), inode.extentStart(0), inode.extentLength(0));
+        for (int i = 1; i < inode.extents(); i++) {
+            copy.append(inode.extentStart(i), inode.extentLength(i));
+        }
+        copy.size = inode.size;
+        return copy;
+    } // copy
+
+    /** Returns the byte offset on the disk of the journal. */
+    private int journalStart() {
+        return disk.JOURNAL_START * Disk.BLOCK_SIZE;
+    } // journalStart
+
+    /** Returns the byte offset on the disk of one copy of the directory. */
+    private int directory(int c) {
+        return disk.DIRECTORY_START * Disk.BLOCK_SIZE + c * copyBytes;
+    } // directory(int)
+
+    /** Returns the epoch in a frame header. */
+    private static long frameEpoch(byte[] header) {
+        return (long) readInt(header, 4) << 32 | (readInt(header, 8) & 0xffffffffL);
+    } // frameEpoch
+
+    /** Returns the CRC-32 of part of an array. */
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    } // crc
+
+    /** Reads a big-endian int from a byte array. */
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+            | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    } // readInt
+} // Journal
@@ -2,7 +2,12 @@
 
 import java.util.*;
 import java.io.*;
-import java.lang.reflect.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /**
  * A simple kernel simulation.
@@ -32,8 +37,11 @@ public class Kernel {
     public static final int INTERRUPT_USER = 0;
 
     /**
-     * An interrupt kind indicating that a disk caused the interrupt.
-     * All other parameters will be null or zero.
+     * An interrupt kind indicating that a disk has completed a request.
+     * <ul>
+     * <li><b>Parameter i1</b> -- the block number of the request.
+     * <li><b>Parameter o1</b> -- the Disk.Request that has completed.
+     * </ul>
      */
     public static final int INTERRUPT_DISK = 1;
 
@@ -53,16 +61,18 @@ public class Kernel {
     //////////////// Values for the second parameter ("i1") for USER interrupts
 
     /**
-     * System call to output text on the console.
+     * System call to output text on the console, or on the process's
+     * standard output if that is a pipe.
      * <ul>
      * <li><b>Parameter o1</b> -- A string to display
-     * <li><b>Returns</b> -- Zero.
+     * <li><b>Returns</b> -- Zero, or ERROR_BROKEN_PIPE.
      * </ul>
      */
     public static final int SYSCALL_OUTPUT = 0;
 
     /**
-     * System call to read text from the console.
+     * System call to read text from the console, or a line from the
+     * process's standard input if that is a pipe.
      * This function returns when the user presses [Enter].
      * <ul>
      * <li><b>Parameter o1</b> -- A StringBuffer to fill with input text.
@@ -75,9 +85,14 @@ public class Kernel {
     /**
      * System call to execute a new program.
      * The new program will run in parallel to the current program.
+     * Its standard input and output are those of the caller, unless
+     * i2 names pipe descriptors of the caller to use instead.
      * <ul>
      * <li><b>Parameter o1</b> - The name of a Java class to execute.
      * <li><b>Parameter o2</b> - An array for String arguments.
+     * <li><b>Parameter i2</b> - Zero, or <samp>(stdin + 1) | (stdout + 1)
+     * &lt;&lt; 16</samp>, where stdin is the read end of a pipe and stdout
+     * the write end of one, either -1 to keep the caller's.
      * <li><b>Returns</b> - A non-negative process id or ERROR_BAD_ARGUMENT,
      * ERROR_NO_CLASS, ERROR_NO_MAIN, or ERROR_BAD_COMMAND.
      * </ul>
@@ -101,6 +116,195 @@ public class Kernel {
     public static final int LIST_FILES = 8;
     public static final int DELETE_FILE = 9;
 
+    /**
+     * System call to read part of a file.
+     * <ul>
+     * <li><b>Parameter o1</b> -- the name of the file.
+     * <li><b>Parameter i2</b> -- the byte offset in the file to start at.
+     * <li><b>Parameter a</b> -- a buffer to fill; its length is the number
+     * of bytes wanted.
+     * <li><b>Returns</b> -- the number of bytes read, which is less than
+     * requested at end of file, or -1 if there is no such file.
+     * </ul>
+     */
+    public static final int READ_AT = 10;
+
+    /**
+     * System call to write part of a file, growing it if necessary.
+     * Any gap between the old end of the file and the offset reads as
+     * zeros.
+     * <ul>
+     * <li><b>Parameter o1</b> -- the name of the file.
+     * <li><b>Parameter i2</b> -- the byte offset in the file to start at.
+     * <li><b>Parameter a</b> -- the bytes to write.
+     * <li><b>Returns</b> -- the number of bytes written, or -1 if there is
+     * no such file or the disk is full.
+     * </ul>
+     */
+    public static final int WRITE_AT = 11;
+
+    /**
+     * System call to perform a batch of file system calls at once.
+     * Each entry of the batch is one of FORMAT_DISK, CREATE_FILE, READ_FILE,
+     * WRITE_FILE, LIST_FILES, DELETE_FILE, READ_AT or WRITE_AT, with the
+     * same meaning as when it is called by itself.
+     * <ul>
+     * <li><b>Parameter o1</b> -- an array of Kernel.BatchEntry to perform.
+     * <li><b>Parameter o2</b> -- an int array, at least as long, to receive
+     * the return code of each entry.
+     * <li><b>Parameter i2</b> -- BATCH_IN_ORDER to perform the entries in
+     * order, or BATCH_SORTED to let the kernel reorder reads and writes by
+     * block number.
+     * <li><b>Returns</b> -- the number of entries that failed, or
+     * ERROR_BAD_ARGUMENT.
+     * </ul>
+     */
+    public static final int SYSCALL_BATCH = 12;
+
+    /**
+     * System call to open a file for reading and writing.
+     * The name is looked up once; later calls on the descriptor go
+     * straight to the file.
+     * <ul>
+     * <li><b>Parameter o1</b> -- the name of the file.
+     * <li><b>Returns</b> -- a small non-negative file descriptor, private to
+     * the calling process, or -1 if there is no such file.
+     * </ul>
+     */
+    public static final int OPEN_FILE = 13;
+
+    /**
+     * System call to close a file descriptor.
+     * Descriptors still open when a process ends are closed for it.
+     * <ul>
+     * <li><b>Parameter i2</b> -- the file descriptor.
+     * <li><b>Returns</b> -- Zero, or -1 if the descriptor is not open.
+     * </ul>
+     */
+    public static final int CLOSE_FILE = 14;
+
+    /**
+     * System call to read from an open file at its current position, and
+     * advance the position past the bytes read.
+     * <ul>
+     * <li><b>Parameter i2</b> -- the file descriptor.
+     * <li><b>Parameter a</b> -- a buffer to fill; its length is the number
+     * of bytes wanted.
+     * <li><b>Returns</b> -- the number of bytes read, zero at end of file,
+     * or -1 if the descriptor is not open or the file has been deleted.
+     * </ul>
+     */
+    public static final int READ_FD = 15;
+
+    /**
+     * System call to write to an open file at its current position, and
+     * advance the position past the bytes written.
+     * <ul>
+     * <li><b>Parameter i2</b> -- the file descriptor.
+     * <li><b>Parameter a</b> -- the bytes to write.
+     * <li><b>Returns</b> -- the number of bytes written, or -1 if the
+     * descriptor is not open, the file has been deleted or the disk is
+     * full.
+     * </ul>
+     */
+    public static final int WRITE_FD = 16;
+
+    /**
+     * System call to get the kernel's system call statistics.
+     * <ul>
+     * <li><b>Parameter i2</b> -- a process id, or zero for a table of every
+     * system call.
+     * <li><b>Parameter o1</b> -- a StringBuffer to receive the report.
+     * <li><b>Returns</b> -- Zero, or ERROR_NO_SUCH_PROCESS.
+     * </ul>
+     */
+    public static final int SYSCALL_STATS = 17;
+
+    /**
+     * System call to make a pipe: a bounded buffer in memory that one
+     * process writes bytes into and another reads them out of.
+     * <ul>
+     * <li><b>Parameter o1</b> -- an int array of length at least two, to
+     * receive the pipe descriptor of the read end in element 0 and of the
+     * write end in element 1.
+     * <li><b>Returns</b> -- Zero, or ERROR_BAD_ARGUMENT.
+     * </ul>
+     */
+    public static final int PIPE = 18;
+
+    /**
+     * System call to read from a pipe, waiting until there is something to
+     * read.
+     * <ul>
+     * <li><b>Parameter i2</b> -- a pipe descriptor for a read end.
+     * <li><b>Parameter a</b> -- a buffer to fill; its length is the most
+     * bytes wanted.
+     * <li><b>Returns</b> -- the number of bytes read, zero once every write
+     * end is closed and the pipe is empty, or ERROR_BAD_ARGUMENT.
+     * </ul>
+     */
+    public static final int PIPE_READ = 19;
+
+    /**
+     * System call to write to a pipe, waiting while it is full.
+     * <ul>
+     * <li><b>Parameter i2</b> -- a pipe descriptor for a write end.
+     * <li><b>Parameter a</b> -- the bytes to write.
+     * <li><b>Returns</b> -- the number of bytes written, ERROR_BROKEN_PIPE
+     * if every read end is closed, or ERROR_BAD_ARGUMENT.
+     * </ul>
+     */
+    public static final int PIPE_WRITE = 20;
+
+    /**
+     * System call to close a pipe descriptor.
+     * Pipe descriptors still open when a process ends are closed for it.
+     * <ul>
+     * <li><b>Parameter i2</b> -- the pipe descriptor.
+     * <li><b>Returns</b> -- Zero, or ERROR_BAD_ARGUMENT if it is not open.
+     * </ul>
+     */
+    public static final int PIPE_CLOSE = 21;
+
+    /**
+     * System call to output bytes on the console, or on the process's
+     * standard output if that is a pipe. Like SYSCALL_OUTPUT, but the
+     * bytes are passed as they are, with no String to build or encode.
+     * <ul>
+     * <li><b>Parameter a</b> -- the bytes to display.
+     * <li><b>Returns</b> -- the number of bytes, ERROR_BROKEN_PIPE, or
+     * ERROR_BAD_ARGUMENT.
+     * </ul>
+     */
+    public static final int OUTPUT_BYTES = 22;
+
+    //////////////// Pipe descriptors every process has
+
+    /**
+     * The pipe descriptor of a process's standard input, if it was started
+     * reading from a pipe. Other pipes get descriptors from 2 up.
+     */
+    public static final int STDIN = 0;
+
+    /**
+     * The pipe descriptor of a process's standard output, if it was
+     * started writing to a pipe.
+     */
+    public static final int STDOUT = 1;
+
+    //////////////// Values for the "i2" parameter of SYSCALL_BATCH
+
+    /** Perform the entries of a batch strictly in order. */
+    public static final int BATCH_IN_ORDER = 0;
+
+    /**
+     * Allow the kernel to sort each run of consecutive reads and writes in
+     * a batch by the first block of the file they touch. Entries for the
+     * same file are kept together and in their order, and no read or write
+     * is moved past a create, delete, format or list.
+     */
+    public static final int BATCH_SORTED = 1;
+
     //////////////// Error codes returned by interrupt()
 
     /**
@@ -150,14 +354,91 @@ public class Kernel {
      */
     public static final int ERROR_NO_SUCH_PROCESS = -9;
 
+    /**
+     * An error code indicating a write to a pipe that nobody can read any
+     * more.
+     */
+    public static final int ERROR_BROKEN_PIPE = -10;
+
     //////////////// Transient state of the kernel
 
     /** The disk to be used */
-    private static FastDisk disk;
+    private static Disk disk;
 
     /** The size of the disk cache */
     private static int cacheSize;
 
+    /**
+     * The console that output from processes is buffered through, or null
+     * if the <samp>console.bufferSize</samp> system property is zero and
+     * output goes straight to System.out.
+     */
+    private static Console console;
+
+    /**
+     * The log of changes to the directory. Creating, deleting and formatting
+     * wait until their records are on the disk; the records for files
+     * growing and changing size are written along with the next commit or
+     * checkpoint.
+     */
+    private static Journal journal;
+
+    /**
+     * The buffer cache between the file system calls and the disk.
+     * Its replacement policy is taken from the <samp>cache.policy</samp>
+     * system property (LRU, CLOCK or 2Q; LRU by default). Reads through an
+     * open file, and the READ_AT calls of each process, are streams that
+     * the cache reads ahead of.
+     */
+    private static BlockCache cache;
+
+    /**
+     * The reference counts and content index of shared blocks, if the
+     * <samp>kernel.dedup</samp> system property is true or the disk already
+     * has shared blocks; otherwise null.
+     */
+    private static Dedup dedup;
+
+    /**
+     * The background thread that periodically writes dirty data to the DISK
+     * file, or null if it is not running. It is started when the
+     * <samp>disk.flushInterval</samp> system property is set to a number of
+     * milliseconds.
+     */
+    private static Flusher flusher;
+
+    /**
+     * Counts and times every system call. If the <samp>kernel.trace</samp>
+     * system property is set to a number of calls, that many of the most
+     * recent calls are also kept, and written to the file TRACE at
+     * shutdown.
+     */
+    private static final SyscallStats stats =
+        new SyscallStats(Integer.getInteger("kernel.trace", 0));
+
+    /** The number of locks in fileLocks. A power of two. */
+    private static final int FILE_LOCK_STRIPES = 64;
+
+    /**
+     * Reader/writer locks for file data, shared among files by hashing their
+     * names. Calls that only read a file hold its read lock, so readers of
+     * one file run in parallel; calls that change a file or its directory
+     * entry hold the write lock. Different files usually hash to different
+     * locks and do not wait for each other at all.
+     * <p>
+     * Directory lookups take no lock (see DirectoryIndex), and the block
+     * allocator has its own lock inside Disk. FORMAT_DISK holds every write
+     * lock, in index order.
+     */
+    private static final ReentrantReadWriteLock[] fileLocks =
+        new ReentrantReadWriteLock[FILE_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
     //////////////// Methods
 
     /**
@@ -168,9 +449,11 @@ public class Kernel {
      * and set <tt>i1</tt> to the system call number. Other
      * parameters should be set as the system call requires.
      * <p>
-     * A disk may call this function to indicate the current operation
+     * A disk may call this function to indicate that a request
      * has completed. In that case, <tt>kind</tt> will be
-     * <tt>INTERRUPT_DISK</tt> and all parameters will be zero or null.
+     * <tt>INTERRUPT_DISK</tt>, <tt>i1</tt> will be the block number and
+     * <tt>o1</tt> the Disk.Request. The Kernel marks the request complete,
+     * which wakes up the process waiting for it.
      * <br>
      * <b>Important:</b> If the Disk calls <tt>interrupt()</tt>, the
      * Kernel should take care of business and return from the interrupt
@@ -209,22 +492,16 @@ public class Kernel {
         try {
             switch (kind) {
                 case INTERRUPT_USER -> {
-                    return switch (i1) {
-                        case SYSCALL_OUTPUT -> doOutput((String) o1);
-                        case SYSCALL_INPUT -> doInput((StringBuffer) o1);
-                        case SYSCALL_EXEC -> doExec((String) o1, (String[]) o2);
-                        case SYSCALL_JOIN -> doJoin(i2);
-                        case FORMAT_DISK -> formatDisk();
-                        case CREATE_FILE -> createFile((String) o1);
-                        case READ_FILE -> readFile((String) o1, (byte[]) o2);
-                        case WRITE_FILE -> writeFile((String) o1, (byte[]) o2);
-                        case LIST_FILES -> listFiles();
-                        case DELETE_FILE -> deleteFile((String) o1);
-                        default -> ERROR_BAD_ARGUMENT;
-                    };
+                    long start = System.nanoTime();
+                    int rc = doSyscall(i1, i2, o1, o2, a);
+                    Launcher l = Launcher.current();
+                    stats.record(i1, rc, start, System.nanoTime() - start,
+                        l == null ? null : l.counters);
+                    return rc;
                 }
 
                 case INTERRUPT_DISK -> {
+                    ((Disk.Request) o1).complete();
                 }
 
                 case INTERRUPT_POWER_ON -> {
@@ -244,6 +521,77 @@ public class Kernel {
         return 0;
     } // interrupt
 
+    /**
+     * Performs a system call.
+     * 
+     * @param call the system call number.
+     * @param i2   an integer parameter.
+     * @param o1   a parameter of some object type.
+     * @param o2   another parameter of some object type.
+     * @param a    a byte-array parameter.
+     * @return the result of the call.
+     */
+    private static int doSyscall(int call, int i2, Object o1, Object o2, byte a[]) {
+        return switch (call) {
+            case SYSCALL_OUTPUT -> doOutput((String) o1, Launcher.current());
+            case SYSCALL_INPUT -> doInput((StringBuffer) o1, Launcher.current());
+            case SYSCALL_EXEC -> doExec((String) o1, (String[]) o2, i2);
+            case SYSCALL_JOIN -> doJoin(i2);
+            case FORMAT_DISK, CREATE_FILE, READ_FILE, WRITE_FILE,
+                    LIST_FILES, DELETE_FILE ->
+                doFileCall(call, (String) o1, (byte[]) o2, 0);
+            case READ_AT, WRITE_AT -> doFileCall(call, (String) o1, a, i2);
+            case SYSCALL_BATCH ->
+                doBatch((BatchEntry[]) o1, (int[]) o2, i2 == BATCH_SORTED);
+            case OPEN_FILE -> openFile((String) o1);
+            case CLOSE_FILE -> closeFile(i2);
+            case READ_FD -> readFd(i2, a);
+            case WRITE_FD -> writeFd(i2, a);
+            case SYSCALL_STATS -> doStats(i2, (StringBuffer) o1);
+            case PIPE -> makePipe((int[]) o1);
+            case PIPE_READ -> readPipe(i2, a);
+            case PIPE_WRITE -> writePipe(i2, a);
+            case PIPE_CLOSE -> closePipe(i2);
+            case OUTPUT_BYTES -> doOutputBytes(a, Launcher.current());
+            default -> ERROR_BAD_ARGUMENT;
+        };
+    } // doSyscall
+
+    /**
+     * Returns the name of a system call, for reports.
+     * 
+     * @param call the system call number.
+     * @return the name of the constant for the call, or its number.
+     */
+    public static String callName(int call) {
+        return switch (call) {
+            case SYSCALL_OUTPUT -> "OUTPUT";
+            case SYSCALL_INPUT -> "INPUT";
+            case SYSCALL_EXEC -> "EXEC";
+            case SYSCALL_JOIN -> "JOIN";
+            case FORMAT_DISK -> "FORMAT_DISK";
+            case CREATE_FILE -> "CREATE_FILE";
+            case READ_FILE -> "READ_FILE";
+            case WRITE_FILE -> "WRITE_FILE";
+            case LIST_FILES -> "LIST_FILES";
+            case DELETE_FILE -> "DELETE_FILE";
+            case READ_AT -> "READ_AT";
+            case WRITE_AT -> "WRITE_AT";
+            case SYSCALL_BATCH -> "BATCH";
+            case OPEN_FILE -> "OPEN_FILE";
+            case CLOSE_FILE -> "CLOSE_FILE";
+            case READ_FD -> "READ_FD";
+            case WRITE_FD -> "WRITE_FD";
+            case SYSCALL_STATS -> "STATS";
+            case PIPE -> "PIPE";
+            case PIPE_READ -> "PIPE_READ";
+            case PIPE_WRITE -> "PIPE_WRITE";
+            case PIPE_CLOSE -> "PIPE_CLOSE";
+            case OUTPUT_BYTES -> "OUTPUT_BYTES";
+            default -> Integer.toString(call);
+        };
+    } // callName
+
     /**
      * Performs the actions associated with a POWER_ON interrupt.
      * 
@@ -253,8 +601,31 @@ public class Kernel {
      *           command-line).
      */
     private static void doPowerOn(int i1, Object o1, Object o2) {
+        int consoleBuffer = Integer.getInteger("console.bufferSize",
+                Console.DEFAULT_BUFFER_SIZE);
+        if (consoleBuffer > 0) {
+            console = new Console(consoleBuffer, () -> {
+                Launcher l = Launcher.current();
+                return l == null ? null : l.stdout();
+            });
+        }
         cacheSize = i1;
-        disk = (FastDisk) o1;
+        disk = (Disk) o1;
+        disk.loadDisk();
+        journal = disk.getJournal();
+        cache = new BlockCache(disk, cacheSize,
+                System.getProperty("cache.policy", "LRU"));
+        disk.setCache(cache);
+        boolean sharing = Boolean.getBoolean("kernel.dedup");
+        dedup = sharing || disk.sharedBlocks() > 0
+                ? new Dedup(disk, cache, journal, sharing) : null;
+        registerMBean("SyscallStats", stats, SyscallStatsMBean.class);
+        registerMBean("DiskTelemetry", disk.getTelemetry(), DiskTelemetryMBean.class);
+        long flushInterval = Long.getLong("disk.flushInterval", 0);
+        if (flushInterval > 0) {
+            flusher = new Flusher(flushInterval);
+            flusher.start();
+        }
         String shellCommand = (String) o2;
 
         doOutput("Kernel: Disk is " + disk.DISK_SIZE + " blocks\n");
@@ -284,15 +655,82 @@ public class Kernel {
         Launcher.joinAll();
     } // doPowerOn
 
+    /**
+     * Registers an MBean with the platform MBean server as
+     * <samp>MiniKernel:type=</samp><em>type</em>, replacing any left from an
+     * earlier power-on.
+     * 
+     * @param type          the type of the bean.
+     * @param impl          the object to manage.
+     * @param mbeanInterface the management interface of impl.
+     */
+    private static <T> void registerMBean(String type, T impl, Class<T> mbeanInterface) {
+        try {
+            StandardMBean bean = new StandardMBean(impl, mbeanInterface);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("MiniKernel:type=" + type);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        } catch (JMException e) {
+            doOutput("Kernel: Cannot register " + type + " MBean: " + e + "\n");
+        }
+    } // registerMBean
+
     /**
      * Does any "shutdown" activities required after all activities started by
      * a POWER_ON interrupt have completed.
      */
     private static void doShutdown() {
         System.out.println("Kernel: Shutting down.");
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        cache.flush();
+        journal.checkpoint();
         disk.flush();
+        System.out.println(journal.statistics());
+        if (dedup != null) {
+            System.out.println(dedup.statistics());
+        }
+        if (Pipe.statistics() != null) {
+            System.out.println(Pipe.statistics());
+        }
+        System.out.print("System calls:\n" + stats.report());
+        System.out.print(stats.busiest(5));
+        try {
+            int n = stats.writeTrace(new File("TRACE"));
+            if (n > 0) {
+                System.out.println("Wrote the last " + n + " system calls to TRACE");
+            }
+        } catch (IOException e) {
+            System.out.println("Kernel: Cannot write TRACE: " + e);
+        }
+        if (console != null) {
+            System.out.println(console.statistics());
+            console.close();
+            console = null;
+        }
     } // doShutdown()
 
+    /**
+     * Reports system call statistics.
+     * 
+     * @param pid    a process id, or zero for every system call.
+     * @param result where to put the report.
+     * @return 0, or ERROR_NO_SUCH_PROCESS.
+     */
+    private static int doStats(int pid, StringBuffer result) {
+        String report = pid == 0 ? stats.report() : stats.report(pid);
+        if (report == null) {
+            return ERROR_NO_SUCH_PROCESS;
+        }
+        result.setLength(0);
+        result.append(report);
+        return 0;
+    } // doStats
+
     /**
      * Displays a message on the console.
      * 
@@ -303,6 +741,47 @@ public class Kernel {
         return 0;
     } // doOutput
 
+    /**
+     * Displays a message on a process's standard output: the pipe it
+     * writes to, if it has one, and otherwise the console.
+     * 
+     * @param msg the message to display
+     * @param l   the calling process, or null.
+     * @return 0, or ERROR_BROKEN_PIPE if nobody reads the pipe any more.
+     */
+    private static int doOutput(String msg, Launcher l) {
+        if (console == null && (l == null || l.getPipe(STDOUT) == null)) {
+            return doOutput(msg);
+        }
+        int rc = doOutputBytes(msg.getBytes(), l);
+        return rc < 0 ? rc : 0;
+    } // doOutput
+
+    /**
+     * Displays bytes on a process's standard output: the pipe it writes
+     * to, if it has one, and otherwise its buffer in the console.
+     * 
+     * @param bytes the bytes to display.
+     * @param l     the calling process, or null.
+     * @return the number of bytes, ERROR_BROKEN_PIPE if nobody reads the
+     *         pipe any more, or ERROR_BAD_ARGUMENT.
+     */
+    private static int doOutputBytes(byte[] bytes, Launcher l) {
+        if (bytes == null) {
+            return ERROR_BAD_ARGUMENT;
+        }
+        PipeEnd out = l == null ? null : l.getPipe(STDOUT);
+        if (out != null) {
+            return out.pipe.write(bytes, 0, bytes.length) ? bytes.length : ERROR_BROKEN_PIPE;
+        }
+        if (l != null && l.output != null) {
+            l.output.write(bytes, 0, bytes.length);
+        } else {
+            System.out.write(bytes, 0, bytes.length);
+        }
+        return bytes.length;
+    } // doOutputBytes
+
     private static BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 
     /**
@@ -311,6 +790,10 @@ public class Kernel {
      * @param sb a place to put the line of input.
      */
     private static int doInput(StringBuffer sb) {
+        if (console != null) {
+            // Show the prompt, and anything else waiting, first.
+            console.drain();
+        }
         try {
             String s = br.readLine();
             if (s == null) {
@@ -324,6 +807,18 @@ public class Kernel {
         }
     } // doInput
 
+    /**
+     * Reads a line from a process's standard input: the pipe it reads
+     * from, if it has one, and otherwise the console.
+     * 
+     * @param sb a place to put the line of input.
+     * @param l  the calling process, or null.
+     */
+    private static int doInput(StringBuffer sb, Launcher l) {
+        PipeEnd in = l == null ? null : l.getPipe(STDIN);
+        return in == null ? doInput(sb) : in.readLine(sb);
+    } // doInput
+
     /**
      * Loads a program and runs it.
      * Blocks the caller until the program has terminated.
@@ -362,12 +857,24 @@ public class Kernel {
      * 
      * @param command the program to run.
      * @param args    command-line args to pass to the program.
-     * @return a process id on success or ERROR_NO_CLASS, ERROR_NO_MAIN, or
-     *         ERROR_BAD_COMMAND if the command cannot be run.
+     * @param stdio   the pipe descriptors of the caller to give the program
+     *                as its standard input and output, as described for
+     *                SYSCALL_EXEC.
+     * @return a process id on success, ERROR_BAD_ARGUMENT if a descriptor
+     *         is not open or is the wrong end, or ERROR_NO_CLASS,
+     *         ERROR_NO_MAIN, or ERROR_BAD_COMMAND if the command cannot be
+     *         run.
      */
-    private static int doExec(String command, String args[]) {
+    private static int doExec(String command, String args[], int stdio) {
+        Launcher parent = Launcher.current();
+        PipeEnd in = stdioEnd(parent, (stdio & 0xFFFF) - 1, STDIN, false);
+        PipeEnd out = stdioEnd(parent, (stdio >>> 16) - 1, STDOUT, true);
+        if (in == null && (stdio & 0xFFFF) != 0 || out == null && stdio >>> 16 != 0) {
+            return ERROR_BAD_ARGUMENT;
+        }
         try {
             Launcher l = new Launcher(command, args);
+            l.redirect(in, out);
             l.start();
             return l.pid.intValue();
         } catch (ClassNotFoundException e) {
@@ -390,27 +897,130 @@ public class Kernel {
         return Launcher.joinOne(pid);
     } // doJoin
 
+    /**
+     * Finds the pipe end a new process is to use as its standard input or
+     * output.
+     * 
+     * @param parent the process calling exec, or null.
+     * @param fd     a pipe descriptor of the parent, or -1 for the parent's
+     *               own standard input or output.
+     * @param std    STDIN or STDOUT.
+     * @param write  true if a write end is wanted.
+     * @return the end, or null if there is none or it is the wrong end.
+     */
+    private static PipeEnd stdioEnd(Launcher parent, int fd, int std, boolean write) {
+        PipeEnd end = parent == null ? null : parent.getPipe(fd < 0 ? std : fd);
+        return end != null && end.write == write ? end : null;
+    } // stdioEnd
+
+    /**
+     * Makes a pipe, and opens both of its ends for the calling process.
+     * 
+     * @param fds where to put the descriptors of the read and write ends.
+     * @return 0, or ERROR_BAD_ARGUMENT.
+     */
+    private static int makePipe(int[] fds) {
+        Launcher l = Launcher.current();
+        if (l == null || fds == null || fds.length < 2) {
+            return ERROR_BAD_ARGUMENT;
+        }
+        Pipe pipe = new Pipe();
+        fds[0] = l.addPipe(new PipeEnd(pipe, false));
+        fds[1] = l.addPipe(new PipeEnd(pipe, true));
+        return 0;
+    } // makePipe
+
+    /**
+     * Reads from a pipe of the calling process.
+     * 
+     * @param fd     the pipe descriptor.
+     * @param buffer where to put the data.
+     * @return the number of bytes read, 0 at end of file, or
+     *         ERROR_BAD_ARGUMENT.
+     */
+    private static int readPipe(int fd, byte[] buffer) {
+        Launcher l = Launcher.current();
+        PipeEnd end = l == null ? null : l.getPipe(fd);
+        if (end == null || end.write || buffer == null) {
+            return ERROR_BAD_ARGUMENT;
+        }
+        return end.read(buffer);
+    } // readPipe
+
+    /**
+     * Writes to a pipe of the calling process.
+     * 
+     * @param fd     the pipe descriptor.
+     * @param buffer the data to write.
+     * @return the number of bytes written, ERROR_BROKEN_PIPE, or
+     *         ERROR_BAD_ARGUMENT.
+     */
+    private static int writePipe(int fd, byte[] buffer) {
+        Launcher l = Launcher.current();
+        PipeEnd end = l == null ? null : l.getPipe(fd);
+        if (end == null || !end.write || buffer == null) {
+            return ERROR_BAD_ARGUMENT;
+        }
+        return end.pipe.write(buffer, 0, buffer.length) ? buffer.length : ERROR_BROKEN_PIPE;
+    } // writePipe
+
+    /**
+     * Closes a pipe descriptor of the calling process.
+     * 
+     * @param fd the pipe descriptor.
+     * @return 0, or ERROR_BAD_ARGUMENT if fd is not open.
+     */
+    private static int closePipe(int fd) {
+        Launcher l = Launcher.current();
+        return l != null && l.removePipe(fd) ? 0 : ERROR_BAD_ARGUMENT;
+    } // closePipe
+
     /**
      * A Launcher instance represents one atomic command being run by the
      * Kernel. It has associated with it a process id (pid), a Java method
      * to run, and a list of arguments to the method.
-     * Do not modify any part of this class.
+     * It also holds the process's tables of open files and of pipe ends.
+     * <p>
+     * A program started by SYSCALL_EXEC runs on a thread of its own. Where
+     * the Java runtime has virtual threads (Java 21 and later) they are
+     * used, so that thousands of processes cost little more than their
+     * stacks; otherwise, or if the <samp>kernel.virtualThreads</samp> system
+     * property is false, each process gets a platform thread.
+     * <p>
+     * If the <samp>kernel.processPool</samp> system property is set to a
+     * positive number, that many platform threads are started at power-on
+     * and processes run on them instead, so that an exec does not create a
+     * thread at all. The pool grows when every thread is busy, since a
+     * process may be waiting for a child that needs a thread of its own, and
+     * threads beyond the initial number retire after a minute idle.
      */
-    static private class Launcher extends Thread {
-        /**
-         * Mapping of process ids (encoded as Integers) to Launcher
-         * instances.
-         */
-        static Map pidMap = new HashMap();
+    static private class Launcher implements Runnable {
+        /** Mapping of process ids to Launcher instances. */
+        static final Map<Integer, Launcher> pidMap = new ConcurrentHashMap<>();
 
         /** Source of unique ids for Launcher instances. */
-        static private int nextpid = 1;
+        static private final AtomicInteger nextpid = new AtomicInteger(1);
 
-        /** The method being run by this command. */
-        private Method method;
+        /** Makes the threads that processes run on. */
+        static private final ThreadFactory threads = threadFactory();
 
-        /** The list of arguments to this command. */
-        private Object arglist[];
+        /** Pre-started threads to run processes on, or null if not used. */
+        static private final ExecutorService pool = processPool();
+
+        /** Counted down when this command has finished. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** The main method of the program being run by this command. */
+        private final MethodHandle main;
+
+        /** The arguments to this command. */
+        private final String[] args;
+
+        /** The system call counters of this process. */
+        private final SyscallStats.Process counters;
+
+        /** The console buffer of this process, or null if there is none. */
+        private final Console.Buffer output;
 
         /** The process id of this command. */
         private Integer pid;
@@ -421,6 +1031,21 @@ public class Kernel {
          */
         private int returnCode = 0;
 
+        /** The Launcher running on each thread, if any. */
+        static private final ThreadLocal<Launcher> current = new ThreadLocal<>();
+
+        /** The open files of this process, indexed by file descriptor. */
+        private OpenFile[] files = new OpenFile[4];
+
+        /** The read-ahead state of the READ_AT calls of this process. */
+        private final ReadAhead readAhead = new ReadAhead();
+
+        /**
+         * The pipe ends of this process, indexed by pipe descriptor. The
+         * first two are its standard input and output, if they are pipes.
+         */
+        private PipeEnd[] pipes = new PipeEnd[4];
+
         /**
          * Creates a new Launcher for a program.
          * 
@@ -435,48 +1060,234 @@ public class Kernel {
                 args = new String[0];
             }
 
-            /* Create an array of the method types */
-            Class params[] = new Class[] { args.getClass() };
+            /* Find the program's main method; it is cached after the first time. */
+            main = ProgramRegistry.lookup(command);
+            this.args = args;
 
-            /* Find the program and look up its main method */
-            Class programClass = Class.forName(command);
-            method = programClass.getMethod("main", params);
+            pid = nextpid.getAndIncrement();
+            counters = stats.addProcess(pid, command);
+            output = console == null ? null : console.buffer();
+            pidMap.put(pid, this);
+        } // Launcher constructor
 
-            /* Assemble an argument list for the method. */
-            arglist = new Object[] { args };
+        /**
+         * Returns a factory for virtual threads if this Java runtime has
+         * them, and for platform threads otherwise. The virtual thread
+         * builder is found by reflection so that the kernel still compiles
+         * and runs on older releases.
+         * 
+         * @return the factory.
+         */
+        static private ThreadFactory threadFactory() {
+            if (Boolean.parseBoolean(System.getProperty("kernel.virtualThreads", "true"))) {
+                try {
+                    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                    return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                        .getMethod("factory").invoke(builder);
+                } catch (ReflectiveOperationException e) {
+                    // No virtual threads before Java 21.
+                }
+            }
+            return Thread::new;
+        } // Launcher.threadFactory
 
-            pid = new Integer(nextpid++);
-            synchronized (pidMap) {
-                pidMap.put(pid, this);
+        /**
+         * Creates the pool of process threads, if one was asked for.
+         * 
+         * @return the pool, with all its core threads started, or null.
+         */
+        static private ExecutorService processPool() {
+            int size = Integer.getInteger("kernel.processPool", 0);
+            if (size <= 0) {
+                return null;
             }
-        } // Launcher constructor
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor p = new ThreadPoolExecutor(
+                size, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "PROCESS-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            p.prestartAllCoreThreads();
+            return p;
+        } // Launcher.processPool
+
+        /** Starts running this command in the background. */
+        public void start() {
+            if (pool != null) {
+                pool.execute(this);
+            } else {
+                threads.newThread(this).start();
+            }
+        } // Launcher.start
+
+        /** Waits for this command to finish. */
+        private void join() throws InterruptedException {
+            done.await();
+        } // Launcher.join
 
         /** Main loop of the Launcher */
         public void run() {
-            /* Launch the method using the arglist */
+            current.set(this);
+            /* Launch the program */
             try {
-                method.invoke(null, arglist);
-            } catch (InvocationTargetException e) {
+                main.invokeExact(args);
+            } catch (Throwable e) {
                 /* Give the user a message */
                 System.out.println("Kernel: User error:");
-                e.getTargetException().printStackTrace();
+                e.printStackTrace();
 
                 returnCode = ERROR_IN_CHILD;
-            } catch (Exception e) {
-                System.out.println("Kernel: " + e);
-                returnCode = ERROR_IN_CHILD;
+            } finally {
+                Arrays.fill(files, null);
+                for (int fd = 0; fd < pipes.length; fd++) {
+                    removePipe(fd);
+                }
+                if (output != null) {
+                    output.flush();
+                }
+                stats.removeProcess(counters);
+                current.remove();
+                done.countDown();
             }
         } // Launcher.run
 
-        /** Waits for <em>all</em> existing Launchers to complete. */
+        /**
+         * Returns the Launcher of the process making the current call.
+         * 
+         * @return the Launcher, or null if the call is not from a process.
+         */
+        static public Launcher current() {
+            return current.get();
+        } // Launcher.current
+
+        /**
+         * Adds an open file to this process's table.
+         * 
+         * @param f the open file.
+         * @return the lowest unused file descriptor, now referring to f.
+         */
+        public int addFile(OpenFile f) {
+            int fd = 0;
+            while (fd < files.length && files[fd] != null) {
+                fd++;
+            }
+            if (fd == files.length) {
+                files = Arrays.copyOf(files, 2 * files.length);
+            }
+            files[fd] = f;
+            return fd;
+        } // Launcher.addFile
+
+        /**
+         * Looks up a file descriptor.
+         * 
+         * @param fd the file descriptor.
+         * @return the open file, or null if fd is not open.
+         */
+        public OpenFile getFile(int fd) {
+            return fd >= 0 && fd < files.length ? files[fd] : null;
+        } // Launcher.getFile
+
+        /**
+         * Removes a file descriptor from this process's table.
+         * 
+         * @param fd the file descriptor.
+         * @return false if fd was not open.
+         */
+        public boolean removeFile(int fd) {
+            if (getFile(fd) == null) {
+                return false;
+            }
+            files[fd] = null;
+            return true;
+        } // Launcher.removeFile
+
+        /**
+         * Sets the standard input and output of this process before it
+         * starts, opening ends of its own on the same pipes.
+         * 
+         * @param in  the read end to take input from, or null.
+         * @param out the write end to send output to, or null.
+         */
+        public void redirect(PipeEnd in, PipeEnd out) {
+            pipes[STDIN] = in == null ? null : new PipeEnd(in.pipe, false);
+            pipes[STDOUT] = out == null ? null : new PipeEnd(out.pipe, true);
+        } // Launcher.redirect
+
+        /**
+         * Adds a pipe end to this process's table.
+         * 
+         * @param end the pipe end.
+         * @return the lowest unused pipe descriptor above STDOUT, now
+         *         referring to end.
+         */
+        public int addPipe(PipeEnd end) {
+            int fd = STDOUT + 1;
+            while (fd < pipes.length && pipes[fd] != null) {
+                fd++;
+            }
+            if (fd == pipes.length) {
+                pipes = Arrays.copyOf(pipes, 2 * pipes.length);
+            }
+            pipes[fd] = end;
+            return fd;
+        } // Launcher.addPipe
+
+        /**
+         * Looks up a pipe descriptor.
+         * 
+         * @param fd the pipe descriptor.
+         * @return the pipe end, or null if fd is not open.
+         */
+        public PipeEnd getPipe(int fd) {
+            return fd >= 0 && fd < pipes.length ? pipes[fd] : null;
+        } // Launcher.getPipe
+
+        /**
+         * Returns where this process's direct prints go: the pipe its
+         * standard output is redirected to, if any, and otherwise its
+         * console buffer.
+         * 
+         * @return the stream.
+         */
+        OutputStream stdout() {
+            PipeEnd out = getPipe(STDOUT);
+            return out != null ? out.stream : output;
+        } // Launcher.stdout
+
+        /**
+         * Closes a pipe descriptor and removes it from this process's table.
+         * 
+         * @param fd the pipe descriptor.
+         * @return false if fd was not open.
+         */
+        public boolean removePipe(int fd) {
+            PipeEnd end = getPipe(fd);
+            if (end == null) {
+                return false;
+            }
+            pipes[fd] = null;
+            end.pipe.close(end.write);
+            return true;
+        } // Launcher.removePipe
+
+        /**
+         * Waits for <em>all</em> existing Launchers to complete, including
+         * any they start while this method is waiting.
+         */
         static public void joinAll() {
-            for (Iterator e = pidMap.keySet().iterator(); e.hasNext();) {
-                Launcher l = (Launcher) e.next();
-                try {
-                    l.join();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                    System.out.println("Kernel: join: " + ex);
+            while (!pidMap.isEmpty()) {
+                for (Launcher l : pidMap.values()) {
+                    try {
+                        l.join();
+                    } catch (InterruptedException ex) {
+                        ex.printStackTrace();
+                        System.out.println("Kernel: join: " + ex);
+                    }
+                    pidMap.remove(l.pid, l);
                 }
             }
         } // Launcher.joinAll
@@ -489,14 +1300,10 @@ public class Kernel {
          *         ERROR_NO_SUCH_PROCESS if the pid is invalid.
          */
         static public int joinOne(int pid) {
-            Object o;
-            synchronized (pidMap) {
-                o = pidMap.remove(new Integer(pid));
-            }
-            if (o == null) {
+            Launcher l = pidMap.remove(pid);
+            if (l == null) {
                 return ERROR_NO_SUCH_PROCESS;
             }
-            Launcher l = (Launcher) o;
             try {
                 l.join();
             } catch (InterruptedException e) {
@@ -507,83 +1314,734 @@ public class Kernel {
 
         /** Removes this Launcher from the set of all active Launchers. */
         public void delete() {
-            synchronized (pidMap) {
-                pidMap.remove(pid);
-            }
+            pidMap.remove(pid);
         }
     } // class Kernel.Launcher
 
+    /**
+     * A daemon thread that bounds how much data a crash can lose.
+     * Every so often it writes the dirty blocks in the buffer cache to the
+     * disk and saves the changed blocks of the disk to the DISK file.
+     */
+    static private class Flusher extends Thread {
+        /** How long to wait between flushes, in milliseconds. */
+        private final long interval;
+
+        /**
+         * Creates a new Flusher.
+         * 
+         * @param interval the time between flushes, in milliseconds.
+         */
+        public Flusher(long interval) {
+            super("FLUSHER");
+            this.interval = interval;
+            setDaemon(true);
+        } // Flusher constructor
+
+        /** Main loop of the Flusher */
+        public void run() {
+            for (;;) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    cache.flush();
+                    journal.checkpoint();
+                    disk.sync();
+                } catch (IOException e) {
+                    System.out.println("Kernel: flush: " + e);
+                }
+            }
+        } // Flusher.run
+    } // class Kernel.Flusher
+
+    /**
+     * A file opened by a process: the file's inode, resolved once when the
+     * file was opened, and the current position in it.
+     */
+    static private class OpenFile {
+        /** The name the file was opened by, which selects its lock. */
+        final String name;
+
+        /** The file. */
+        final Inode inode;
+
+        /** The byte offset of the next read or write. */
+        int position;
+
+        /** The read-ahead state of reads through this descriptor. */
+        final ReadAhead readAhead = new ReadAhead();
+
+        /**
+         * Creates a new OpenFile positioned at the start of the file.
+         * 
+         * @param name  the name of the file.
+         * @param inode the file.
+         */
+        OpenFile(String name, Inode inode) {
+            this.name = name;
+            this.inode = inode;
+        } // OpenFile constructor
+    } // class Kernel.OpenFile
+
+    /**
+     * One end of a pipe, opened by a process. Reading lines for
+     * SYSCALL_INPUT takes bytes from the pipe a buffer at a time; any left
+     * over after the line are returned first by the next read.
+     */
+    static private class PipeEnd {
+        /** The pipe. */
+        final Pipe pipe;
+
+        /** True for the write end, false for the read end. */
+        final boolean write;
+
+        /** Bytes read from the pipe but not yet returned, or null. */
+        private byte[] buffer;
+
+        /** The index in buffer of the first byte not yet returned. */
+        private int next;
+
+        /** The number of bytes in buffer. */
+        private int count;
+
+        /** Writes to the pipe, for the direct prints of a process. */
+        final OutputStream stream = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] data, int offset, int length) throws IOException {
+                if (!pipe.write(data, offset, length)) {
+                    throw new IOException("Broken pipe");
+                }
+            }
+        };
+
+        /**
+         * Opens an end of a pipe.
+         * 
+         * @param pipe  the pipe.
+         * @param write true for the write end, false for the read end.
+         */
+        PipeEnd(Pipe pipe, boolean write) {
+            this.pipe = pipe;
+            this.write = write;
+            pipe.open(write);
+        } // PipeEnd constructor
+
+        /**
+         * Reads bytes, taking any left over from reading a line first.
+         * 
+         * @param data where to put the bytes.
+         * @return the number of bytes read, or 0 at end of file.
+         */
+        int read(byte[] data) {
+            if (next < count) {
+                int n = Math.min(data.length, count - next);
+                System.arraycopy(buffer, next, data, 0, n);
+                next += n;
+                return n;
+            }
+            return pipe.read(data, 0, data.length);
+        } // PipeEnd.read
+
+        /**
+         * Reads a line, without its newline.
+         * 
+         * @param sb where to append the line.
+         * @return 0, or ERROR_END_OF_FILE if there is nothing left to read.
+         */
+        int readLine(StringBuffer sb) {
+            if (buffer == null) {
+                buffer = new byte[Disk.BLOCK_SIZE];
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (;;) {
+                if (next == count) {
+                    next = 0;
+                    count = pipe.read(buffer, 0, buffer.length);
+                    if (count == 0) {
+                        if (line.size() == 0) {
+                            return ERROR_END_OF_FILE;
+                        }
+                        break;
+                    }
+                }
+                int start = next;
+                while (next < count && buffer[next] != '\n') {
+                    next++;
+                }
+                line.write(buffer, start, next - start);
+                if (next < count) {
+                    next++;
+                    break;
+                }
+            }
+            sb.append(line.toString());
+            return 0;
+        } // PipeEnd.readLine
+    } // class Kernel.PipeEnd
+
+    /**
+     * One entry in a SYSCALL_BATCH submission.
+     * 
+     * @see Library#batch(Kernel.BatchEntry[], int[], boolean)
+     */
+    public static class BatchEntry {
+        /** The system call, such as CREATE_FILE or WRITE_AT. */
+        public final int op;
+
+        /** The file name, or null if the call takes none. */
+        public final String name;
+
+        /** The data buffer, or null if the call takes none. */
+        public final byte[] buffer;
+
+        /** The byte offset, for READ_AT and WRITE_AT. */
+        public final int offset;
+
+        /**
+         * Creates a batch entry.
+         * 
+         * @param op     the system call number.
+         * @param name   the file name, or null.
+         * @param buffer the data buffer, or null.
+         * @param offset the byte offset, for READ_AT and WRITE_AT.
+         */
+        public BatchEntry(int op, String name, byte[] buffer, int offset) {
+            this.op = op;
+            this.name = name;
+            this.buffer = buffer;
+            this.offset = offset;
+        } // BatchEntry constructor
+    } // class Kernel.BatchEntry
+
+    /**
+     * Performs one file system call, holding the lock of the file it names.
+     * 
+     * @param op     the system call number.
+     * @param name   the file name, if the call takes one.
+     * @param buffer the data buffer, if the call takes one.
+     * @param offset the byte offset, for READ_AT and WRITE_AT.
+     * @return the result of the call.
+     */
+    private static int doFileCall(int op, String name, byte[] buffer, int offset) {
+        switch (op) {
+            case FORMAT_DISK -> {
+                return formatDisk();
+            }
+            case LIST_FILES -> {
+                return listFiles();
+            }
+            case CREATE_FILE, READ_FILE, WRITE_FILE, DELETE_FILE, READ_AT, WRITE_AT -> {
+                if (name == null) {
+                    return ERROR_BAD_ARGUMENT;
+                }
+            }
+            default -> {
+                return ERROR_BAD_ARGUMENT;
+            }
+        }
+        Lock lock = op == READ_FILE || op == READ_AT
+            ? lockFor(name).readLock() : lockFor(name).writeLock();
+        lock.lock();
+        try {
+            return switch (op) {
+                case CREATE_FILE -> createFile(name);
+                case READ_FILE -> readFile(name, buffer);
+                case WRITE_FILE -> writeFile(name, buffer);
+                case DELETE_FILE -> deleteFile(name);
+                case READ_AT -> readAt(name, offset, buffer);
+                default -> writeAt(name, offset, buffer);
+            };
+        } finally {
+            lock.unlock();
+        }
+    } // doFileCall
+
+    /**
+     * Returns the lock for a file.
+     * 
+     * @param name the name of the file.
+     * @return the lock of the stripe the name hashes to.
+     */
+    private static ReentrantReadWriteLock lockFor(String name) {
+        int h = name.hashCode();
+        return fileLocks[(h ^ (h >>> 16)) & (FILE_LOCK_STRIPES - 1)];
+    } // lockFor
+
+    /**
+     * Performs a batch of file system calls.
+     * 
+     * @param entries the calls to perform.
+     * @param results where to put the result of each call.
+     * @param sorted  true if runs of reads and writes may be reordered by
+     *                the first block of each file.
+     * @return the number of calls that failed.
+     */
+    private static int doBatch(BatchEntry[] entries, int[] results, boolean sorted) {
+        if (results.length < entries.length) {
+            return ERROR_BAD_ARGUMENT;
+        }
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        if (sorted) {
+            int[] keys = new int[entries.length];
+            Comparator<String> byName = Comparator.nullsFirst(Comparator.naturalOrder());
+            for (int start = 0; start < entries.length; ) {
+                Map<String, Integer> firstBlocks = new HashMap<>();
+                int end = start;
+                while (end < entries.length && isDataCall(entries[end].op)) {
+                    keys[end] = firstBlocks.computeIfAbsent(entries[end].name, Kernel::firstBlock);
+                    end++;
+                }
+                // Every call on a file has the same key, and the sort is
+                // stable, so calls on one file stay in their order.
+                Arrays.sort(order, start, end, (x, y) -> {
+                    int c = Integer.compare(keys[x], keys[y]);
+                    return c != 0 ? c : byName.compare(entries[x].name, entries[y].name);
+                });
+                start = Math.max(end, start + 1);
+            }
+        }
+        int failures = 0;
+        for (int i : order) {
+            BatchEntry e = entries[i];
+            results[i] = doFileCall(e.op, e.name, e.buffer, e.offset);
+            if (results[i] < 0) {
+                failures++;
+            }
+        }
+        return failures;
+    } // doBatch
+
+    /** Tells whether a call only reads or writes the data of a file. */
+    private static boolean isDataCall(int op) {
+        return op == READ_FILE || op == WRITE_FILE || op == READ_AT || op == WRITE_AT;
+    } // isDataCall
+
+    /**
+     * Returns the first disk block of a file, or -1 if it has none or does
+     * not exist.
+     */
+    private static int firstBlock(String name) {
+        if (name == null) {
+            return -1;
+        }
+        Lock lock = lockFor(name).readLock();
+        lock.lock();
+        try {
+            Inode inode = disk.getInode(name);
+            return inode == null ? -1 : inode.blockAt(0);
+        } finally {
+            lock.unlock();
+        }
+    } // firstBlock
+
     private static int formatDisk() {
+        for (ReentrantReadWriteLock l : fileLocks) {
+            l.writeLock().lock();
+        }
         try {
-            int mapBlocks;
-            if (disk.freeMap.length % disk.BLOCK_SIZE == 0)
-                mapBlocks = disk.freeMap.length / disk.BLOCK_SIZE;
-            else
-                mapBlocks = disk.freeMap.length / disk.BLOCK_SIZE + 1;
-            for (int i = 0; i < disk.DISK_SIZE; i++) {
-                if (i < mapBlocks)
-                    disk.setFreeMap(i, true);
-                else
-                    disk.setFreeMap(i, false);
-            }
-            for (int i = 0; i < disk.DISK_SIZE; i++)
-                disk.fileTable[i] = null;
-            return 0;
+            disk.resetFreeMap();
+            disk.clearFiles();
+            cache.invalidateAll();
+            if (dedup != null) {
+                dedup.clear();
+            }
+            return journal.commit(journal.logFormat()) ? 0 : -1;
         } catch (Exception e) {
             return -1;
+        } finally {
+            for (ReentrantReadWriteLock l : fileLocks) {
+                l.writeLock().unlock();
+            }
         }
     }// formatDisk
 
     private static int createFile(String fileName) {
-        int index = disk.getNextBlockIndex();
+        if (disk.getFileBlock(fileName) != -1) {
+            System.out.println("File already exists: " + fileName);
+            return -1;
+        }
+        int index = disk.allocateHead();
         if (index == -1) {
             System.out.println("Disk is full");
             return -1;
-        } else {
-            disk.fileTable[index] = fileName;
-            disk.setFreeMap(index, true);
         }
-        return 0;
+        if (!disk.addFile(fileName, index)) {
+            disk.freeRun(index, 1);
+            System.out.println("File already exists: " + fileName);
+            return -1;
+        }
+        long seq = journal.logCreate(fileName, index);
+        if (seq < 0) {
+            // The directory could not be checkpointed with another file.
+            disk.removeFile(index);
+            disk.freeRun(index, 1);
+            System.out.println("Disk is full");
+            return -1;
+        }
+        return journal.commit(seq) ? 0 : -1;
     }
 
     private static int readFile(String fileName, byte[] buffer) {
-        int blockIndex = disk.getFileBlock(fileName);
-        if (blockIndex == -1) {
+        Inode inode = disk.getInode(fileName);
+        if (inode == null) {
             System.out.println("File not found: " + fileName);
             return -1;
         }
-        disk.read(blockIndex, buffer);
+        cache.read(inode.blockAt(0), buffer);
         return 0;
     }
 
     private static int writeFile(String fileName, byte[] buffer) {
-        int blockIndex = disk.getFileBlock(fileName);
-        if (blockIndex == -1) {
+        Inode inode = disk.getInode(fileName);
+        if (inode == null) {
             System.out.println("File not found: " + fileName);
             return -1;
         }
-        disk.write(blockIndex, buffer);
+        if (!transfer(inode, 0, buffer, 0, Disk.BLOCK_SIZE, true)) {
+            System.out.println("Disk is full");
+            return -1;
+        }
+        setSize(inode, Math.max(inode.size, Disk.BLOCK_SIZE));
         return 0;
     }
 
+    /**
+     * Opens a file for the calling process.
+     * 
+     * @param fileName the name of the file.
+     * @return a file descriptor, or -1 on error.
+     */
+    private static int openFile(String fileName) {
+        Launcher l = Launcher.current();
+        Inode inode = disk.getInode(fileName);
+        if (l == null || inode == null) {
+            System.out.println("File not found: " + fileName);
+            return -1;
+        }
+        return l.addFile(new OpenFile(fileName, inode));
+    }
+
+    /**
+     * Closes a file descriptor of the calling process.
+     * 
+     * @param fd the file descriptor.
+     * @return 0 on success, or -1 if fd is not open.
+     */
+    private static int closeFile(int fd) {
+        Launcher l = Launcher.current();
+        return l != null && l.removeFile(fd) ? 0 : -1;
+    }
+
+    /**
+     * Reads from an open file of the calling process.
+     * 
+     * @param fd     the file descriptor.
+     * @param buffer where to put the data.
+     * @return the number of bytes read, or -1 on error.
+     */
+    private static int readFd(int fd, byte[] buffer) {
+        return transferFd(fd, buffer, false);
+    }
+
+    /**
+     * Writes to an open file of the calling process.
+     * 
+     * @param fd     the file descriptor.
+     * @param buffer the data to write.
+     * @return the number of bytes written, or -1 on error.
+     */
+    private static int writeFd(int fd, byte[] buffer) {
+        return transferFd(fd, buffer, true);
+    }
+
+    /**
+     * Reads or writes an open file of the calling process at its current
+     * position, holding the file's lock, and advances the position.
+     * 
+     * @param fd      the file descriptor.
+     * @param buffer  the data.
+     * @param writing true to write, false to read.
+     * @return the number of bytes moved, or -1 if fd is not open, its file
+     *         has been deleted, or the transfer failed.
+     */
+    private static int transferFd(int fd, byte[] buffer, boolean writing) {
+        Launcher l = Launcher.current();
+        OpenFile f = l == null ? null : l.getFile(fd);
+        if (f == null) {
+            return -1;
+        }
+        ReentrantReadWriteLock rw = lockFor(f.name);
+        Lock lock = writing ? rw.writeLock() : rw.readLock();
+        lock.lock();
+        try {
+            if (f.inode.deleted) {
+                return -1;
+            }
+            int n = writing ? writeInode(f.inode, f.position, buffer)
+                : readInode(f.inode, f.position, buffer, f.readAhead);
+            if (n > 0) {
+                f.position += n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** A block of zeros, used to fill holes in files. */
+    private static final byte[] ZEROS = new byte[Disk.BLOCK_SIZE];
+
+    /**
+     * Reads a range of bytes from a file. Only the blocks covering the
+     * range are read.
+     * 
+     * @param fileName the name of the file.
+     * @param offset   the byte offset in the file to start at.
+     * @param buffer   where to put the data; its length is the number of
+     *                 bytes wanted.
+     * @return the number of bytes read, or -1 on error.
+     */
+    private static int readAt(String fileName, int offset, byte[] buffer) {
+        Inode inode = disk.getInode(fileName);
+        if (inode == null) {
+            System.out.println("File not found: " + fileName);
+            return -1;
+        }
+        Launcher l = Launcher.current();
+        return readInode(inode, offset, buffer, l == null ? null : l.readAhead);
+    }
+
+    /**
+     * Reads a range of bytes from a file whose inode is already known.
+     * 
+     * @param inode  the file.
+     * @param offset the byte offset in the file to start at.
+     * @param buffer where to put the data.
+     * @param stream the stream the read belongs to, or null for none.
+     * @return the number of bytes read, or -1 on error.
+     */
+    private static int readInode(Inode inode, int offset, byte[] buffer, ReadAhead stream) {
+        if (offset < 0) {
+            return -1;
+        }
+        int length = Math.max(0, Math.min(buffer.length, inode.size - offset));
+        transfer(inode, offset, buffer, 0, length, false);
+        if (stream != null && length > 0) {
+            readAhead(stream, inode, offset, length);
+        }
+        return length;
+    }
+
+    /**
+     * Tells a stream about a read, and starts reading ahead the blocks of
+     * the file it asks for. The disk works on them while the process uses
+     * what it has just read.
+     * 
+     * @param stream the stream.
+     * @param inode  the file being read.
+     * @param offset the byte offset of the read.
+     * @param length the number of bytes read.
+     */
+    private static void readAhead(ReadAhead stream, Inode inode, int offset, int length) {
+        int limit = cache.readAheadLimit();
+        if (limit == 0) {
+            return;
+        }
+        int end = (int) Math.min(inode.blocks(),
+            ((long) inode.size + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE);
+        int[] range = stream.access(inode, offset / Disk.BLOCK_SIZE,
+            (offset + length - 1) / Disk.BLOCK_SIZE, end, limit);
+        if (range == null) {
+            return;
+        }
+        int[] blocks = new int[range[1] - range[0]];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = inode.blockAt(range[0] + i);
+        }
+        cache.prefetch(blocks, stream);
+    }
+
+    /**
+     * Writes a range of bytes to a file, allocating blocks as needed.
+     * Only the blocks covering the range are written.
+     * 
+     * @param fileName the name of the file.
+     * @param offset   the byte offset in the file to start at.
+     * @param buffer   the data to write.
+     * @return the number of bytes written, or -1 on error.
+     */
+    private static int writeAt(String fileName, int offset, byte[] buffer) {
+        Inode inode = disk.getInode(fileName);
+        if (inode == null) {
+            System.out.println("File not found: " + fileName);
+            return -1;
+        }
+        return writeInode(inode, offset, buffer);
+    }
+
+    /**
+     * Writes a range of bytes to a file whose inode is already known.
+     * 
+     * @param inode  the file.
+     * @param offset the byte offset in the file to start at.
+     * @param buffer the data to write.
+     * @return the number of bytes written, or -1 on error.
+     */
+    private static int writeInode(Inode inode, int offset, byte[] buffer) {
+        long end = (long) offset + buffer.length;
+        if (offset < 0 || end > Integer.MAX_VALUE) {
+            return -1;
+        }
+        if (!growFile(inode, (int) ((end + Disk.BLOCK_SIZE - 1) / Disk.BLOCK_SIZE))) {
+            System.out.println("Disk is full");
+            return -1;
+        }
+        // Zero the hole between the old end of the file and the offset.
+        boolean written = true;
+        for (int pos = inode.size; pos < offset && written; ) {
+            int n = Math.min(Disk.BLOCK_SIZE - pos % Disk.BLOCK_SIZE, offset - pos);
+            written = transfer(inode, pos, ZEROS, 0, n, true);
+            pos += n;
+        }
+        if (!written || !transfer(inode, offset, buffer, 0, buffer.length, true)) {
+            System.out.println("Disk is full");
+            return -1;
+        }
+        setSize(inode, (int) Math.max(inode.size, end));
+        return buffer.length;
+    }
+
+    /**
+     * Changes the size of a file, and logs the change if there is one.
+     * 
+     * @param inode the file.
+     * @param size  the new size in bytes.
+     */
+    private static void setSize(Inode inode, int size) {
+        if (inode.size != size) {
+            inode.size = size;
+            journal.logSize(inode.head(), size);
+        }
+    }
+
+    /**
+     * Moves bytes between a buffer and the blocks of a file, one block at a
+     * time, through the cache.
+     * 
+     * @param inode   the file.
+     * @param offset  the byte offset in the file to start at.
+     * @param buffer  the buffer.
+     * @param start   the index in buffer of the first byte.
+     * @param length  the number of bytes to move.
+     * @param writing true to copy from the buffer to the file.
+     * @return false if a shared block had to be copied before writing it,
+     *         and the disk is full.
+     */
+    private static boolean transfer(Inode inode, int offset,
+            byte[] buffer, int start, int length, boolean writing) {
+        while (length > 0) {
+            int within = offset % Disk.BLOCK_SIZE;
+            int n = Math.min(Disk.BLOCK_SIZE - within, length);
+            int block = inode.blockAt(offset / Disk.BLOCK_SIZE);
+            if (writing && dedup != null) {
+                if (!dedup.write(inode, offset / Disk.BLOCK_SIZE, within, buffer, start, n)) {
+                    return false;
+                }
+            } else if (writing) {
+                cache.write(block, within, buffer, start, n);
+            } else {
+                cache.read(block, within, buffer, start, n);
+            }
+            offset += n;
+            start += n;
+            length -= n;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates blocks to a file until it has at least the given number.
+     * The file is grown in place if the blocks after it are free; otherwise
+     * the largest contiguous runs available are used, so that the file
+     * stays in as few extents as possible.
+     * 
+     * @param inode  the file.
+     * @param blocks the number of blocks wanted.
+     * @return false if the disk filled up first.
+     */
+    private static boolean growFile(Inode inode, int blocks) {
+        int want = blocks - inode.blocks();
+        if (want <= 0) {
+            return true;
+        }
+        int n = disk.allocateAt(inode.nextBlock(), want);
+        if (n > 0) {
+            if (journal.logExtend(inode.head(), inode.nextBlock(), n) < 0) {
+                disk.freeRun(inode.nextBlock(), n);
+                return false;
+            }
+            inode.append(inode.nextBlock(), n);
+            want -= n;
+        }
+        for (int run = want; want > 0 && run > 0; ) {
+            run = Math.min(run, want);
+            int start = disk.allocateRun(run);
+            if (start == -1) {
+                run /= 2;
+                continue;
+            }
+            if (journal.logExtend(inode.head(), start, run) < 0) {
+                disk.freeRun(start, run);
+                return false;
+            }
+            inode.append(start, run);
+            want -= run;
+        }
+        return want == 0;
+    }
+
     private static int listFiles() {
         System.out.println("Listing files: ");
-        for (int i = 0; i < disk.DISK_SIZE; i++) {
-            if (disk.fileTable[i] != null) {
-                System.out.println("\t- " + disk.fileTable[i]);
+        for (String name : disk.fileNames()) {
+            // A file may be deleted while the list is being printed.
+            Inode inode = disk.getInode(name);
+            if (inode != null) {
+                System.out.println("\t- " + name + " (" + inode.size + " bytes)");
             }
         }
         return 0;
     }
 
     private static int deleteFile(String fileName) {
-        int blockIndex = disk.getFileBlock(fileName);
-        if (blockIndex == -1) {
-            System.out.println("File not found" + fileName);
+        Inode inode = disk.getInode(fileName);
+        if (inode == null) {
+            System.out.println("File not found: " + fileName);
             return -1;
         }
-        disk.fileTable[blockIndex] = null;
-        disk.setFreeMap(blockIndex, false);
-        return 0;
+        disk.removeFile(inode.head());
+        inode.deleted = true;
+        long seq = journal.logDelete(inode.head());
+        if (dedup != null) {
+            dedup.delete(inode);
+            return journal.commit(seq) ? 0 : -1;
+        }
+        for (int i = 0; i < inode.extents(); i++) {
+            int start = inode.extentStart(i);
+            int length = inode.extentLength(i);
+            for (int b = start; b < start + length; b++) {
+                cache.invalidate(b);
+            }
+            disk.freeRun(start, length);
+        }
+        return journal.commit(seq) ? 0 : -1;
     }
 } // class Kernel
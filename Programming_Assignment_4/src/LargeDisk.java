@@ -0,0 +1,148 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/** A FastDisk for disks too big for one array or one mapping.
+ * <p>
+ * FastDisk keeps the disk in a single byte array, and MappedDisk in a
+ * single mapping, so neither can hold more than 2 GB. This disk stores its
+ * contents in <em>shard</em> files <samp>DISK.0</samp>,
+ * <samp>DISK.1</samp>, ..., each holding SHARD_BLOCKS blocks (1 GB) and
+ * mapped into memory separately. Byte offsets on the disk are longs, so a
+ * disk can have up to 2<sup>31</sup>-1 blocks (1 TB). The shard files are
+ * created sparse: blocks never written take no space in the file system.
+ * <p>
+ * Like MappedDisk, booting costs the same however big the disk is, data is
+ * paged in by the operating system as it is used, and flush() forces only
+ * the blocks that changed.
+ * <p>
+ * Select this disk by name when booting:
+ * <pre>
+ *    java Boot 10 LargeDisk 16777216 Shell
+ * </pre>
+ * @see MappedDisk
+ * @see LargeDiskBench
+ */
+public class LargeDisk extends FastDisk {
+    /** The number of blocks in each shard file, as a power of two. */
+    public static final int SHARD_SHIFT = 21;
+
+    /** The number of blocks in each shard file. */
+    public static final int SHARD_BLOCKS = 1 << SHARD_SHIFT;
+
+    /** The number of bytes in each full shard file. */
+    private static final long SHARD_BYTES = (long) SHARD_BLOCKS * BLOCK_SIZE;
+
+    /** The mapped shard files. */
+    private final MappedByteBuffer[] shards;
+
+    /** Creates a new LargeDisk.
+     * Shard files that do not exist are created, filled with nulls.
+     * @param size the total size of this disk, in blocks.
+     */
+    public LargeDisk(int size) {
+        super(size, false);
+        int count = (int) (((long) size + SHARD_BLOCKS - 1) / SHARD_BLOCKS);
+        shards = new MappedByteBuffer[count];
+        boolean restored = shardFile(0).exists();
+        for (int s = 0; s < count; s++) {
+            File file = shardFile(s);
+            long length = Math.min(SHARD_BYTES, (long) size * BLOCK_SIZE - s * SHARD_BYTES);
+            if (file.exists() != restored
+                    || file.exists() && file.length() != length) {
+                throw new DiskException("File " + file + " is missing or the wrong size");
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // The mapping stays valid after the channel is closed.
+                shards[s] = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } catch (IOException e) {
+                throw new DiskException("Cannot map file " + file + ": " + e);
+            }
+        }
+        if (restored) {
+            System.out.println("Mapped " + (long) size * BLOCK_SIZE + " bytes from "
+                + count + " shard files");
+        } else {
+            System.out.println("Creating new disk in " + count + " shard files");
+        }
+        initFreeMap(restored);
+    } // LargeDisk
+
+    /** Returns the file holding one shard of the disk.
+     * @param s the shard number.
+     * @return the file.
+     */
+    public File shardFile(int s) {
+        return new File(image.getPath() + "." + s);
+    } // shardFile
+
+    /** Returns the number of shard files.
+     * @return the number of shards.
+     */
+    public int shards() {
+        return shards.length;
+    } // shards
+
+    /** Copies bytes out of the shards.
+     * @see Disk#getBytes(long, byte[], int, int)
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int within = (int) (position % SHARD_BYTES);
+            int n = (int) Math.min(length, SHARD_BYTES - within);
+            shards[(int) (position / SHARD_BYTES)].get(within, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    } // getBytes(long, byte[], int, int)
+
+    /** Copies bytes into the shards and remembers the blocks they touch.
+     * @see Disk#putBytes(long, byte[], int, int)
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        long start = position;
+        int total = length;
+        while (length > 0) {
+            int within = (int) (position % SHARD_BYTES);
+            int n = (int) Math.min(length, SHARD_BYTES - within);
+            shards[(int) (position / SHARD_BYTES)].put(within, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+        markDirty(start, total);
+    } // putBytes(long, byte[], int, int)
+
+    /** Forces the changed regions of the shards out to their files.
+     * Runs of adjacent changed blocks within a shard are forced together.
+     */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        for (int start = changed.nextSetBit(0); start >= 0;
+                start = changed.nextSetBit(start)) {
+            int end = changed.nextClearBit(start);
+            force(start, end - start);
+            start = end;
+        }
+    } // save()
+
+    /** Forces a run of blocks out to the shard files.
+     * @see Disk#force(int, int)
+     */
+    protected void force(int start, int count) {
+        while (count > 0) {
+            int within = start & (SHARD_BLOCKS - 1);
+            int n = Math.min(count, SHARD_BLOCKS - within);
+            shards[start >>> SHARD_SHIFT].force(within * BLOCK_SIZE, n * BLOCK_SIZE);
+            recordSave(n);
+            start += n;
+            count -= n;
+        }
+    } // force(int, int)
+} // LargeDisk
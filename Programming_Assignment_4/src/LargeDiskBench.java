@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.*;
+
+/** Measures how file system latency changes with the size of the disk.
+ * <p>
+ * For each disk size LargeDiskBench boots the Kernel on a new LargeDisk,
+ * runs itself as the initial program, creates a set of files with one
+ * block of data each, and then times a number of each of these calls,
+ * on files picked at random:
+ * <ul>
+ * <li><samp>create</samp> and <samp>delete</samp> of a new file, which
+ * include waiting for the journal;
+ * <li><samp>read</samp> and <samp>write</samp> of a block of an existing
+ * file.
+ * </ul>
+ * It prints the mean, median and 99th percentile latency of each call for
+ * each size, and the time to boot and mount the disk. The shard files are
+ * deleted after each size. If the latencies stay flat as the disk grows,
+ * none of the structures on the path of these calls grows with the disk.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java LargeDiskBench [-sizes 32768,262144,2097152,16777216]
+ *                        [-files 1000] [-ops 2000] [-cache 64]
+ * </pre>
+ * It refuses to run where shard files already exist, so that it cannot
+ * destroy a disk.
+ * @see LargeDisk
+ * @see FsBench
+ */
+public class LargeDiskBench {
+    /** The disk sizes to try, in blocks. */
+    private static int[] sizes = { 1 << 15, 1 << 18, 1 << 21, 1 << 24 };
+
+    /** The number of files to create before timing. */
+    private static int files = 1000;
+
+    /** The number of each call to time. */
+    private static int ops = 2000;
+
+    /** The size of the Kernel's buffer cache, in blocks. */
+    private static int cacheSize = 64;
+
+    /** The console, saved while output is discarded. */
+    private static final PrintStream console = System.out;
+
+    /** A stream that discards everything written to it. */
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    /** The main program.
+     * @param args the options described above, or "-run" and the disk size
+     * when running as the Kernel's initial program.
+     */
+    public static void main(String args[]) {
+        if (args.length == 2 && args[0].equals("-run")) {
+            run(Integer.parseInt(args[1]));
+            return;
+        }
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-sizes" -> sizes = Arrays.stream(value.split(","))
+                    .mapToInt(Integer::parseInt).toArray();
+                case "-files" -> files = Integer.parseInt(value);
+                case "-ops" -> ops = Integer.parseInt(value);
+                case "-cache" -> cacheSize = Integer.parseInt(value);
+                default -> {
+                    System.err.println("LargeDiskBench: unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+        if (new File("DISK.0").exists()) {
+            System.err.println("LargeDiskBench: DISK.0 exists; run somewhere else");
+            System.exit(1);
+        }
+        console.printf("%-10s %-8s %10s %10s %10s\n", "blocks", "call", "mean us", "p50 us",
+            "p99 us");
+        for (int size : sizes) {
+            System.setOut(discard);
+            long start = System.nanoTime();
+            LargeDisk disk = new LargeDisk(size);
+            long booted = System.nanoTime() - start;
+            try {
+                Kernel.interrupt(Kernel.INTERRUPT_POWER_ON,
+                    cacheSize, 0, disk, "LargeDiskBench -run " + size, null);
+            } finally {
+                System.setOut(console);
+                for (int s = 0; s < disk.shards(); s++) {
+                    disk.shardFile(s).delete();
+                }
+            }
+            console.printf("%-10d %-8s %10.1f\n", size, "boot", booted / 1e3);
+        }
+    } // main
+
+    /** Creates the files and times the calls. Runs as the initial program.
+     * @param size the size of the disk, for the report.
+     */
+    private static void run(int size) {
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        for (int i = 0; i < files; i++) {
+            Library.create("file-" + i);
+            Library.write("file-" + i, block);
+        }
+        Random random = new Random(size);
+        long[][] nanos = new long[4][ops];
+        for (int i = 0; i < ops; i++) {
+            String name = "file-" + random.nextInt(files);
+            long t0 = System.nanoTime();
+            Library.create("tmp");
+            long t1 = System.nanoTime();
+            Library.delete("tmp");
+            long t2 = System.nanoTime();
+            Library.read(name, block);
+            long t3 = System.nanoTime();
+            Library.write(name, block);
+            long t4 = System.nanoTime();
+            nanos[0][i] = t1 - t0;
+            nanos[1][i] = t2 - t1;
+            nanos[2][i] = t3 - t2;
+            nanos[3][i] = t4 - t3;
+        }
+        String[] calls = { "create", "delete", "read", "write" };
+        for (int c = 0; c < calls.length; c++) {
+            long[] n = nanos[c];
+            Arrays.sort(n);
+            console.printf("%-10d %-8s %10.1f %10.1f %10.1f\n", size, calls[c],
+                Arrays.stream(n).average().orElse(0) / 1e3,
+                n[n.length / 2] / 1e3, n[n.length * 99 / 100] / 1e3);
+        }
+    } // run
+} // LargeDiskBench
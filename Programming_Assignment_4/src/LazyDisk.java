@@ -0,0 +1,228 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A FastDisk that loads its DISK file on demand.
+ * <p>
+ * FastDisk reads the whole DISK file into memory before the kernel starts,
+ * so booting takes longer and uses more memory the bigger the disk is.
+ * This disk instead keeps a page table of CHUNK_SIZE chunks. A chunk is
+ * read from the file, with a single positional read, the first time any
+ * byte in it is used, and chunks that are never touched are never read.
+ * Booting costs the same however big the disk is, and memory grows with
+ * the set of blocks actually used.
+ * <p>
+ * If the <samp>disk.prefetch</samp> system property is true, a background
+ * thread also reads the chunks that have not been loaded yet in order from
+ * the start of the file, so that a disk that will be read all over warms
+ * up with sequential reads instead of scattered ones.
+ * <p>
+ * Select this disk by name when booting:
+ * <pre>
+ *    java -Ddisk.prefetch=true Boot 10 LazyDisk 30000 Shell
+ * </pre>
+ * @see FastDisk
+ * @see MappedDisk
+ */
+public class LazyDisk extends FastDisk {
+    /** The size of a chunk of the page table, in bytes. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /** The number of blocks in a chunk. */
+    public static final int CHUNK_BLOCKS = CHUNK_SIZE / BLOCK_SIZE;
+
+
+    /** The DISK file, open for reading and writing. */
+    private final FileChannel channel;
+
+    /** The loaded chunks; null for a chunk not yet read. */
+    private final AtomicReferenceArray<byte[]> chunks;
+
+    /** Held while a chunk is being read, so each is read only once. */
+    private final Object loading = new Object();
+
+    /** The number of chunks loaded. */
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    /** The number of chunks loaded by the prefetcher. */
+    private final AtomicInteger prefetched = new AtomicInteger();
+
+    /** Creates a new LazyDisk.
+     * If the DISK file does not exist, it is created and filled with nulls.
+     * @param size the total size of this disk, in blocks.
+     */
+    public LazyDisk(int size) {
+        super(size, false);
+        checkImageSize();
+        boolean restored = image.exists();
+        try {
+            channel = FileChannel.open(image.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            if (!restored) {
+                channel.write(ByteBuffer.allocate(1), (long) size * BLOCK_SIZE - 1);
+            }
+        } catch (IOException e) {
+            throw new DiskException("Cannot open file DISK: " + e);
+        }
+        chunks = new AtomicReferenceArray<>(
+            (int) (((long) size * BLOCK_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        if (restored) {
+            System.out.println("Opened " + (long) size * BLOCK_SIZE
+                + " bytes from file DISK, loading on demand");
+        } else {
+            System.out.println("Creating new disk");
+        }
+        initFreeMap(restored);
+        if (Boolean.getBoolean("disk.prefetch")) {
+            Thread prefetcher = new Thread(this::prefetch, "PREFETCHER");
+            prefetcher.setDaemon(true);
+            prefetcher.setPriority(Thread.MIN_PRIORITY);
+            prefetcher.start();
+        }
+    } // LazyDisk
+
+    /** Returns a chunk, reading it from the DISK file if need be.
+     * @param c the chunk number.
+     * @return the chunk.
+     */
+    private byte[] chunk(int c) {
+        byte[] chunk = chunks.get(c);
+        return chunk != null ? chunk : load(c);
+    } // chunk
+
+    /** Reads a chunk from the DISK file, unless another thread just did.
+     * @param c the chunk number.
+     * @return the chunk.
+     */
+    private byte[] load(int c) {
+        synchronized (loading) {
+            byte[] chunk = chunks.get(c);
+            if (chunk != null) {
+                return chunk;
+            }
+            long start = (long) c * CHUNK_SIZE;
+            chunk = new byte[(int) Math.min(CHUNK_SIZE,
+                (long) DISK_SIZE * BLOCK_SIZE - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            try {
+                while (buffer.hasRemaining()
+                        && channel.read(buffer, start + buffer.position()) >= 0) {
+                }
+            } catch (IOException e) {
+                throw new DiskException("Cannot read file DISK: " + e);
+            }
+            chunks.set(c, chunk);
+            loaded.incrementAndGet();
+            return chunk;
+        }
+    } // load
+
+    /** Loads every chunk not yet loaded, in order. Run by the prefetcher. */
+    private void prefetch() {
+        for (int c = 0; c < chunks.length(); c++) {
+            if (chunks.get(c) == null) {
+                load(c);
+                prefetched.incrementAndGet();
+            }
+        }
+    } // prefetch
+
+    /** Copies bytes out of the chunks, loading them as needed.
+     * @see Disk#getBytes(long, byte[], int, int)
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int within = (int) (position % CHUNK_SIZE);
+            int n = Math.min(length, CHUNK_SIZE - within);
+            System.arraycopy(chunk((int) (position / CHUNK_SIZE)), within, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    } // getBytes(long, byte[], int, int)
+
+    /** Copies bytes into the chunks, loading them as needed, and remembers
+     * the blocks they touch.
+     * @see Disk#putBytes(long, byte[], int, int)
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        long start = position;
+        int total = length;
+        while (length > 0) {
+            int within = (int) (position % CHUNK_SIZE);
+            int n = Math.min(length, CHUNK_SIZE - within);
+            System.arraycopy(buffer, offset, chunk((int) (position / CHUNK_SIZE)), within, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+        markDirty(start, total);
+    } // putBytes(long, byte[], int, int)
+
+    /** Writes the changed blocks back to the DISK file.
+     * Each run of adjacent changed blocks within a chunk is written with a
+     * single positional write.
+     */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        try {
+            for (int start = changed.nextSetBit(0); start >= 0;
+                    start = changed.nextSetBit(start)) {
+                int end = (int) Math.min(changed.nextClearBit(start),
+                    ((long) start / CHUNK_BLOCKS + 1) * CHUNK_BLOCKS);
+                writeBlocks(start, end - start);
+                changed.clear(start, end);
+                start = end;
+            }
+        } finally {
+            // Anything not written stays dirty for the next attempt.
+            markDirty(changed);
+        }
+    } // save()
+
+    /** Writes a run of blocks to the DISK file and waits until they are on
+     * stable storage.
+     * @see Disk#force(int, int)
+     */
+    protected void force(int start, int count) throws IOException {
+        while (count > 0) {
+            int n = (int) Math.min(count,
+                ((long) start / CHUNK_BLOCKS + 1) * CHUNK_BLOCKS - start);
+            writeBlocks(start, n);
+            start += n;
+            count -= n;
+        }
+        channel.force(false);
+    } // force(int, int)
+
+    /** Writes a run of blocks that lies within one chunk to the DISK file.
+     * @param start the first block.
+     * @param count the number of blocks.
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeBlocks(int start, int count) throws IOException {
+        long position = (long) start * BLOCK_SIZE;
+        ByteBuffer bytes = ByteBuffer.wrap(chunk((int) (position / CHUNK_SIZE)),
+            (int) (position % CHUNK_SIZE), count * BLOCK_SIZE);
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+        recordSave(count);
+    } // writeBlocks
+
+    /** Saves the disk, prints statistics, and reports how much of the DISK
+     * file was loaded.
+     */
+    public void flush() {
+        super.flush();
+        System.out.printf("LazyDisk: %d of %d chunks loaded (%d KB), %d by the prefetcher\n",
+            loaded.get(), chunks.length(), (long) loaded.get() * CHUNK_SIZE / 1024,
+            prefetched.get());
+    } // flush()
+} // LazyDisk
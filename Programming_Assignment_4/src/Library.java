@@ -32,7 +32,8 @@ public class Library {
         "End of file on console input", // ERROR_END_OF_FILE = -6
         "I/O error on console input",   // ERROR_IO = -7
         "Exception in user program",    // ERROR_IN_CHILD = -8
-        "No such process"               // ERROR_NO_SUCH_PROCESS = -9
+        "No such process",              // ERROR_NO_SUCH_PROCESS = -9
+        "Broken pipe"                   // ERROR_BROKEN_PIPE = -10
     };
 
     /** Performs SYSCALL_OUTPUT.
@@ -45,6 +46,17 @@ public class Library {
             Kernel.SYSCALL_OUTPUT, 0, s, null, null);
     } // output
 
+    /** Performs OUTPUT_BYTES.
+     * Displays bytes on the console as they are, which costs less than
+     * building a String for each piece of output.
+     * @param bytes the bytes to display
+     * @return the number of bytes, or an error code.
+     */
+    public static int output(byte[] bytes) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+            Kernel.OUTPUT_BYTES, 0, null, null, bytes);
+    } // output
+
     /** Performs SYSCALL_INPUT.
      * Waits for the user to type some text and hit [return].
      * The input line is returned in the supplied StringBuffer
@@ -70,6 +82,21 @@ public class Library {
             Kernel.SYSCALL_EXEC, 0, command, args, null);
     } // exec
 
+    /** Performs SYSCALL_EXEC with the new program's standard input and
+     * output connected to pipes.
+     * @param command The name of a Java class to execute.
+     * @param args The arguments to give the new program
+     * @param stdin the read end of a pipe for the program to read its input
+     * from, or -1 to share the caller's.
+     * @param stdout the write end of a pipe for the program to write its
+     * output to, or -1 to share the caller's.
+     * @return a non-negative process id, or an error code.
+     */
+    public static int exec(String command, String args[], int stdin, int stdout) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+            Kernel.SYSCALL_EXEC, (stdin + 1) | (stdout + 1) << 16, command, args, null);
+    } // exec
+
     /** Performs SYSCALL_JOIN.
      * Waits for a process to terminate
      * @param pid a process id returned by a previous call to exec.
@@ -142,12 +169,166 @@ public class Library {
         return rv;
     }
 
+    /**
+     * Reads part of a file.
+     * @param fname the name of the file to read from.
+     * @param offset the byte offset in the file to start at.
+     * @param buffer the destination for the data; its length is the number
+     * of bytes wanted.
+     * @return the number of bytes read (less than buffer.length at end of
+     * file) or -1 on failure.
+     */
+    public static int read(String fname, int offset, byte[] buffer) {
+        int rv = Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.READ_AT, offset, fname, null, buffer);
+        if (rv >= 0) {
+            System.out.println("\nRead " + rv + " bytes from file " + fname + ".");
+        } else {
+            System.out.println("\nFile " + fname + " read failed.");
+        }
+        return rv;
+    }
+
+    /**
+     * Writes part of a file, growing it if necessary.
+     * @param fname the name of the file to write to.
+     * @param offset the byte offset in the file to start at.
+     * @param buffer the source of the data.
+     * @return the number of bytes written or -1 on failure.
+     */
+    public static int write(String fname, int offset, byte[] buffer) {
+        int rv = Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.WRITE_AT, offset, fname, null, buffer);
+        if (rv >= 0) {
+            System.out.println("\nWrote " + rv + " bytes to file " + fname + ".");
+        } else {
+            System.out.println("\nFile " + fname + " write failed.");
+        }
+        return rv;
+    }
+
+    /**
+     * Opens a file, so that it can be read and written by descriptor without
+     * looking up its name each time.
+     * @param fname the name of the file to open.
+     * @return a file descriptor on success and -1 on failure.
+     */
+    public static int open(String fname) {
+        int rv = Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.OPEN_FILE, 0, fname, null, null);
+        if (rv < 0) {
+            System.out.println("\nFile " + fname + " open failed.");
+        }
+        return rv;
+    }
+
+    /**
+     * Closes a file descriptor.
+     * @param fd a file descriptor returned by open.
+     * @return 0 on success and -1 on failure.
+     */
+    public static int close(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.CLOSE_FILE, fd, null, null, null);
+    }
+
+    /**
+     * Reads from an open file at its current position.
+     * Meant for loops, so nothing is printed.
+     * @param fd a file descriptor returned by open.
+     * @param buffer the destination for the data; its length is the number
+     * of bytes wanted.
+     * @return the number of bytes read (0 at end of file) or -1 on failure.
+     */
+    public static int read(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.READ_FD, fd, null, null, buffer);
+    }
+
+    /**
+     * Writes to an open file at its current position.
+     * Meant for loops, so nothing is printed.
+     * @param fd a file descriptor returned by open.
+     * @param buffer the source of the data.
+     * @return the number of bytes written or -1 on failure.
+     */
+    public static int write(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.WRITE_FD, fd, null, null, buffer);
+    }
+
+    /**
+     * Performs SYSCALL_BATCH.
+     * Performs many file system calls with a single trip into the kernel.
+     * Unlike the other file system methods, this one prints nothing.
+     * @param entries the calls to perform.
+     * @param results an array, at least as long as entries, to receive the
+     * return code of each call.
+     * @param sorted true to let the kernel reorder runs of reads and writes
+     * by block number.
+     * @return the number of calls that failed, or ERROR_BAD_ARGUMENT.
+     */
+    public static int batch(Kernel.BatchEntry[] entries, int[] results, boolean sorted) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.SYSCALL_BATCH,
+            sorted ? Kernel.BATCH_SORTED : Kernel.BATCH_IN_ORDER, entries, results, null);
+    } // batch
+
+    /** Performs SYSCALL_STATS.
+     * Gets the kernel's counts and latencies of system calls.
+     * @param pid a process id, or zero for a table of every system call.
+     * @param result a place to put the report.
+     * @return zero, or ERROR_NO_SUCH_PROCESS.
+     */
+    public static int stats(int pid, StringBuffer result) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER,
+            Kernel.SYSCALL_STATS, pid, result, null, null);
+    } // stats
+
+    /** Performs PIPE.
+     * Makes a pipe, to pass bytes from one process to another.
+     * @param fds an array of length two, to receive the pipe descriptor of
+     * the read end in element 0 and of the write end in element 1.
+     * @return zero, or ERROR_BAD_ARGUMENT.
+     */
+    public static int pipe(int[] fds) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.PIPE, 0, fds, null, null);
+    } // pipe
+
+    /** Performs PIPE_READ.
+     * Waits until a pipe has bytes to read, and reads some of them.
+     * Kernel.STDIN is the pipe of standard input, if there is one.
+     * @param fd the pipe descriptor of a read end.
+     * @param buffer the destination for the data; its length is the most
+     * bytes wanted.
+     * @return the number of bytes read, 0 at end of file, or
+     * ERROR_BAD_ARGUMENT.
+     */
+    public static int pipeRead(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.PIPE_READ, fd, null, null, buffer);
+    } // pipeRead
+
+    /** Performs PIPE_WRITE.
+     * Writes all the bytes to a pipe, waiting for room as needed.
+     * Kernel.STDOUT is the pipe of standard output, if there is one.
+     * @param fd the pipe descriptor of a write end.
+     * @param buffer the source of the data.
+     * @return the number of bytes written, ERROR_BROKEN_PIPE, or
+     * ERROR_BAD_ARGUMENT.
+     */
+    public static int pipeWrite(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.PIPE_WRITE, fd, null, null, buffer);
+    } // pipeWrite
+
+    /** Performs PIPE_CLOSE.
+     * Closes a pipe descriptor. A reader sees end of file once every write
+     * end is closed.
+     * @param fd the pipe descriptor.
+     * @return zero, or ERROR_BAD_ARGUMENT.
+     */
+    public static int pipeClose(int fd) {
+        return Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.PIPE_CLOSE, fd, null, null, null);
+    } // pipeClose
+
     /**
      * Reports information about the file system to System.out
      * @return 0 on success and -1 on failure. 
      */
     public static int list() {
-        int rv = Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.LIST_FILES, 0, 0, null, null);
+        int rv = Kernel.interrupt(Kernel.INTERRUPT_USER, Kernel.LIST_FILES, 0, null, null, null);
         if (rv == 0) {
             System.out.println("\nFile system information listed successfully.");
         } else {
@@ -0,0 +1,191 @@
+/** A small, fast LZ77 compressor in the style of LZ4.
+ * <p>
+ * The compressed form is a series of <em>sequences</em>, each a run of
+ * literal bytes followed by a match: a copy of earlier output. A sequence
+ * starts with a token byte whose high four bits are the number of literals
+ * and whose low four bits are the match length minus MIN_MATCH; a field of
+ * 15 is continued in following bytes, each adding up to 255. Then come the
+ * literals, then the distance back to the match as two little-endian
+ * bytes. The last sequence has only literals. A match may overlap the
+ * bytes it produces, so a long run of one byte becomes a single sequence.
+ * <p>
+ * Matches are found through a hash table of the last position each 4-byte
+ * string was seen at, without searching further, which trades some ratio
+ * for speed. The compressor keeps no state between calls, so each call can
+ * be decompressed on its own.
+ * @see CompressedDisk
+ * @see LzBench
+ */
+public class Lz {
+    /** The shortest match encoded. */
+    public static final int MIN_MATCH = 4;
+
+    /** The furthest back a match may start. */
+    public static final int MAX_DISTANCE = 65535;
+
+    /** The number of bits in a hash table index. */
+    private static final int HASH_BITS = 12;
+
+    /** Prevents instantiation. */
+    private Lz() {
+    }
+
+    /** Returns the most bytes that compress() can produce.
+     * @param length the number of bytes to compress.
+     * @return the size the output buffer must have.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    } // maxCompressedLength
+
+    /** Compresses bytes.
+     * @param src the bytes to compress.
+     * @param offset the index in src of the first byte.
+     * @param length the number of bytes to compress.
+     * @param dst where to put the compressed bytes; it must have room for
+     * maxCompressedLength(length) bytes.
+     * @param dstOffset the index in dst of the first compressed byte.
+     * @return the number of compressed bytes.
+     */
+    public static int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int[] table = new int[1 << HASH_BITS];
+        int end = offset + length;
+        int anchor = offset;
+        int d = dstOffset;
+        for (int p = offset; p + MIN_MATCH <= end; ) {
+            int word = readInt(src, p);
+            int h = (word * 0x9E3779B1) >>> (32 - HASH_BITS);
+            // Positions are stored plus one, so that zero means none.
+            int candidate = table[h] - 1 + offset;
+            table[h] = p - offset + 1;
+            if (candidate < offset || p - candidate > MAX_DISTANCE
+                    || readInt(src, candidate) != word) {
+                p++;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while (p + match < end && src[candidate + match] == src[p + match]) {
+                match++;
+            }
+            d = sequence(src, anchor, p - anchor, dst, d, match - MIN_MATCH);
+            dst[d++] = (byte) (p - candidate);
+            dst[d++] = (byte) ((p - candidate) >>> 8);
+            d = length(dst, d, match - MIN_MATCH);
+            p += match;
+            anchor = p;
+        }
+        d = sequence(src, anchor, end - anchor, dst, d, 0);
+        return d - dstOffset;
+    } // compress
+
+    /** Decompresses bytes produced by compress().
+     * @param src the compressed bytes.
+     * @param offset the index in src of the first compressed byte.
+     * @param length the number of compressed bytes.
+     * @param dst where to put the decompressed bytes.
+     * @param dstOffset the index in dst of the first decompressed byte.
+     * @param dstLength the number of bytes the data decompresses to.
+     * @throws IllegalArgumentException if the compressed bytes are corrupt.
+     */
+    public static void decompress(byte[] src, int offset, int length,
+            byte[] dst, int dstOffset, int dstLength) {
+        int p = offset;
+        int end = offset + length;
+        int d = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+        try {
+            for (;;) {
+                int token = src[p++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[p++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (p + literals > end || d + literals > dstEnd) {
+                    throw new IllegalArgumentException("literals overrun");
+                }
+                System.arraycopy(src, p, dst, d, literals);
+                p += literals;
+                d += literals;
+                if (p == end) {
+                    break;
+                }
+                int distance = (src[p++] & 0xFF) | (src[p++] & 0xFF) << 8;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[p++] & 0xFF;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (distance == 0 || distance > d - dstOffset || d + match > dstEnd) {
+                    throw new IllegalArgumentException("bad match");
+                }
+                if (distance >= match) {
+                    System.arraycopy(dst, d - distance, dst, d, match);
+                    d += match;
+                } else {
+                    for (int stop = d + match; d < stop; d++) {
+                        dst[d] = dst[d - distance];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Corrupt compressed data: truncated");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Corrupt compressed data: " + e.getMessage());
+        }
+        if (d != dstEnd) {
+            throw new IllegalArgumentException("Corrupt compressed data: "
+                + (d - dstOffset) + " bytes instead of " + dstLength);
+        }
+    } // decompress
+
+    /** Writes a token and the literals of a sequence.
+     * @param src the input.
+     * @param start the index in src of the first literal.
+     * @param literals the number of literals.
+     * @param dst the output.
+     * @param d the index in dst to write at.
+     * @param match the match length minus MIN_MATCH, for the token.
+     * @return the index in dst after the literals.
+     */
+    private static int sequence(byte[] src, int start, int literals,
+            byte[] dst, int d, int match) {
+        dst[d++] = (byte) (Math.min(literals, 15) << 4 | Math.min(match, 15));
+        d = length(dst, d, literals);
+        System.arraycopy(src, start, dst, d, literals);
+        return d + literals;
+    } // sequence
+
+    /** Writes the continuation bytes of a length field, if it needs any.
+     * @param dst the output.
+     * @param d the index in dst to write at.
+     * @param n the value of the field.
+     * @return the index in dst after the bytes written.
+     */
+    private static int length(byte[] dst, int d, int n) {
+        if (n >= 15) {
+            for (n -= 15; n >= 255; n -= 255) {
+                dst[d++] = (byte) 255;
+            }
+            dst[d++] = (byte) n;
+        }
+        return d;
+    } // length
+
+    /** Reads four bytes as an int.
+     * @param b the bytes.
+     * @param p the index of the first byte.
+     * @return the int.
+     */
+    private static int readInt(byte[] b, int p) {
+        return (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8
+            | (b[p + 2] & 0xFF) << 16 | (b[p + 3] & 0xFF) << 24;
+    } // readInt
+} // Lz
@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/** Measures the speed and ratio of the Lz codec.
+ * <p>
+ * LzBench compresses and decompresses a set of CompressedDisk groups over
+ * and over, checks that every group comes back unchanged, and prints the
+ * compression ratio and the throughput each way in megabytes of
+ * uncompressed data per second. The groups are either built from a text
+ * file, one line per block padded with zeros as the file system stores
+ * short files, or cut from a disk image.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java LzBench [-text tester.dat] [-image DISK] [-fill 25] [-mb 256]
+ * </pre>
+ * <samp>-fill</samp> is the percentage of blocks that hold a line when the
+ * groups are built from text; the rest are empty. <samp>-mb</samp> is the
+ * amount of data to compress, in megabytes, after a warm-up.
+ * @see Lz
+ * @see CompressedDisk
+ */
+public class LzBench {
+    /** The text file the blocks are built from. */
+    private static String text = "tester.dat";
+
+    /** A disk image to cut the groups from instead, or null. */
+    private static String image;
+
+    /** The percentage of blocks holding a line of text. */
+    private static int fill = 25;
+
+    /** The number of megabytes to compress and decompress. */
+    private static int mb = 256;
+
+    /** The main program.
+     * @param args the options described above.
+     * @throws IOException if the input cannot be read.
+     */
+    public static void main(String args[]) throws IOException {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-text" -> text = value;
+                case "-image" -> image = value;
+                case "-fill" -> fill = Integer.parseInt(value);
+                case "-mb" -> mb = Integer.parseInt(value);
+                default -> {
+                    System.err.println("LzBench: unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+        List<byte[]> groups = image != null ? imageGroups() : textGroups();
+        long raw = (long) groups.size() * CompressedDisk.GROUP_SIZE;
+        byte[][] packed = new byte[groups.size()][];
+        byte[] out = new byte[Lz.maxCompressedLength(CompressedDisk.GROUP_SIZE)];
+        byte[] back = new byte[CompressedDisk.GROUP_SIZE];
+        long compressed = 0;
+        for (int g = 0; g < packed.length; g++) {
+            int n = Lz.compress(groups.get(g), 0, CompressedDisk.GROUP_SIZE, out, 0);
+            packed[g] = Arrays.copyOf(out, n);
+            compressed += n;
+            Lz.decompress(packed[g], 0, n, back, 0, back.length);
+            if (!Arrays.equals(back, groups.get(g))) {
+                System.err.println("LzBench: group " + g + " did not round-trip");
+                System.exit(1);
+            }
+        }
+        System.out.printf("%d groups, %d bytes compressed to %d (ratio %.1f)\n",
+            packed.length, raw, compressed, (double) raw / compressed);
+        int rounds = (int) Math.max(1, ((long) mb << 20) / raw);
+        time(groups, packed, out, back, Math.max(1, rounds / 4));
+        double[] seconds = time(groups, packed, out, back, rounds);
+        double total = (double) rounds * raw / (1 << 20);
+        System.out.printf("compress   %8.1f MB/s\n", total / seconds[0]);
+        System.out.printf("decompress %8.1f MB/s\n", total / seconds[1]);
+    } // main
+
+    /** Compresses and decompresses every group a number of times.
+     * @param groups the groups.
+     * @param packed the groups compressed.
+     * @param out a buffer for compressed output.
+     * @param back a buffer for decompressed output.
+     * @param rounds the number of times to go through the groups.
+     * @return the seconds spent compressing and decompressing.
+     */
+    private static double[] time(List<byte[]> groups, byte[][] packed,
+            byte[] out, byte[] back, int rounds) {
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] group : groups) {
+                Lz.compress(group, 0, group.length, out, 0);
+            }
+        }
+        long middle = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] bytes : packed) {
+                Lz.decompress(bytes, 0, bytes.length, back, 0, back.length);
+            }
+        }
+        long end = System.nanoTime();
+        return new double[] { (middle - start) / 1e9, (end - middle) / 1e9 };
+    } // time
+
+    /** Builds 64 groups of blocks from the lines of the text file.
+     * @return the groups.
+     * @throws IOException if the file cannot be read.
+     */
+    private static List<byte[]> textGroups() throws IOException {
+        List<String> lines = Files.readAllLines(new File(text).toPath());
+        Random random = new Random(42);
+        List<byte[]> groups = new ArrayList<>();
+        for (int g = 0; g < 64; g++) {
+            byte[] group = new byte[CompressedDisk.GROUP_SIZE];
+            for (int b = 0; b < CompressedDisk.GROUP_BLOCKS; b++) {
+                if (random.nextInt(100) < fill) {
+                    byte[] line = lines.get(random.nextInt(lines.size())).getBytes();
+                    System.arraycopy(line, 0, group, b * Disk.BLOCK_SIZE,
+                        Math.min(line.length, Disk.BLOCK_SIZE));
+                }
+            }
+            groups.add(group);
+        }
+        return groups;
+    } // textGroups
+
+    /** Cuts the disk image into groups.
+     * @return the groups.
+     * @throws IOException if the file cannot be read.
+     */
+    private static List<byte[]> imageGroups() throws IOException {
+        List<byte[]> groups = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(image))) {
+            byte[] group;
+            while ((group = in.readNBytes(CompressedDisk.GROUP_SIZE)).length > 0) {
+                groups.add(Arrays.copyOf(group, CompressedDisk.GROUP_SIZE));
+            }
+        }
+        return groups;
+    } // imageGroups
+} // LzBench
@@ -0,0 +1,101 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/** A FastDisk whose contents live in a memory-mapped DISK file.
+ * <p>
+ * Instead of reading the whole DISK file into memory at boot and writing
+ * all of it back at shutdown, this disk maps the file with
+ * <samp>FileChannel.map</samp>. Booting costs the same however big the disk
+ * is, reads and writes are plain copies to and from the mapping, and the
+ * operating system pages data in and out as it is used. Because the
+ * mapping is shared with the file, changes survive a crash of the
+ * simulator even before the disk is flushed.
+ * <p>
+ * The disk remembers which blocks have been changed, and flush() forces
+ * just those regions of the mapping out to the file.
+ * <p>
+ * Select this disk by name when booting:
+ * <pre>
+ *    java Boot 10 MappedDisk 1024 Shell
+ * </pre>
+ * @see FastDisk
+ */
+public class MappedDisk extends FastDisk {
+    /** The largest disk that fits in a single mapping. */
+    public static final int MAX_SIZE = Integer.MAX_VALUE / BLOCK_SIZE;
+
+    /** The mapped contents of the DISK file. */
+    private final MappedByteBuffer map;
+
+    /** Creates a new MappedDisk.
+     * If the DISK file does not exist, it is created and filled with nulls.
+     * @param size the total size of this disk, in blocks.
+     */
+    public MappedDisk(int size) {
+        super(size, false);
+        if (size > MAX_SIZE) {
+            throw new DiskException(
+                String.format(
+                    "Cannot make a MappedDisk with %d blocks.  Max size is %d.",
+                    size, MAX_SIZE));
+        }
+        checkImageSize();
+        boolean restored = image.exists();
+        try (FileChannel channel = FileChannel.open(image.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            map = channel.map(FileChannel.MapMode.READ_WRITE,
+                0, (long) size * BLOCK_SIZE);
+        } catch (IOException e) {
+            throw new DiskException("Cannot map file DISK: " + e);
+        }
+        if (restored) {
+            System.out.println("Mapped " + map.capacity() + " bytes from file DISK");
+        } else {
+            System.out.println("Creating new disk");
+        }
+        initFreeMap(restored);
+    } // MappedDisk
+
+    /** Copies bytes out of the mapping.
+     * @see Disk#getBytes(long, byte[], int, int)
+     */
+    protected void getBytes(long position, byte[] buffer, int offset, int length) {
+        map.get((int) position, buffer, offset, length);
+    } // getBytes(long, byte[], int, int)
+
+    /** Copies bytes into the mapping and remembers the blocks they touch.
+     * @see Disk#putBytes(long, byte[], int, int)
+     */
+    protected void putBytes(long position, byte[] buffer, int offset, int length) {
+        map.put((int) position, buffer, offset, length);
+        markDirty(position, length);
+    } // putBytes(long, byte[], int, int)
+
+    /** Forces the changed regions of the mapping out to the DISK file.
+     * Runs of adjacent changed blocks are forced together.
+     */
+    protected void save() throws IOException {
+        BitSet changed = takeDirty();
+        for (int start = changed.nextSetBit(0); start >= 0;
+                start = changed.nextSetBit(start)) {
+            int end = changed.nextClearBit(start);
+            map.force(start * BLOCK_SIZE, (end - start) * BLOCK_SIZE);
+            recordSave(end - start);
+            start = end;
+        }
+    } // save()
+
+    /** Forces a run of blocks of the mapping out to the DISK file.
+     * @see Disk#force(int, int)
+     */
+    protected void force(int start, int count) throws IOException {
+        map.force(start * BLOCK_SIZE, count * BLOCK_SIZE);
+        recordSave(count);
+    } // force(int, int)
+} // MappedDisk
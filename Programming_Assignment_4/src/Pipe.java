@@ -0,0 +1,220 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A one-way stream of bytes between processes, held in memory.
+ * <p>
+ * The bytes are kept in a ring buffer of a fixed size, set by the
+ * <samp>kernel.pipeSize</samp> system property (64 KB by default, rounded
+ * up to a power of two). The reader and the writer each own one end of
+ * the ring: the writer only advances <em>tail</em>, the total number of
+ * bytes written, and the reader only advances <em>head</em>, the total
+ * number read, so a reader and a writer never take a lock to pass data to
+ * each other. Several processes may hold the same end; each side has a
+ * lock of its own that they take turns with, so that one write is never
+ * mixed with another.
+ * <p>
+ * A reader that finds the ring empty, or a writer that finds it full,
+ * parks its thread until the other side moves, rather than spinning.
+ * Each side publishes the thread it is about to park, and checks the ring
+ * once more afterwards, while the other side moves its counter before
+ * looking for a thread to unpark, so that no wakeup is lost.
+ * <p>
+ * A pipe counts the ends open for reading and for writing. Reading an
+ * empty pipe with no writers left is end of file, and writing to a pipe
+ * with no readers left fails.
+ *
+ * @see Kernel#PIPE
+ */
+public class Pipe {
+    /** The default size of the ring, in bytes. */
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    /** The number of pipes made, for statistics. */
+    private static final AtomicLong created = new AtomicLong();
+
+    /** The number of bytes passed through all pipes, for statistics. */
+    private static final AtomicLong moved = new AtomicLong();
+
+    /** The number of times a reader parked, for statistics. */
+    private static final AtomicLong readerParks = new AtomicLong();
+
+    /** The number of times a writer parked, for statistics. */
+    private static final AtomicLong writerParks = new AtomicLong();
+
+    /** The ring buffer. Its length is a power of two. */
+    private final byte[] ring;
+
+    /** The length of the ring minus one, to reduce a count to an index. */
+    private final int mask;
+
+    /** The total number of bytes read; advanced only by the reader. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** The total number of bytes written; advanced only by the writer. */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Held by the process reading, if several hold the read end. */
+    private final ReentrantLock reading = new ReentrantLock();
+
+    /** Held by the process writing, if several hold the write end. */
+    private final ReentrantLock writing = new ReentrantLock();
+
+    /** The reader parked waiting for bytes, or null. */
+    private volatile Thread parkedReader;
+
+    /** The writer parked waiting for space, or null. */
+    private volatile Thread parkedWriter;
+
+    /** The number of ends open for reading. */
+    private final AtomicInteger readers = new AtomicInteger();
+
+    /** The number of ends open for writing. */
+    private final AtomicInteger writers = new AtomicInteger();
+
+    /** Creates a pipe of the size set by the system property, with no ends open. */
+    public Pipe() {
+        int size = Integer.getInteger("kernel.pipeSize", DEFAULT_SIZE);
+        size = Integer.highestOneBit(Math.max(size, 2) * 2 - 1);
+        ring = new byte[size];
+        mask = size - 1;
+        created.incrementAndGet();
+    } // Pipe
+
+    /**
+     * Opens an end of this pipe.
+     *
+     * @param write true for the write end, false for the read end.
+     */
+    public void open(boolean write) {
+        (write ? writers : readers).incrementAndGet();
+    } // open
+
+    /**
+     * Closes an end of this pipe. Closing the last end on one side wakes
+     * any process waiting on the other.
+     *
+     * @param write true for the write end, false for the read end.
+     */
+    public void close(boolean write) {
+        if ((write ? writers : readers).decrementAndGet() == 0) {
+            unpark(write ? parkedReader : parkedWriter);
+        }
+    } // close
+
+    /**
+     * Reads bytes from this pipe, waiting until there is at least one or
+     * every write end is closed.
+     *
+     * @param buffer where to put the bytes.
+     * @param offset the index in buffer of the first byte.
+     * @param length the most bytes to read.
+     * @return the number of bytes read, or zero at end of file.
+     */
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        reading.lock();
+        try {
+            long h = head.get();
+            long available;
+            while ((available = tail.get() - h) == 0) {
+                if (writers.get() == 0) {
+                    // Everything written before the last close is visible now.
+                    if (tail.get() == h) {
+                        return 0;
+                    }
+                    continue;
+                }
+                parkedReader = Thread.currentThread();
+                if (tail.get() == h && writers.get() > 0) {
+                    readerParks.incrementAndGet();
+                    LockSupport.park(this);
+                }
+                parkedReader = null;
+            }
+            int n = (int) Math.min(available, length);
+            int at = (int) h & mask;
+            int first = Math.min(n, ring.length - at);
+            System.arraycopy(ring, at, buffer, offset, first);
+            System.arraycopy(ring, 0, buffer, offset + first, n - first);
+            head.set(h + n);
+            unpark(parkedWriter);
+            moved.addAndGet(n);
+            return n;
+        } finally {
+            reading.unlock();
+        }
+    } // read
+
+    /**
+     * Writes bytes to this pipe, waiting for room as needed.
+     *
+     * @param buffer the bytes to write.
+     * @param offset the index in buffer of the first byte.
+     * @param length the number of bytes to write.
+     * @return false if every read end was closed before all were written.
+     */
+    public boolean write(byte[] buffer, int offset, int length) {
+        writing.lock();
+        try {
+            long t = tail.get();
+            while (length > 0) {
+                if (readers.get() == 0) {
+                    return false;
+                }
+                long room = ring.length - (t - head.get());
+                if (room == 0) {
+                    parkedWriter = Thread.currentThread();
+                    if (t - head.get() == ring.length && readers.get() > 0) {
+                        writerParks.incrementAndGet();
+                        LockSupport.park(this);
+                    }
+                    parkedWriter = null;
+                    continue;
+                }
+                int n = (int) Math.min(room, length);
+                int at = (int) t & mask;
+                int first = Math.min(n, ring.length - at);
+                System.arraycopy(buffer, offset, ring, at, first);
+                System.arraycopy(buffer, offset + first, ring, 0, n - first);
+                t += n;
+                tail.set(t);
+                unpark(parkedReader);
+                offset += n;
+                length -= n;
+            }
+            return true;
+        } finally {
+            writing.unlock();
+        }
+    } // write
+
+    /**
+     * Wakes a parked thread, if there is one.
+     *
+     * @param thread the thread, or null.
+     */
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    } // unpark
+
+    /**
+     * Returns a summary of the use of all pipes, or null if none were made.
+     *
+     * @return the statistics.
+     */
+    public static String statistics() {
+        if (created.get() == 0) {
+            return null;
+        }
+        return String.format("Pipes: %d made, %d bytes passed;"
+                + " readers parked %d times, writers %d times",
+                created.get(), moved.get(), readerParks.get(), writerParks.get());
+    } // statistics
+} // Pipe
@@ -0,0 +1,82 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The programs the Kernel knows how to run, by name.
+ * <p>
+ * The first time a program is executed its class is loaded and its
+ * <samp>main(String[])</samp> method is resolved to a MethodHandle. The
+ * handle is cached, so later executions of the same program skip the class
+ * lookup and reflection entirely and call main almost as cheaply as a
+ * direct call.
+ * <p>
+ * The registry is safe to use from many processes at once. Two processes
+ * that resolve the same new program at the same time may both do the work,
+ * but only one handle is kept.
+ *
+ * @see Kernel
+ */
+public class ProgramRegistry {
+    /** The type of a program's main method. */
+    private static final MethodType MAIN_TYPE =
+        MethodType.methodType(void.class, String[].class);
+
+    /** Resolved main methods, by program name. */
+    private static final Map<String, MethodHandle> programs =
+        new ConcurrentHashMap<>();
+
+    /** This class only has static members. */
+    private ProgramRegistry() {
+    } // ProgramRegistry
+
+    /**
+     * Returns the main method of a program.
+     *
+     * @param command the name of the program: the name of a public class
+     *                with a public static main(String[]) method.
+     * @return a handle of type (String[])void that runs the program.
+     * @throws ClassNotFoundException if there is no such class.
+     * @throws NoSuchMethodException  if the class has no suitable main
+     *                                method.
+     */
+    public static MethodHandle lookup(String command)
+            throws ClassNotFoundException, NoSuchMethodException {
+        MethodHandle main = programs.get(command);
+        if (main == null) {
+            main = resolve(command);
+            MethodHandle old = programs.putIfAbsent(command, main);
+            if (old != null) {
+                main = old;
+            }
+        }
+        return main;
+    } // lookup
+
+    /**
+     * Forgets every resolved program, so that each is looked up again the
+     * next time it is run.
+     */
+    public static void clear() {
+        programs.clear();
+    } // clear
+
+    /**
+     * Loads a program and finds its main method.
+     *
+     * @param command the name of the program.
+     * @return the main method.
+     */
+    private static MethodHandle resolve(String command)
+            throws ClassNotFoundException, NoSuchMethodException {
+        Class<?> programClass = Class.forName(command);
+        try {
+            return MethodHandles.publicLookup()
+                .findStatic(programClass, "main", MAIN_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new NoSuchMethodException(command + ".main is not public");
+        }
+    } // resolve
+} // ProgramRegistry
@@ -0,0 +1,81 @@
+/**
+ * The read-ahead state of one stream of reads: an open file, or the reads
+ * a process makes by file name.
+ * <p>
+ * The Kernel tells the stream about every read it serves. While the reads
+ * go through a file in order, the stream asks the {@link BlockCache} to
+ * start reading the next <em>window</em> blocks of the file, so that they
+ * are already on their way from the disk when the process wants them. A
+ * read that starts anywhere but where the last one ended turns read-ahead
+ * off until the stream is sequential again, except that reading the start
+ * of a file is taken as the start of a scan.
+ * <p>
+ * The window adapts to how useful read-ahead turns out to be. Each block
+ * read ahead that the process then uses widens it by one, up to the limit
+ * set by the cache; each block evicted or discarded before it was used
+ * halves it.
+ *
+ * @see BlockCache#prefetch(int[], ReadAhead)
+ * @see Kernel
+ */
+public class ReadAhead {
+    /** The window a stream starts with once it is seen to be sequential. */
+    public static final int MIN_WINDOW = 2;
+
+    /** The file being read, or null before the first read. */
+    private Inode inode;
+
+    /** The logical block a sequential read would start with. */
+    private int next = -1;
+
+    /** The first logical block not yet read ahead. */
+    private int ahead;
+
+    /** The number of blocks to keep read ahead of the stream. */
+    private int window;
+
+    /** The largest window allowed, as of the last read. */
+    private int limit;
+
+    /**
+     * Records a read, and returns the blocks to read ahead because of it.
+     *
+     * @param inode the file read.
+     * @param first the first logical block read.
+     * @param last  the last logical block read.
+     * @param end   the number of logical blocks in the file.
+     * @param limit the largest window allowed; zero disables read-ahead.
+     * @return the first and one past the last logical block to read ahead,
+     *         or null if there are none.
+     */
+    public synchronized int[] access(Inode inode, int first, int last, int end, int limit) {
+        this.limit = limit;
+        if (inode != this.inode || first != next && first != next - 1) {
+            // A new file, or a seek.
+            this.inode = inode;
+            ahead = 0;
+            window = first == 0 ? MIN_WINDOW : 0;
+        } else if (window == 0) {
+            window = MIN_WINDOW;
+        }
+        next = last + 1;
+        window = Math.min(window, limit);
+        int from = Math.max(ahead, next);
+        int to = Math.min(end, next + window);
+        if (from >= to) {
+            return null;
+        }
+        ahead = to;
+        return new int[] { from, to };
+    } // access
+
+    /** Records that a block read ahead for this stream was used. */
+    public synchronized void hit() {
+        window = Math.min(window + 1, limit);
+    } // hit
+
+    /** Records that a block read ahead for this stream was never used. */
+    public synchronized void wasted() {
+        window /= 2;
+    } // wasted
+} // ReadAhead
@@ -15,6 +15,15 @@ import java.util.*;
  * All the commands on the line are run in parallel.
  * The shell waits for them to finish before issuing another prompt.
  * <p>
+ * A command may also be a <em>pipeline</em>: several commands separated by
+ * vertical bars (|), each of whose output is the input of the next.
+ * For example,
+ * <pre>
+ *      Shell&gt; Count | Wc
+ * </pre>
+ * runs Count and Wc in parallel, and Wc counts the lines Count prints.
+ * The data passes between them in memory, through a kernel pipe.
+ * <p>
  * The Shell terminates if it sees end-of-file (Control-D if input is coming
  * from the keyboard).
  * <p>
@@ -77,7 +86,9 @@ public class Shell {
 
     /** Help message, one line per element. */
     private static String[] help = {
-        "usage:  Shell [ command [ & command] ... ]",
+        "usage:  Shell [ command [ | command] ... [ & command] ... ]",
+        "Commands separated by | form a pipeline: each reads the output of",
+        "the one before.  Commands separated by & run in parallel.",
         "If no commands are specified, the Shell prompts for command lines.",
         "It terminates on end-of-file.",
         "The following commands are built in:",
@@ -93,8 +104,7 @@ public class Shell {
     private static boolean runCommandLine(String line) {
         // Split into commands separated by &
         StringTokenizer st = new StringTokenizer(line, "&");
-        int commandCount = st.countTokens();
-        int[] pids = new int[commandCount];
+        int[] pids = new int[new StringTokenizer(line, "&|").countTokens()];
         int processes = 0;
         boolean done = false;
 
@@ -115,25 +125,51 @@ public class Shell {
                 continue;
             }
 
-            // Split each command by spaces
-            StringTokenizer cst = new StringTokenizer(command);
-            if (!cst.hasMoreTokens()) {
-                // empty command
+            if (command.indexOf('|') < 0) {
+                if (command.isEmpty()) {
+                    // empty command
+                    continue;
+                }
+                int pid = start(command, -1, -1);
+                if (pid >= 0) {
+                    pids[processes++] = pid;
+                }
                 continue;
             }
 
-            String program = cst.nextToken();
-            String[] progArgs = new String[cst.countTokens()];
-            for (int i = 0; cst.hasMoreTokens(); ) {
-                progArgs[i++] = cst.nextToken();
+            // Split a pipeline into its stages, and connect each stage's
+            // output to the next one's input.
+            String[] stages = command.split("\\|", -1);
+            int[] fds = new int[2];
+            int in = -1;
+            for (int s = 0; s < stages.length; s++) {
+                int out = -1;
+                int next = -1;
+                if (s + 1 < stages.length) {
+                    int rc = Library.pipe(fds);
+                    if (rc < 0) {
+                        Library.output("Shell: Cannot make a pipe:  "
+                            + Library.errorMessage[-rc] + "\n");
+                        break;
+                    }
+                    next = fds[0];
+                    out = fds[1];
+                }
+                int pid = start(stages[s].trim(), in, out);
+                if (pid >= 0) {
+                    pids[processes++] = pid;
+                }
+                // The stages have ends of their own now.
+                if (in >= 0) {
+                    Library.pipeClose(in);
+                }
+                if (out >= 0) {
+                    Library.pipeClose(out);
+                }
+                in = next;
             }
-
-            int pid = Library.exec(program,progArgs);
-            if (pid < 0) {
-                Library.output("Shell: Error executing " + program
-                    + ":  " + Library.errorMessage[-pid] + "\n");
-            } else {
-                pids[processes++] = pid;
+            if (in >= 0) {
+                Library.pipeClose(in);
             }
         }
 
@@ -146,4 +182,33 @@ public class Shell {
         }
         return done;
     } // runCommandLine(StringBuffer)
+
+    /** Starts one command.
+     * @param command the command: a program name and its arguments.
+     * @param in the pipe for its input, or -1 for the Shell's own.
+     * @param out the pipe for its output, or -1 for the Shell's own.
+     * @return the process id, or a negative number if it could not be
+     * started.
+     */
+    private static int start(String command, int in, int out) {
+        // Split the command by spaces
+        StringTokenizer cst = new StringTokenizer(command);
+        if (!cst.hasMoreTokens()) {
+            Library.output("Shell: Empty command in pipeline\n");
+            return Kernel.ERROR_BAD_COMMAND;
+        }
+
+        String program = cst.nextToken();
+        String[] progArgs = new String[cst.countTokens()];
+        for (int i = 0; cst.hasMoreTokens(); ) {
+            progArgs[i++] = cst.nextToken();
+        }
+
+        int pid = Library.exec(program, progArgs, in, out);
+        if (pid < 0) {
+            Library.output("Shell: Error executing " + program
+                + ":  " + Library.errorMessage[-pid] + "\n");
+        }
+        return pid;
+    } // start(String, int, int)
 } // class Shell
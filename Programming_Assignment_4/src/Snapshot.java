@@ -0,0 +1,220 @@
+import java.io.*;
+import java.util.*;
+
+/** Manages the snapshots of a CloneDisk while no clone is running.
+ * <p>
+ * A snapshot freezes the blocks a clone has changed. Taking one moves the
+ * clone's overlay into a new snapshot file and leaves the clone with an
+ * empty overlay on top of it, so it costs the number of blocks changed
+ * since the last snapshot, not the size of the disk. Rolling back
+ * discards the overlay and starts again from a snapshot.
+ * <p>
+ * Usage:
+ * <pre>
+ *    java Snapshot list
+ *    java Snapshot create <em>name</em>
+ *    java Snapshot rollback [<em>name</em>]
+ *    java Snapshot delete <em>name</em>
+ * </pre>
+ * <dl>
+ * <dt>list<dd>lists the snapshots, with the snapshot each is based on and
+ *     the number of blocks it holds, and the snapshot the overlay is on.
+ * <dt>create<dd>makes a snapshot of the clone as it is now. A clone that
+ *     has never run is on the snapshot named by <samp>disk.snapshot</samp>,
+ *     or on the base image.
+ * <dt>rollback<dd>discards the changes in the overlay, and puts it on the
+ *     named snapshot, or by default on the one it was on.
+ * <dt>delete<dd>deletes a snapshot that no other snapshot, and not the
+ *     overlay, is based on.
+ * </dl>
+ * The same <samp>disk.overlay</samp>, <samp>disk.snapshots</samp> and
+ * <samp>disk.snapshot</samp> system properties as CloneDisk choose the
+ * files.
+ * @see CloneDisk
+ */
+public class Snapshot {
+    /** The main program.
+     * @param args the command and its argument.
+     */
+    public static void main(String args[]) {
+        if (args.length < 1) {
+            usage();
+        }
+        try {
+            switch (args[0]) {
+                case "list" -> list();
+                case "create" -> create(name(args));
+                case "rollback" -> rollback(args.length > 1 ? args[1] : null);
+                case "delete" -> delete(name(args));
+                default -> usage();
+            }
+        } catch (IOException e) {
+            System.err.println("Snapshot: " + e);
+            System.exit(1);
+        }
+    } // main
+
+    /** Prints a usage message and exits. */
+    private static void usage() {
+        System.err.println("usage: java Snapshot list | create <name>"
+            + " | rollback [<name>] | delete <name>");
+        System.exit(1);
+    } // usage
+
+    /** Returns the snapshot name argument, if it is a valid one.
+     * @param args the command-line arguments.
+     * @return the name.
+     */
+    private static String name(String args[]) {
+        if (args.length < 2) {
+            usage();
+        }
+        if (!args[1].matches("[A-Za-z0-9._-]+")) {
+            fail("bad snapshot name " + args[1]);
+        }
+        return args[1];
+    } // name
+
+    /** Prints an error message and exits.
+     * @param message the message.
+     */
+    private static void fail(String message) {
+        System.err.println("Snapshot: " + message);
+        System.exit(1);
+    } // fail
+
+    /** Returns the names of all snapshots.
+     * @return the names, sorted.
+     */
+    private static List<String> names() {
+        List<String> names = new ArrayList<>();
+        File[] files = CloneDisk.snapshotFile("x").getParentFile().listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            if (f.getName().endsWith(".snap")) {
+                names.add(f.getName().substring(0, f.getName().length() - 5));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    } // names
+
+    /** Returns the layer of the overlay, or null if the clone has never run.
+     * @return the layer.
+     * @throws IOException if the overlay cannot be read.
+     */
+    private static CloneDisk.Layer overlay() throws IOException {
+        File file = CloneDisk.overlayFile();
+        return file.exists() ? CloneDisk.Layer.read(file) : null;
+    } // overlay
+
+    /** Lists the snapshots and the overlay.
+     * @throws IOException if a file cannot be read.
+     */
+    private static void list() throws IOException {
+        System.out.printf("%-20s %-20s %10s\n", "snapshot", "based on", "blocks");
+        for (String name : names()) {
+            CloneDisk.Layer layer = CloneDisk.Layer.read(CloneDisk.snapshotFile(name));
+            System.out.printf("%-20s %-20s %10d\n", name, base(layer.parent),
+                layer.blocks.size());
+        }
+        CloneDisk.Layer overlay = overlay();
+        if (overlay != null) {
+            System.out.printf("%-20s %-20s %10d\n", "(overlay)", base(overlay.parent),
+                overlay.blocks.size());
+        }
+    } // list
+
+    /** Returns the name to print for a parent.
+     * @param parent the parent snapshot, or empty for the base.
+     * @return the name.
+     */
+    private static String base(String parent) {
+        return parent.isEmpty() ? "(base)" : parent;
+    } // base
+
+    /** Makes a snapshot of the clone, and puts the overlay on it.
+     * @param name the name of the snapshot.
+     * @throws IOException if a file cannot be read or written.
+     */
+    private static void create(String name) throws IOException {
+        File file = CloneDisk.snapshotFile(name);
+        if (file.exists()) {
+            fail("snapshot " + name + " already exists");
+        }
+        CloneDisk.Layer overlay = overlay();
+        if (overlay == null) {
+            String parent = System.getProperty("disk.snapshot", "");
+            int size = parent.isEmpty() ? baseSize()
+                : CloneDisk.Layer.read(CloneDisk.snapshotFile(parent)).size;
+            overlay = new CloneDisk.Layer(size, parent, new HashMap<>());
+        }
+        file.getParentFile().mkdirs();
+        new CloneDisk.Layer(overlay.size, overlay.parent, overlay.blocks).write(file, true);
+        new CloneDisk.Layer(overlay.size, name, new HashMap<>())
+            .write(CloneDisk.overlayFile(), true);
+        System.out.println("Snapshot " + name + ": " + overlay.blocks.size()
+            + " blocks on " + base(overlay.parent));
+    } // create
+
+    /** Returns the size of the base image in blocks.
+     * @return the size.
+     */
+    private static int baseSize() {
+        File base = new File(System.getProperty("disk.base", "DISK"));
+        if (!base.exists()) {
+            fail("no base image " + base);
+        }
+        return (int) (base.length() / Disk.BLOCK_SIZE);
+    } // baseSize
+
+    /** Discards the overlay and puts it on a snapshot.
+     * @param name the snapshot, or null for the one the overlay is on.
+     * @throws IOException if a file cannot be read or written.
+     */
+    private static void rollback(String name) throws IOException {
+        CloneDisk.Layer overlay = overlay();
+        if (name == null) {
+            if (overlay == null) {
+                fail("there is no overlay to roll back");
+            }
+            name = overlay.parent;
+        }
+        int size;
+        if (name.isEmpty()) {
+            size = baseSize();
+        } else {
+            File file = CloneDisk.snapshotFile(name);
+            if (!file.exists()) {
+                fail("no snapshot " + name);
+            }
+            size = CloneDisk.Layer.read(file).size;
+        }
+        new CloneDisk.Layer(size, name, new HashMap<>()).write(CloneDisk.overlayFile(), true);
+        System.out.println("Rolled back to " + base(name) + ", discarding "
+            + (overlay == null ? 0 : overlay.blocks.size()) + " blocks");
+    } // rollback
+
+    /** Deletes a snapshot nothing is based on.
+     * @param name the snapshot.
+     * @throws IOException if a file cannot be read.
+     */
+    private static void delete(String name) throws IOException {
+        File file = CloneDisk.snapshotFile(name);
+        if (!file.exists()) {
+            fail("no snapshot " + name);
+        }
+        for (String other : names()) {
+            if (CloneDisk.Layer.read(CloneDisk.snapshotFile(other)).parent.equals(name)) {
+                fail("snapshot " + other + " is based on " + name);
+            }
+        }
+        CloneDisk.Layer overlay = overlay();
+        if (overlay != null && overlay.parent.equals(name)) {
+            fail("the overlay is based on " + name + "; roll back first");
+        }
+        if (!file.delete()) {
+            fail("cannot delete " + file);
+        }
+        System.out.println("Deleted snapshot " + name);
+    } // delete
+} // Snapshot
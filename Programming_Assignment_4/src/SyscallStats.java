@@ -0,0 +1,463 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times the system calls made to the Kernel.
+ * <p>
+ * For each system call number it keeps the number of calls, the number that
+ * returned an error (a negative value), the longest call, and a histogram
+ * of latencies. The
+ * histogram has logarithmic buckets in the style of HdrHistogram: each power
+ * of two is split into eight sub-buckets, so any recorded time is known to
+ * within 12.5%, from a nanosecond up to centuries, in fewer than 500
+ * counters. For each running process it keeps the number of calls, errors,
+ * and the total and longest time spent in the kernel. When a process exits
+ * its counters are added to totals for all exited processes; only the
+ * busiest few exited processes are kept by themselves, for reports.
+ * <p>
+ * Recording a call takes no lock and allocates nothing; it is a few atomic
+ * increments.
+ * <p>
+ * If a trace size is given, the most recent calls are also kept in a ring
+ * buffer of fixed-size binary records, which can be written to a file for
+ * post-mortem analysis. Each record is four longs: the time the call
+ * started (System.nanoTime), the pid in the high half and the call number in
+ * the low half, the result, and the duration in nanoseconds. Records are
+ * written without locking, so a record being overwritten while the ring is
+ * dumped may be torn.
+ *
+ * @see Kernel
+ * @see SyscallStatsMBean
+ */
+public class SyscallStats implements SyscallStatsMBean {
+    /** One more than the largest system call number that is recorded. */
+    public static final int MAX_CALLS = 64;
+
+    /** The number of sub-buckets per power of two, as a power of two. */
+    private static final int SUB_BITS = 3;
+
+    /** The number of sub-buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** The number of buckets in each histogram. */
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    /** The number of longs in one trace record. */
+    private static final int RECORD_LONGS = 4;
+
+    /** The first bytes of a trace file. */
+    public static final int TRACE_MAGIC = 0x53595354; // "SYST"
+
+    /** The number of exited processes kept by themselves. */
+    private static final int KEPT = 8;
+
+    /** Calls made, by call number. */
+    private final AtomicLongArray calls = new AtomicLongArray(MAX_CALLS);
+
+    /** Calls that returned an error, by call number. */
+    private final AtomicLongArray errors = new AtomicLongArray(MAX_CALLS);
+
+    /** The longest call, in nanoseconds, by call number. */
+    private final AtomicLongArray maxNanos = new AtomicLongArray(MAX_CALLS);
+
+    /** Latency histograms, BUCKETS counters per call number. */
+    private final AtomicLongArray histograms = new AtomicLongArray(MAX_CALLS * BUCKETS);
+
+    /** The counters of each running process, by pid. */
+    private final Map<Integer, Process> processes = new ConcurrentHashMap<>();
+
+    /** The busiest exited processes, at most KEPT of them. */
+    private final List<Process> exited = new ArrayList<>();
+
+    /** The counters of all exited processes added together. */
+    private final Process exitedTotals = new Process(0, "exited");
+
+    /** The number of processes that have exited. */
+    private final AtomicLong exitedCount = new AtomicLong();
+
+    /** The trace ring, or null if tracing is off. */
+    private final long[] trace;
+
+    /** The number of calls ever put in the trace ring. */
+    private final AtomicLong traced = new AtomicLong();
+
+    /** The counters of one process. */
+    public static class Process {
+        /** The process id. */
+        final int pid;
+
+        /** The name of the program the process runs. */
+        final String command;
+
+        /** Calls made. */
+        final AtomicLong calls = new AtomicLong();
+
+        /** Calls that returned an error. */
+        final AtomicLong errors = new AtomicLong();
+
+        /** Total time in the kernel, in nanoseconds. */
+        final AtomicLong nanos = new AtomicLong();
+
+        /** The longest call, in nanoseconds. */
+        final AtomicLong maxNanos = new AtomicLong();
+
+        /** Creates the counters for a process. */
+        Process(int pid, String command) {
+            this.pid = pid;
+            this.command = command;
+        } // Process
+
+        /**
+         * Adds the counters of another process to these.
+         *
+         * @param p the other process.
+         */
+        void add(Process p) {
+            calls.addAndGet(p.calls.get());
+            errors.addAndGet(p.errors.get());
+            nanos.addAndGet(p.nanos.get());
+            raise(maxNanos, p.maxNanos.get());
+        } // add
+
+        /** Returns a one-line summary of this process's calls. */
+        public String toString() {
+            long n = calls.get();
+            return String.format("pid %d (%s): %d calls, %d errors, mean %.1f us, max %.1f us",
+                pid, command, n, errors.get(),
+                n == 0 ? 0.0 : nanos.get() / 1e3 / n, maxNanos.get() / 1e3);
+        } // toString
+    } // class SyscallStats.Process
+
+    /**
+     * Creates a new, empty set of statistics.
+     *
+     * @param traceSize the number of recent calls to keep in the trace ring;
+     *                  zero for no trace.
+     */
+    public SyscallStats(int traceSize) {
+        trace = traceSize > 0 ? new long[traceSize * RECORD_LONGS] : null;
+    } // SyscallStats
+
+    /**
+     * Starts keeping counters for a new process.
+     *
+     * @param pid     the process id.
+     * @param command the name of the program.
+     * @return the counters, to be passed to record() for calls the process
+     *         makes.
+     */
+    public Process addProcess(int pid, String command) {
+        Process p = new Process(pid, command);
+        processes.put(pid, p);
+        return p;
+    } // addProcess
+
+    /**
+     * Stops keeping counters for a process that has exited, adding them to
+     * the totals of exited processes.
+     *
+     * @param p the counters returned by addProcess.
+     */
+    public void removeProcess(Process p) {
+        if (!processes.remove(p.pid, p)) {
+            return;
+        }
+        exitedTotals.add(p);
+        exitedCount.incrementAndGet();
+        synchronized (exited) {
+            exited.add(p);
+            if (exited.size() > KEPT) {
+                exited.remove(Collections.min(exited,
+                    Comparator.comparingLong(x -> x.calls.get())));
+            }
+        }
+    } // removeProcess
+
+    /**
+     * Records one completed system call.
+     *
+     * @param call    the system call number.
+     * @param result  the value the call returned.
+     * @param start   the System.nanoTime() when the call began.
+     * @param nanos   how long the call took.
+     * @param process the counters of the calling process, or null.
+     */
+    public void record(int call, int result, long start, long nanos, Process process) {
+        if (call < 0 || call >= MAX_CALLS) {
+            return;
+        }
+        calls.incrementAndGet(call);
+        if (result < 0) {
+            errors.incrementAndGet(call);
+        }
+        histograms.incrementAndGet(call * BUCKETS + bucket(nanos));
+        long longest;
+        while (nanos > (longest = maxNanos.get(call))
+                && !maxNanos.compareAndSet(call, longest, nanos)) {
+        }
+        int pid = 0;
+        if (process != null) {
+            pid = process.pid;
+            process.calls.incrementAndGet();
+            if (result < 0) {
+                process.errors.incrementAndGet();
+            }
+            process.nanos.addAndGet(nanos);
+            raise(process.maxNanos, nanos);
+        }
+        if (trace != null) {
+            int i = (int) (traced.getAndIncrement() % (trace.length / RECORD_LONGS))
+                * RECORD_LONGS;
+            trace[i] = start;
+            trace[i + 1] = (long) pid << 32 | call;
+            trace[i + 2] = result;
+            trace[i + 3] = nanos;
+        }
+    } // record
+
+    /**
+     * Raises a maximum to a value, if the value is larger.
+     *
+     * @param max   the maximum.
+     * @param value the value.
+     */
+    private static void raise(AtomicLong max, long value) {
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    } // raise
+
+    /**
+     * Returns the histogram bucket for a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     * @return the bucket index.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    } // bucket
+
+    /**
+     * Returns the smallest latency that falls in a bucket.
+     *
+     * @param bucket the bucket index.
+     * @return the latency in nanoseconds.
+     */
+    static long bucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS);
+    } // bucketStart
+
+    /**
+     * Estimates a percentile of the latency of one system call.
+     *
+     * @param call    the system call number.
+     * @param percent the percentile, from 0 to 100.
+     * @return the start of the bucket holding the percentile, in
+     *         nanoseconds, or zero if there have been no calls.
+     */
+    public long percentile(int call, double percent) {
+        long total = calls.get(call);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percent / 100);
+        long seen = 0;
+        int last = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            long n = histograms.get(call * BUCKETS + b);
+            if (n > 0) {
+                seen += n;
+                last = b;
+                if (seen >= Math.max(rank, 1)) {
+                    return bucketStart(b);
+                }
+            }
+        }
+        return bucketStart(last);
+    } // percentile
+
+    /**
+     * Returns a table of the calls made so far, one line per system call.
+     *
+     * @return the report.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder(String.format(
+            "%-14s %10s %8s %10s %10s %10s\n",
+            "call", "count", "errors", "p50 us", "p99 us", "max us"));
+        for (int c = 0; c < MAX_CALLS; c++) {
+            long n = calls.get(c);
+            if (n > 0) {
+                sb.append(String.format("%-14s %10d %8d %10.1f %10.1f %10.1f\n",
+                    Kernel.callName(c), n, errors.get(c),
+                    percentile(c, 50) / 1e3, percentile(c, 99) / 1e3,
+                    maxNanos.get(c) / 1e3));
+            }
+        }
+        return sb.toString();
+    } // report
+
+    /**
+     * Returns a summary of one process's calls.
+     *
+     * @param pid the process id.
+     * @return the summary, or null if there is no such process, or it has
+     *         exited and was not among the busiest.
+     */
+    public String report(int pid) {
+        Process p = processes.get(pid);
+        if (p == null) {
+            synchronized (exited) {
+                for (Process x : exited) {
+                    if (x.pid == pid) {
+                        p = x;
+                    }
+                }
+            }
+        }
+        return p == null ? null : p.toString();
+    } // report(int)
+
+    /**
+     * Returns summaries of the processes that made the most calls, running
+     * or among the busiest exited, followed by the totals of all exited
+     * processes.
+     *
+     * @param limit the largest number of processes to list.
+     * @return one line per process, busiest first.
+     */
+    public String busiest(int limit) {
+        List<Process> list = new ArrayList<>(processes.values());
+        synchronized (exited) {
+            list.addAll(exited);
+        }
+        list.sort((x, y) -> Long.compare(y.calls.get(), x.calls.get()));
+        StringBuilder sb = new StringBuilder();
+        for (Process p : list.subList(0, Math.min(limit, list.size()))) {
+            sb.append(p).append('\n');
+        }
+        long n = exitedCount.get();
+        if (n > 1) {
+            long c = exitedTotals.calls.get();
+            sb.append(String.format("%d exited processes: %d calls, %d errors,"
+                + " mean %.1f us, max %.1f us\n",
+                n, c, exitedTotals.errors.get(),
+                c == 0 ? 0.0 : exitedTotals.nanos.get() / 1e3 / c,
+                exitedTotals.maxNanos.get() / 1e3));
+        }
+        return sb.toString();
+    } // busiest
+
+    /**
+     * Writes the trace ring to a file, oldest record first.
+     * The file starts with TRACE_MAGIC and the number of records, as ints,
+     * followed by the records, each as four longs.
+     *
+     * @param file the file to write.
+     * @return the number of records written.
+     * @throws IOException if the file cannot be written.
+     */
+    public int writeTrace(File file) throws IOException {
+        if (trace == null) {
+            return 0;
+        }
+        int slots = trace.length / RECORD_LONGS;
+        long end = traced.get();
+        int count = (int) Math.min(end, slots);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(TRACE_MAGIC);
+            out.writeInt(count);
+            for (long seq = end - count; seq < end; seq++) {
+                int i = (int) (seq % slots) * RECORD_LONGS;
+                for (int j = 0; j < RECORD_LONGS; j++) {
+                    out.writeLong(trace[i + j]);
+                }
+            }
+        }
+        return count;
+    } // writeTrace
+
+    /**
+     * Prints a trace file written by writeTrace, one call per line.
+     * <pre>
+     *    java SyscallStats TRACE
+     * </pre>
+     *
+     * @param args the name of the trace file.
+     * @throws IOException if the file cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(args[0])))) {
+            if (in.readInt() != TRACE_MAGIC) {
+                System.err.println(args[0] + " is not a trace file");
+                return;
+            }
+            int count = in.readInt();
+            long first = 0;
+            for (int r = 0; r < count; r++) {
+                long start = in.readLong();
+                long who = in.readLong();
+                long result = in.readLong();
+                long nanos = in.readLong();
+                if (r == 0) {
+                    first = start;
+                }
+                System.out.printf("%12.3f us  pid %-6d %-14s -> %-6d %10.1f us\n",
+                    (start - first) / 1e3, who >>> 32,
+                    Kernel.callName((int) who), result, nanos / 1e3);
+            }
+        }
+    } // main
+
+    //////////////// SyscallStatsMBean
+
+    public long getTotalCalls() {
+        long n = 0;
+        for (int c = 0; c < MAX_CALLS; c++) {
+            n += calls.get(c);
+        }
+        return n;
+    } // getTotalCalls
+
+    public long getTotalErrors() {
+        long n = 0;
+        for (int c = 0; c < MAX_CALLS; c++) {
+            n += errors.get(c);
+        }
+        return n;
+    } // getTotalErrors
+
+    public long getCalls(int call) {
+        return call >= 0 && call < MAX_CALLS ? calls.get(call) : 0;
+    } // getCalls
+
+    public long getErrors(int call) {
+        return call >= 0 && call < MAX_CALLS ? errors.get(call) : 0;
+    } // getErrors
+
+    public long getLatencyPercentile(int call, double percent) {
+        return call >= 0 && call < MAX_CALLS ? percentile(call, percent) : 0;
+    } // getLatencyPercentile
+
+    public String getReport() {
+        return report();
+    } // getReport
+
+    public String getProcessReport(int pid) {
+        return report(pid);
+    } // getProcessReport
+} // SyscallStats
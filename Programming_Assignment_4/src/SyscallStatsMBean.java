@@ -0,0 +1,64 @@
+/**
+ * The management interface of SyscallStats.
+ * <p>
+ * The Kernel registers its statistics with the platform MBean server as
+ * <samp>MiniKernel:type=SyscallStats</samp>, so they can be watched from
+ * JConsole or any other JMX client while the simulator runs.
+ *
+ * @see SyscallStats
+ */
+public interface SyscallStatsMBean {
+    /**
+     * Returns the number of system calls made so far.
+     *
+     * @return the number of calls.
+     */
+    long getTotalCalls();
+
+    /**
+     * Returns the number of system calls that returned an error.
+     *
+     * @return the number of failed calls.
+     */
+    long getTotalErrors();
+
+    /**
+     * Returns the number of times one system call was made.
+     *
+     * @param call the system call number.
+     * @return the number of calls.
+     */
+    long getCalls(int call);
+
+    /**
+     * Returns the number of times one system call returned an error.
+     *
+     * @param call the system call number.
+     * @return the number of failed calls.
+     */
+    long getErrors(int call);
+
+    /**
+     * Estimates a percentile of the latency of one system call.
+     *
+     * @param call    the system call number.
+     * @param percent the percentile, from 0 to 100.
+     * @return the latency in nanoseconds.
+     */
+    long getLatencyPercentile(int call, double percent);
+
+    /**
+     * Returns a table of the calls made so far.
+     *
+     * @return the report.
+     */
+    String getReport();
+
+    /**
+     * Returns a summary of one process's calls.
+     *
+     * @param pid the process id.
+     * @return the summary, or null if there is no such process.
+     */
+    String getProcessReport(int pid);
+} // SyscallStatsMBean
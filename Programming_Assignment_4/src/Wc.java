@@ -0,0 +1,67 @@
+/** A MiniKernel program that counts the lines, words and bytes of its input.
+ * <p>
+ * Wc is meant to be the last command of a pipeline, such as
+ * <pre>
+ *      Shell&gt; Count 100000 | Wc
+ * </pre>
+ * When its standard input is a pipe it reads it in large pieces with
+ * PIPE_READ; otherwise it reads lines from the console until end of file.
+ * @see Shell
+ * @see Kernel#PIPE_READ
+ */
+public class Wc {
+    /** The number of newlines seen. */
+    private long lines;
+
+    /** The number of words seen. */
+    private long words;
+
+    /** The number of bytes seen. */
+    private long bytes;
+
+    /** True if the last byte seen was part of a word. */
+    private boolean inWord;
+
+    /** The main program.
+     * @param args ignored.
+     */
+    public static void main(String args[]) {
+        // Every process runs in the same Java VM, so the counts of each
+        // are kept in an object of its own.
+        Wc wc = new Wc();
+        byte[] buffer = new byte[8192];
+        int n = Library.pipeRead(Kernel.STDIN, buffer);
+        if (n == Kernel.ERROR_BAD_ARGUMENT) {
+            // Not reading a pipe: count the lines typed at the console.
+            StringBuffer sb = new StringBuffer();
+            while (Library.input(sb) == 0) {
+                byte[] line = (sb + "\n").getBytes();
+                wc.count(line, line.length);
+            }
+        } else {
+            for (; n > 0; n = Library.pipeRead(Kernel.STDIN, buffer)) {
+                wc.count(buffer, n);
+            }
+        }
+        Library.output(wc.lines + " " + wc.words + " " + wc.bytes + "\n");
+    } // main
+
+    /** Counts the lines, words and bytes in part of a buffer.
+     * @param data the buffer.
+     * @param n the number of bytes at the start of it to count.
+     */
+    private void count(byte[] data, int n) {
+        for (int i = 0; i < n; i++) {
+            byte b = data[i];
+            boolean space = b == ' ' || b == '\n' || b == '\t' || b == '\r';
+            if (!space && !inWord) {
+                words++;
+            }
+            inWord = !space;
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        bytes += n;
+    } // count
+} // Wc